@@ -93,6 +93,7 @@ public class DisplayClientWrapper extends NostrAds {
         ctx.run(() -> {
             init();
             super.close();
+            penaltyStore.close(); // flush the pending penalties
         });
     }
 
@@ -35,12 +35,16 @@ import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.function.BiFunction;
 import java.util.function.Function;
 import java.util.logging.Logger;
@@ -55,9 +59,11 @@ import org.ngengine.nostr4j.signer.NostrKeyPairSigner;
 import org.ngengine.nostrads.client.negotiation.DelegateNegotiationHandler;
 import org.ngengine.nostrads.client.services.PenaltyStorage;
 import org.ngengine.nostrads.client.services.delegate.DelegateService;
+import org.ngengine.nostrads.client.services.delegate.FeeLedger;
 import org.ngengine.nostrads.client.services.delegate.Tracker;
 import org.ngengine.nostrads.protocol.AdBidEvent;
 import org.ngengine.nostrads.protocol.negotiation.AdOfferEvent;
+import org.ngengine.nostrads.protocol.negotiation.CryptoOffload;
 import org.ngengine.nostrads.protocol.types.AdTaxonomy;
 import org.ngengine.platform.AsyncTask;
 import org.ngengine.platform.NGEPlatform;
@@ -84,13 +90,20 @@ public class DelegateServer {
         String id = (String) config.get("id");
 
         VStore penaltyStore = NGEPlatform.get().getDataStore("nostrads-delegate-" + name, "penalty");
+        String penaltyTable = (String) config.get("penaltyTable");
+        Path dataDir = getDataDir("nostrads-delegate-" + name);
+        Path penaltyTablePath = penaltyTable != null ? Paths.get(penaltyTable) : dataDir.resolve("penalty.table");
+        // the per-file penalties are kept unless their deletion is requested
+        boolean deleteLegacyPenalties = (boolean) config.getOrDefault("deleteLegacyPenalties", false);
         VStore trackerStore = NGEPlatform.get().getDataStore("nostrads-delegate-" + name, "tracker");
+        VStore feeStore = NGEPlatform.get().getDataStore("nostrads-delegate-" + name, "fees");
         String key = (String) config.getOrDefault("key", null);
         List<String> relays = (List<String>) config.getOrDefault("relays", DEFAULT_RELAYS);
         List<String> biddersBlacklist = (List<String>) config.computeIfAbsent("biddersBlacklist", r -> null);
         List<String> biddersWhitelist = (List<String>) config.computeIfAbsent("biddersWhitelist", r -> null);
         List<String> offerersBlacklist = (List<String>) config.computeIfAbsent("offerersBlacklist", r -> null);
         List<String> offerersWhitelist = (List<String>) config.computeIfAbsent("offerersWhitelist", r -> null);
+        int cryptoThreads = ((Number) config.getOrDefault("cryptoThreads", 0)).intValue();
 
         if (key == null) {
             VStore keyStore = NGEPlatform.get().getDataStore("nostrads-delegate-" + name, "key");
@@ -168,13 +181,22 @@ public class DelegateServer {
 
         AdTaxonomy taxonomy = new AdTaxonomy();
 
+        // keep encryption and signing off the threads reading from the relays, and mining off the crypto workers
+        CryptoOffload.set(new CryptoOffload(newCryptoExecutor(cryptoThreads), newPowExecutor()));
+
+        PenaltyStorage penaltyStorage = new PenaltyStorage(
+            new MappedPenaltyEngine(penaltyTablePath, penaltyStore, deleteLegacyPenalties)
+        );
+        // the changed penalties are written back in batches, flush the pending ones before exiting
+        Runtime.getRuntime().addShutdownHook(new Thread(penaltyStorage::close, "nostrads-penalty-flush"));
+
         DelegateService service = new DelegateService(
             pool,
             new NostrKeyPairSigner(keyPair),
             taxonomy,
             filterOffers,
             filterBids,
-            new PenaltyStorage(penaltyStore),
+            penaltyStorage,
             new Tracker(trackerStore)
         );
         String collectorLnAddress = (String) config.getOrDefault("feeCollectorLnAddress", null);
@@ -184,6 +206,7 @@ public class DelegateServer {
             (long) config.getOrDefault("maxFeeMsats", 10000L),
             collectorLnAddress == null ? null : new LnAddress(collectorLnAddress)
         );
+        service.setFeeLedger(new FeeLedger(feeStore));
 
         Nip01UserMetadata userMetadata = null;
         try {
@@ -244,6 +267,44 @@ public class DelegateServer {
         service.listen(Instant.now().minus(360, ChronoUnit.DAYS)).await();
     }
 
+    /**
+     * The default directory of the penalty table:
+     * $APP_DATA_DIR if set (eg. the /data volume of the docker image), otherwise $XDG_DATA_HOME (or ~/.local/share)
+     * on Linux, ~/Library/Application Support on macOS and %APPDATA% on Windows.
+     */
+    private static Path getDataDir(String appName) {
+        String os = System.getProperty("os.name", "").toLowerCase();
+        String home = System.getProperty("user.home");
+        String appDataDir = System.getenv("APP_DATA_DIR");
+        Path base;
+        if (appDataDir != null && !appDataDir.isEmpty()) {
+            base = Paths.get(appDataDir);
+        } else if (os.contains("win")) {
+            String appData = System.getenv("APPDATA");
+            base = appData != null ? Paths.get(appData) : Paths.get(home, "AppData", "Roaming");
+        } else if (os.contains("mac")) {
+            base = Paths.get(home, "Library", "Application Support");
+        } else {
+            String xdgData = System.getenv("XDG_DATA_HOME");
+            base = xdgData != null && !xdgData.isEmpty() ? Paths.get(xdgData) : Paths.get(home, ".local", "share");
+        }
+        return base.resolve(appName);
+    }
+
+    private static ExecutorService newCryptoExecutor(int threads) {
+        if (threads <= 0) {
+            // the virtual threads are scheduled on a carrier pool sized to the available cores
+            return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("nostrads-crypto-", 0).factory());
+        }
+        return Executors.newFixedThreadPool(threads, Thread.ofPlatform().name("nostrads-crypto-", 0).daemon(true).factory());
+    }
+
+    private static ExecutorService newPowExecutor() {
+        // mining is cpu bound, leave some cores to the other operations
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        return Executors.newFixedThreadPool(threads, Thread.ofPlatform().name("nostrads-pow-", 0).daemon(true).factory());
+    }
+
     private static String envName(String delegateId) {
         return delegateId.toUpperCase().replace(" ", "_");
     }
@@ -423,6 +484,21 @@ public class DelegateServer {
                             config.put("maxFeeMsats", maxFeeMsats);
                             break;
                         }
+                    case "--penaltyTable":
+                        {
+                            config.put("penaltyTable", args[++i]);
+                            break;
+                        }
+                    case "--deleteLegacyPenalties":
+                        {
+                            config.put("deleteLegacyPenalties", true);
+                            break;
+                        }
+                    case "--cryptoThreads":
+                        {
+                            config.put("cryptoThreads", Integer.parseInt(args[++i]));
+                            break;
+                        }
                     case "--config":
                         {
                             String configFile = args[++i];
@@ -457,6 +533,15 @@ public class DelegateServer {
                             System.out.println(
                                 "  --fee <minFeeMsats:percentFee:maxFeeMsats:collectorLnAddress> Set the fee structure. eg. 2000:0.05:10000:nostr4j@ln.rblb.it"
                             );
+                            System.out.println(
+                                "  --penaltyTable <file>        Set the file used to store the POW penalties (default is in the data directory)"
+                            );
+                            System.out.println(
+                                "  --deleteLegacyPenalties      Delete the per-file POW penalties once they are verified to be in the table"
+                            );
+                            System.out.println(
+                                "  --cryptoThreads <n>          Set the number of threads used for encryption and signing (default 0, virtual threads)"
+                            );
                             System.out.println("  --config <file>              Load configuration from a JSON file");
                             System.out.println("  --help                       Show this help message");
                             System.out.println("  --test                       Run in test mode (preconfigured for testing)");
@@ -0,0 +1,323 @@
+/**
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2025, Riccardo Balbo
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.ngengine.nostrads;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.ngengine.nostr4j.keypair.NostrPublicKey;
+import org.ngengine.nostrads.client.services.FilePenaltyEngine;
+import org.ngengine.nostrads.client.services.PenaltyEngine;
+import org.ngengine.nostrads.client.services.PenaltyTable;
+import org.ngengine.platform.AsyncTask;
+import org.ngengine.platform.NGEPlatform;
+import org.ngengine.platform.VStore;
+
+/**
+ * A penalty engine that keeps all the penalties in a single memory-mapped file, laid out as an
+ * open-addressed hash table keyed by the 32-byte pubkey.
+ *
+ * Lookups and updates go straight to the mapped table, the file is grown (and compacted) by rehashing into a
+ * new file that atomically replaces the old one.
+ */
+public class MappedPenaltyEngine implements PenaltyEngine {
+
+    private static final Logger logger = Logger.getLogger(MappedPenaltyEngine.class.getName());
+    private static final int MAGIC = 0x5450414e; // "NAPT"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16; // magic, version, capacity, size
+    private static final int SLOT_SIZE = PenaltyTable.RECORD_SIZE; // an all-zero key marks an empty slot
+    private static final float LOAD_FACTOR = 0.7f;
+    private static final int MIN_CAPACITY = 1024;
+    private static final String MIGRATED_MARKER = "nostrads/powlist.migrated";
+
+    private final Path file;
+    private FileChannel channel;
+    private MappedByteBuffer table;
+    private int capacity;
+    private int size;
+
+    /**
+     * @param file the table file, created if missing
+     * @param legacyStore a store with penalties in the per-file layout to migrate, can be null
+     * @param deleteLegacy true to delete the migrated penalties from the legacy store once every one of them is
+     *                     verified to be in the table, otherwise they are kept and migrated again if the table is
+     *                     ever lost
+     */
+    public MappedPenaltyEngine(Path file, VStore legacyStore, boolean deleteLegacy) throws IOException {
+        this.file = file;
+        boolean existed = Files.exists(file) && Files.size(file) >= HEADER_SIZE;
+        if (existed) {
+            map(file);
+            if (table.getInt(0) != MAGIC || table.getInt(4) != VERSION) {
+                throw new IOException("Not a penalty table: " + file);
+            }
+            capacity = table.getInt(8);
+            size = table.getInt(12);
+            synchronized (this) {
+                // most of the parties have no penalty left, shrink the table
+                if (capacity > MIN_CAPACITY && countLive() < size / 2) compact();
+            }
+        } else {
+            if (file.getParent() != null) Files.createDirectories(file.getParent());
+            create(file, MIN_CAPACITY);
+            map(file);
+            capacity = MIN_CAPACITY;
+            size = 0;
+        }
+
+        if (legacyStore != null) {
+            try {
+                migrate(legacyStore, existed, deleteLegacy);
+            } catch (Exception e) {
+                logger.log(Level.WARNING, "Failed to migrate POW penalties from the per-file layout", e);
+            }
+        }
+    }
+
+    private void migrate(VStore legacyStore, boolean existed, boolean deleteLegacy) throws Exception {
+        boolean migrated = existed && legacyStore.exists(MIGRATED_MARKER).await();
+        Map<NostrPublicKey, Integer> legacy = FilePenaltyEngine.readAll(legacyStore);
+        if (legacy.isEmpty()) return;
+        if (!migrated) {
+            synchronized (this) {
+                for (Map.Entry<NostrPublicKey, Integer> e : legacy.entrySet()) {
+                    byte[] key = PenaltyTable.toKey(e.getKey());
+                    if (find(key) < 0) put(key, e.getValue());
+                }
+                table.force();
+            }
+            legacyStore.writeFully(MIGRATED_MARKER, new byte[0]).await();
+            logger.info("Migrated " + legacy.size() + " POW penalties to " + file);
+        }
+        if (!deleteLegacy) return;
+        if (!isMigrated(legacy)) {
+            logger.warning("Some legacy POW penalties are missing from " + file + ", they are not deleted");
+            return;
+        }
+        FilePenaltyEngine.deleteAll(legacyStore);
+        legacyStore.delete(MIGRATED_MARKER).await();
+        logger.info("Deleted " + legacy.size() + " migrated legacy POW penalties");
+    }
+
+    /**
+     * Check that every legacy penalty is in the table, with the same or a newer value.
+     * The parties with no penalty may have been dropped by a compaction.
+     */
+    private synchronized boolean isMigrated(Map<NostrPublicKey, Integer> legacy) {
+        for (Map.Entry<NostrPublicKey, Integer> e : legacy.entrySet()) {
+            if (e.getValue() != 0 && find(PenaltyTable.toKey(e.getKey())) < 0) return false;
+        }
+        return true;
+    }
+
+    private static void create(Path path, int capacity) throws IOException {
+        try (
+            FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)
+        ) {
+            ch.truncate(0);
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity * SLOT_SIZE);
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+            buf.putInt(0, MAGIC);
+            buf.putInt(4, VERSION);
+            buf.putInt(8, capacity);
+            buf.putInt(12, 0);
+            buf.force();
+        }
+    }
+
+    private void map(Path path) throws IOException {
+        if (channel != null) channel.close();
+        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        table = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+        table.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static int slotOffset(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    private static boolean isEmpty(MappedByteBuffer buf, int offset) {
+        for (int i = 0; i < PenaltyTable.KEY_SIZE; i += 8) {
+            if (buf.getLong(offset + i) != 0) return false;
+        }
+        return true;
+    }
+
+    private static boolean keyEquals(MappedByteBuffer buf, int offset, byte[] key) {
+        for (int i = 0; i < PenaltyTable.KEY_SIZE; i++) {
+            if (buf.get(offset + i) != key[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the slot of the key, or the complement of the free slot where it would be inserted
+     */
+    private int find(byte[] key) {
+        int mask = capacity - 1;
+        int slot = PenaltyTable.hash(key, 0) & mask;
+        while (true) {
+            int offset = slotOffset(slot);
+            if (isEmpty(table, offset)) return ~slot;
+            if (keyEquals(table, offset, key)) return slot;
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private void put(byte[] key, int value) throws IOException {
+        int slot = find(key);
+        if (slot >= 0) {
+            table.putInt(slotOffset(slot) + PenaltyTable.KEY_SIZE, value);
+            return;
+        }
+        if (size + 1 > capacity * LOAD_FACTOR) {
+            rehash(capacity * 2, false);
+            slot = find(key);
+        }
+        int offset = slotOffset(~slot);
+        table.put(offset, key);
+        table.putInt(offset + PenaltyTable.KEY_SIZE, value);
+        size++;
+        table.putInt(12, size);
+    }
+
+    /**
+     * Copy the table into a new file with the given capacity and atomically replace the current one.
+     */
+    private void rehash(int newCapacity, boolean dropZeros) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        create(tmp, newCapacity);
+        int newSize = 0;
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_WRITE, 0, ch.size());
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+            int mask = newCapacity - 1;
+            byte[] key = new byte[PenaltyTable.KEY_SIZE];
+            for (int i = 0; i < capacity; i++) {
+                int offset = slotOffset(i);
+                if (isEmpty(table, offset)) continue;
+                int value = table.getInt(offset + PenaltyTable.KEY_SIZE);
+                if (dropZeros && value == 0) continue;
+                table.get(offset, key);
+                int slot = PenaltyTable.hash(key, 0) & mask;
+                while (!isEmpty(buf, slotOffset(slot))) slot = (slot + 1) & mask;
+                buf.put(slotOffset(slot), key);
+                buf.putInt(slotOffset(slot) + PenaltyTable.KEY_SIZE, value);
+                newSize++;
+            }
+            buf.putInt(12, newSize);
+            buf.force();
+        }
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        map(file);
+        capacity = newCapacity;
+        size = newSize;
+        logger.fine("Rehashed POW penalties table to " + newCapacity + " slots, " + newSize + " parties");
+    }
+
+    @Override
+    public AsyncTask<Integer> load(NostrPublicKey party) {
+        byte[] key = PenaltyTable.toKey(party);
+        int penalty;
+        synchronized (this) {
+            int slot = find(key);
+            penalty = slot >= 0 ? table.getInt(slotOffset(slot) + PenaltyTable.KEY_SIZE) : 0;
+        }
+        return NGEPlatform.get().wrapPromise((res, rej) -> res.accept(penalty));
+    }
+
+    @Override
+    public AsyncTask<Void> store(Map<NostrPublicKey, Integer> batch) {
+        return NGEPlatform
+            .get()
+            .wrapPromise((res, rej) -> {
+                try {
+                    synchronized (this) {
+                        for (Map.Entry<NostrPublicKey, Integer> e : batch.entrySet()) {
+                            put(PenaltyTable.toKey(e.getKey()), e.getValue());
+                        }
+                        table.force();
+                    }
+                    res.accept(null);
+                } catch (Exception e) {
+                    rej.accept(e);
+                }
+            });
+    }
+
+    private int countLive() {
+        int live = 0;
+        for (int i = 0; i < capacity; i++) {
+            int offset = slotOffset(i);
+            if (!isEmpty(table, offset) && table.getInt(offset + PenaltyTable.KEY_SIZE) != 0) live++;
+        }
+        return live;
+    }
+
+    /**
+     * Shrink the table to fit, dropping the parties with no penalty.
+     * Called when the table is opened, if most of its parties have no penalty left.
+     */
+    public synchronized void compact() throws IOException {
+        int live = countLive();
+        int newCapacity = MIN_CAPACITY;
+        while (newCapacity * LOAD_FACTOR < live + 1) newCapacity <<= 1;
+        rehash(newCapacity, true);
+    }
+
+    public synchronized int capacity() {
+        return capacity;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            table.force();
+            channel.close();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to close POW penalties table", e);
+        }
+    }
+}
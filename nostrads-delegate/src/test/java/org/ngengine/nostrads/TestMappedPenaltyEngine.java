@@ -0,0 +1,195 @@
+/**
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2025, Riccardo Balbo
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.ngengine.nostrads;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import org.ngengine.nostr4j.keypair.NostrPrivateKey;
+import org.ngengine.nostr4j.keypair.NostrPublicKey;
+import org.ngengine.nostrads.client.services.FilePenaltyEngine;
+import org.ngengine.platform.NGEPlatform;
+import org.ngengine.platform.VStore;
+
+public class TestMappedPenaltyEngine {
+
+    private static Path newTable() throws Exception {
+        return Files.createTempDirectory("nostrads-penalties").resolve("penalty.table");
+    }
+
+    private static VStore newStore() {
+        return NGEPlatform.get().getDataStore("unit-tests-Ad" + Math.random(), "penalty");
+    }
+
+    private static long countLegacyFiles(VStore store) throws Exception {
+        return store.listAll().await().stream().filter(p -> p.startsWith("nostrads/powlist/")).count();
+    }
+
+    private static List<NostrPublicKey> newParties(int n) {
+        List<NostrPublicKey> parties = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            parties.add(NostrPrivateKey.generate().getPublicKey());
+        }
+        return parties;
+    }
+
+    @Test
+    public void testGrowAndReopen() throws Exception {
+        Path file = newTable();
+        List<NostrPublicKey> parties = newParties(2000);
+        Map<NostrPublicKey, Integer> batch = new HashMap<>();
+        for (int i = 0; i < parties.size(); i++) {
+            batch.put(parties.get(i), i + 1);
+        }
+
+        MappedPenaltyEngine engine = new MappedPenaltyEngine(file, null, true);
+        assertEquals(1024, engine.capacity());
+        engine.store(batch).await();
+        assertEquals(2000, engine.size());
+        assertEquals(4096, engine.capacity());
+        engine.store(Map.of(parties.get(0), 7)).await();
+        assertEquals(2000, engine.size());
+        engine.close();
+        assertFalse(Files.exists(file.resolveSibling(file.getFileName() + ".tmp")));
+
+        MappedPenaltyEngine reopened = new MappedPenaltyEngine(file, null, true);
+        assertEquals(2000, reopened.size());
+        assertEquals(4096, reopened.capacity());
+        assertEquals(7, (int) reopened.load(parties.get(0)).await());
+        for (int i = 1; i < parties.size(); i++) {
+            assertEquals(i + 1, (int) reopened.load(parties.get(i)).await());
+        }
+        assertEquals(0, (int) reopened.load(NostrPrivateKey.generate().getPublicKey()).await());
+        reopened.close();
+    }
+
+    @Test
+    public void testCompactOnOpen() throws Exception {
+        Path file = newTable();
+        List<NostrPublicKey> parties = newParties(1000);
+        Map<NostrPublicKey, Integer> batch = new HashMap<>();
+        for (NostrPublicKey party : parties) {
+            batch.put(party, 1);
+        }
+        MappedPenaltyEngine engine = new MappedPenaltyEngine(file, null, true);
+        engine.store(batch).await();
+        assertEquals(2048, engine.capacity());
+
+        // most of the parties have no penalty left
+        batch.clear();
+        for (int i = 10; i < parties.size(); i++) {
+            batch.put(parties.get(i), 0);
+        }
+        engine.store(batch).await();
+        engine.close();
+
+        MappedPenaltyEngine reopened = new MappedPenaltyEngine(file, null, true);
+        assertEquals(10, reopened.size());
+        assertEquals(1024, reopened.capacity());
+        for (int i = 0; i < parties.size(); i++) {
+            assertEquals(i < 10 ? 1 : 0, (int) reopened.load(parties.get(i)).await());
+        }
+        reopened.close();
+    }
+
+    @Test
+    public void testLegacyMigration() throws Exception {
+        Path file = newTable();
+        VStore store = newStore();
+        List<NostrPublicKey> parties = newParties(3);
+        new FilePenaltyEngine(store).store(Map.of(parties.get(0), 10, parties.get(1), 20, parties.get(2), 30)).await();
+        assertEquals(3, countLegacyFiles(store));
+
+        MappedPenaltyEngine engine = new MappedPenaltyEngine(file, store, true);
+        assertEquals(10, (int) engine.load(parties.get(0)).await());
+        assertEquals(20, (int) engine.load(parties.get(1)).await());
+        assertEquals(30, (int) engine.load(parties.get(2)).await());
+        assertEquals(0, countLegacyFiles(store));
+        engine.close();
+
+        MappedPenaltyEngine reopened = new MappedPenaltyEngine(file, store, true);
+        assertEquals(3, reopened.size());
+        assertEquals(20, (int) reopened.load(parties.get(1)).await());
+        reopened.close();
+    }
+
+    @Test
+    public void testLegacyKeptByDefault() throws Exception {
+        Path file = newTable();
+        VStore store = newStore();
+        List<NostrPublicKey> parties = newParties(2);
+        new FilePenaltyEngine(store).store(Map.of(parties.get(0), 10, parties.get(1), 20)).await();
+
+        MappedPenaltyEngine engine = new MappedPenaltyEngine(file, store, false);
+        assertEquals(10, (int) engine.load(parties.get(0)).await());
+        assertEquals(2, countLegacyFiles(store));
+        engine.store(Map.of(parties.get(0), 11)).await();
+        engine.close();
+
+        // already migrated, the legacy value doesn't override the newer one
+        MappedPenaltyEngine reopened = new MappedPenaltyEngine(file, store, false);
+        assertEquals(11, (int) reopened.load(parties.get(0)).await());
+        reopened.close();
+
+        // the table is lost, the legacy penalties are migrated again
+        Files.delete(file);
+        MappedPenaltyEngine recreated = new MappedPenaltyEngine(file, store, false);
+        assertEquals(10, (int) recreated.load(parties.get(0)).await());
+        assertEquals(20, (int) recreated.load(parties.get(1)).await());
+        assertTrue(Files.exists(file));
+        recreated.close();
+    }
+
+    @Test
+    public void testLegacyDeletedOnlyOnceVerified() throws Exception {
+        Path file = newTable();
+        VStore store = newStore();
+        List<NostrPublicKey> parties = newParties(2);
+        new FilePenaltyEngine(store).store(Map.of(parties.get(0), 10)).await();
+        new MappedPenaltyEngine(file, store, false).close();
+
+        // written to the legacy store after the migration, so it is not in the table
+        new FilePenaltyEngine(store).store(Map.of(parties.get(1), 20)).await();
+        MappedPenaltyEngine engine = new MappedPenaltyEngine(file, store, true);
+        assertEquals(0, (int) engine.load(parties.get(1)).await());
+        assertEquals(2, countLegacyFiles(store));
+        engine.close();
+    }
+}
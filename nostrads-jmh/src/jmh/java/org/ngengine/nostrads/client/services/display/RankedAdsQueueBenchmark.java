@@ -0,0 +1,144 @@
+/**
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2025, Riccardo Balbo
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.ngengine.nostrads.client.services.display;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.ngengine.nostr4j.NostrPool;
+import org.ngengine.nostr4j.NostrRelay;
+import org.ngengine.nostr4j.keypair.NostrPublicKey;
+import org.ngengine.nostr4j.signer.NostrSigner;
+import org.ngengine.nostrads.TestRelay;
+import org.ngengine.nostrads.client.services.PenaltyStorage;
+import org.ngengine.nostrads.jmh.BenchData;
+import org.ngengine.nostrads.protocol.AdBidEvent;
+import org.ngengine.nostrads.protocol.types.AdAspectRatio;
+import org.ngengine.nostrads.protocol.types.AdMimeType;
+import org.ngengine.nostrads.protocol.types.AdPriceSlot;
+import org.ngengine.nostrads.protocol.types.AdTaxonomy;
+import org.ngengine.platform.AsyncTask;
+import org.ngengine.platform.NGEPlatform;
+import org.ngengine.platform.VStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * {@link RankedAdsQueue#get} against an in-process relay holding the given number of bids.
+ *
+ * <ul>
+ * <li>get: steady state, served from the already loaded queue while refreshes run in background</li>
+ * <li>refresh: a fresh queue, so the call waits for the initial load (fetch, parse, penalties, rank)</li>
+ * </ul>
+ *
+ * Setup signs and publishes every bid, so the 50k case takes a while to start.
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class RankedAdsQueueBenchmark {
+
+    @Param({ "10", "1000", "50000" })
+    public int bids;
+
+    private TestRelay relay;
+    private NostrPool pool;
+    private AdTaxonomy taxonomy;
+    private PenaltyStorage penaltyStorage;
+    private Adspace adspace;
+    private RankedAdsQueue queue;
+    private VStore penaltyStore;
+
+    @Setup
+    public void setup() throws Exception {
+        relay = new TestRelay();
+        pool = new NostrPool();
+        pool.connectRelay(new NostrRelay(relay.getUrl())).await();
+        taxonomy = new AdTaxonomy();
+        // a throwaway store, so the penalties of a run don't leak into the next ones
+        penaltyStore = NGEPlatform.get().getDataStore("nostrads-jmh-" + System.nanoTime(), "penalty");
+        penaltyStorage = new PenaltyStorage(penaltyStore);
+
+        NostrSigner advertiser = BenchData.newSigner();
+        NostrPublicKey delegate = BenchData.newKeys(1).get(0);
+        for (int i = 0; i < bids; i++) {
+            AdBidEvent bid = BenchData.newBid(taxonomy, advertiser, delegate, null, null, null, i);
+            AsyncTask.any(pool.publish(bid)).await();
+        }
+
+        adspace =
+            new Adspace(
+                BenchData.newKeys(1).get(0),
+                BenchData.newKeys(1).get(0),
+                AdAspectRatio.RATIO_8_1,
+                AdPriceSlot.BTC1_000,
+                List.of(AdMimeType.TEXT_PLAIN)
+            );
+        // let a refresh see the whole inventory
+        adspace.setNumBidsToLoad(bids);
+        queue = new RankedAdsQueue(taxonomy, pool, penaltyStorage, new BidCache(), adspace);
+        queue.get(480, 60, null);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        queue.close();
+        pool.close();
+        relay.close();
+        penaltyStorage.close();
+        for (String path : penaltyStore.listAll().await()) {
+            penaltyStore.delete(path).await();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    public RankedAd get() {
+        return queue.get(480, 60, null);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    public RankedAd refresh() {
+        RankedAdsQueue fresh = new RankedAdsQueue(taxonomy, pool, penaltyStorage, new BidCache(), adspace);
+        try {
+            return fresh.get(480, 60, null);
+        } finally {
+            fresh.close();
+        }
+    }
+}
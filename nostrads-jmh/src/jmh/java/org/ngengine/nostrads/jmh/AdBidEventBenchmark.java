@@ -0,0 +1,102 @@
+/**
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2025, Riccardo Balbo
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.ngengine.nostrads.jmh;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.ngengine.nostr4j.event.SignedNostrEvent;
+import org.ngengine.nostr4j.keypair.NostrPublicKey;
+import org.ngengine.nostr4j.signer.NostrSigner;
+import org.ngengine.nostrads.protocol.AdBidEvent;
+import org.ngengine.nostrads.protocol.types.AdTaxonomy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Parsing and accessors of a bid, this is what every delegate and display client runs on every
+ * incoming kind 30100 event.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class AdBidEventBenchmark {
+
+    private AdTaxonomy taxonomy;
+    private SignedNostrEvent source;
+    private AdBidEvent bid;
+
+    @Setup
+    public void setup() throws Exception {
+        taxonomy = new AdTaxonomy();
+        NostrSigner signer = BenchData.newSigner();
+        NostrPublicKey delegate = BenchData.newSigner().getPublicKey().await();
+        List<NostrPublicKey> offerers = BenchData.newKeys(4);
+        List<NostrPublicKey> apps = BenchData.newKeys(4);
+        source = BenchData.newBid(taxonomy, signer, delegate, null, offerers, apps, 0);
+        bid = new AdBidEvent(taxonomy, source);
+    }
+
+    @Benchmark
+    public AdBidEvent parse() {
+        return new AdBidEvent(taxonomy, source);
+    }
+
+    @Benchmark
+    public boolean parseAndValidate() {
+        return new AdBidEvent(taxonomy, source).isValid();
+    }
+
+    @Benchmark
+    public boolean isValid() {
+        return bid.isValid();
+    }
+
+    @Benchmark
+    public Object getCategories() {
+        return bid.getCategories();
+    }
+
+    @Benchmark
+    public Object getTargetedOfferers() {
+        return bid.getTargetedOfferers();
+    }
+
+    @Benchmark
+    public Object getTargetedApps() {
+        return bid.getTargetedApps();
+    }
+}
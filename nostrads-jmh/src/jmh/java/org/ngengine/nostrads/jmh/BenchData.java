@@ -0,0 +1,118 @@
+/**
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2025, Riccardo Balbo
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.ngengine.nostrads.jmh;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.ngengine.nostr4j.keypair.NostrKeyPair;
+import org.ngengine.nostr4j.keypair.NostrPrivateKey;
+import org.ngengine.nostr4j.keypair.NostrPublicKey;
+import org.ngengine.nostr4j.signer.NostrKeyPairSigner;
+import org.ngengine.nostr4j.signer.NostrSigner;
+import org.ngengine.nostrads.protocol.AdBidEvent;
+import org.ngengine.nostrads.protocol.types.AdActionType;
+import org.ngengine.nostrads.protocol.types.AdMimeType;
+import org.ngengine.nostrads.protocol.types.AdPriceSlot;
+import org.ngengine.nostrads.protocol.types.AdSize;
+import org.ngengine.nostrads.protocol.types.AdTaxonomy;
+
+/**
+ * Deterministic-ish fixtures shared by the benchmarks.
+ */
+public final class BenchData {
+
+    public static final String[] CATEGORY_PATHS = {
+        "Technology & Computing/Virtual Reality",
+        "Bitcoin/Bitcoin Tech",
+        "Attractions/Amusement and Theme Parks",
+    };
+
+    private BenchData() {}
+
+    public static NostrKeyPairSigner newSigner() {
+        return new NostrKeyPairSigner(new NostrKeyPair(NostrPrivateKey.generate()));
+    }
+
+    public static List<NostrPublicKey> newKeys(int n) {
+        List<NostrPublicKey> keys = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            keys.add(NostrPrivateKey.generate().getPublicKey());
+        }
+        return keys;
+    }
+
+    /**
+     * Build a signed bid, the i-th bid of a sequence gets a different size and amount so that
+     * ranking has something to sort.
+     */
+    public static AdBidEvent newBid(
+        AdTaxonomy taxonomy,
+        NostrSigner signer,
+        NostrPublicKey delegate,
+        Map<String, Object> delegatePayload,
+        List<NostrPublicKey> offerers,
+        List<NostrPublicKey> apps,
+        int i
+    ) throws Exception {
+        AdSize size = AdSize.values()[i % AdSize.values().length];
+        long bidMsats = 1000 + (i * 7919L) % 100_000;
+        AdBidEvent.BidBuilder builder = new AdBidEvent.BidBuilder(taxonomy, "bench-" + i);
+        builder.withDescription("Benchmark bid " + i);
+        builder.withPayload("This is a benchmark bid");
+        builder.withLink("https://ngengine.org");
+        builder.withCallToAction("Click here!");
+        builder.withMIMEType(AdMimeType.TEXT_PLAIN);
+        builder.withActionType(AdActionType.VIEW);
+        builder.withDimensions(size);
+        builder.withAspectRatio(size.getAspectRatio());
+        builder.withBidMsats(bidMsats);
+        builder.withPriceSlot(AdPriceSlot.fromValue(bidMsats));
+        builder.withHoldTime(Duration.ofSeconds(60));
+        builder.withExpiration(Instant.now().plus(Duration.ofDays(1)));
+        builder.withLanguage("en");
+        for (String path : CATEGORY_PATHS) {
+            builder.withCategory(taxonomy.getByPath(path));
+        }
+        if (offerers != null) {
+            for (NostrPublicKey k : offerers) builder.whitelistOfferer(k);
+        }
+        if (apps != null) {
+            for (NostrPublicKey k : apps) builder.whitelistApp(k);
+        }
+        builder.withDelegate(delegate, delegatePayload);
+        builder.withPayoutLimit(21, Duration.ofMinutes(5));
+        return builder.build(signer).await();
+    }
+}
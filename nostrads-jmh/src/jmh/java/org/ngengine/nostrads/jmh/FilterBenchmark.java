@@ -0,0 +1,85 @@
+/**
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2025, Riccardo Balbo
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.ngengine.nostrads.jmh;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.ngengine.nostr4j.NostrFilter;
+import org.ngengine.nostrads.client.services.display.Adspace;
+import org.ngengine.nostrads.protocol.AdBidFilter;
+import org.ngengine.nostrads.protocol.types.AdAspectRatio;
+import org.ngengine.nostrads.protocol.types.AdMimeType;
+import org.ngengine.nostrads.protocol.types.AdPriceSlot;
+import org.ngengine.nostrads.protocol.types.AdTaxonomy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Filter construction, done on every queue refresh.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class FilterBenchmark {
+
+    private Adspace adspace;
+
+    @Setup
+    public void setup() {
+        AdTaxonomy taxonomy = new AdTaxonomy();
+        adspace =
+            new Adspace(
+                BenchData.newKeys(1).get(0),
+                BenchData.newKeys(1).get(0),
+                AdAspectRatio.RATIO_8_1,
+                AdPriceSlot.BTC1_000,
+                List.of(AdMimeType.TEXT_PLAIN, AdMimeType.IMAGE_PNG)
+            );
+        adspace.withLanguage("en");
+        adspace.withCategory(taxonomy.getByPath(BenchData.CATEGORY_PATHS[0]));
+    }
+
+    @Benchmark
+    public NostrFilter withPriceSlot() {
+        return new AdBidFilter().withPriceSlot(AdPriceSlot.BTC1_000);
+    }
+
+    @Benchmark
+    public NostrFilter adspaceToFilter() {
+        return adspace.toFilter();
+    }
+}
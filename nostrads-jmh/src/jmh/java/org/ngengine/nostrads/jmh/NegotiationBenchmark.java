@@ -0,0 +1,80 @@
+/**
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2025, Riccardo Balbo
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.ngengine.nostrads.jmh;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import org.ngengine.nostr4j.keypair.NostrPublicKey;
+import org.ngengine.nostr4j.signer.NostrSigner;
+import org.ngengine.nostrads.protocol.AdBidEvent;
+import org.ngengine.nostrads.protocol.negotiation.AdNegotiationEvent;
+import org.ngengine.nostrads.protocol.negotiation.AdOfferEvent;
+import org.ngengine.nostrads.protocol.types.AdTaxonomy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Decrypt and cast of an incoming negotiation event, as done by the delegate for every offer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class NegotiationBenchmark {
+
+    private NostrSigner delegateSigner;
+    private AdOfferEvent offer;
+
+    @Setup
+    public void setup() throws Exception {
+        AdTaxonomy taxonomy = new AdTaxonomy();
+        delegateSigner = BenchData.newSigner();
+        NostrSigner advertiserSigner = BenchData.newSigner();
+        NostrSigner offererSigner = BenchData.newSigner();
+        NostrPublicKey delegate = delegateSigner.getPublicKey().await();
+        NostrPublicKey app = BenchData.newKeys(1).get(0);
+
+        AdBidEvent bid = BenchData.newBid(taxonomy, advertiserSigner, delegate, null, null, null, 0);
+        AdOfferEvent.OfferBuilder builder = new AdOfferEvent.OfferBuilder(app);
+        builder.withExpiration(Instant.now().plus(bid.getHoldTime()).plusSeconds(3600));
+        offer = builder.build(offererSigner, bid, 0).await();
+    }
+
+    @Benchmark
+    public AdNegotiationEvent cast() throws Exception {
+        return AdNegotiationEvent.cast(delegateSigner, offer, null).await();
+    }
+}
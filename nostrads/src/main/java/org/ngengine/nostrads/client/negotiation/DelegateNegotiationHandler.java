@@ -32,12 +32,15 @@
 package org.ngengine.nostrads.client.negotiation;
 
 import jakarta.annotation.Nonnull;
+import jakarta.annotation.Nullable;
 import java.time.Instant;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.ngengine.lnurl.LnUrl;
 import org.ngengine.lnurl.LnUrlPay;
+import org.ngengine.lnurl.LnUrlService;
 import org.ngengine.nostr4j.NostrPool;
 import org.ngengine.nostr4j.signer.NostrSigner;
 import org.ngengine.nostrads.protocol.AdBidEvent;
@@ -57,6 +60,7 @@ public class DelegateNegotiationHandler extends NegotiationHandler {
 
     private static final Logger logger = Logger.getLogger(DelegateNegotiationHandler.class.getName());
     private final LnUrl lnurl;
+    private final Function<LnUrl, AsyncTask<LnUrlService>> serviceResolver;
     private final AtomicBoolean paid = new AtomicBoolean(false);
 
     /**
@@ -76,9 +80,25 @@ public class DelegateNegotiationHandler extends NegotiationHandler {
         @Nonnull NostrSigner signer,
         @Nonnull AdBidEvent bid,
         int maxDiff
+    ) {
+        this(lnurl, pool, signer, bid, maxDiff, null);
+    }
+
+    /**
+     * @param serviceResolver resolves the LNURL service to pay, eg. from a shared cache. If null the service is
+     *     fetched from the LNURL every time
+     */
+    public DelegateNegotiationHandler(
+        @Nonnull LnUrl lnurl,
+        @Nonnull NostrPool pool,
+        @Nonnull NostrSigner signer,
+        @Nonnull AdBidEvent bid,
+        int maxDiff,
+        @Nullable Function<LnUrl, AsyncTask<LnUrlService>> serviceResolver
     ) {
         super(pool, signer, bid, maxDiff);
         this.lnurl = lnurl;
+        this.serviceResolver = serviceResolver != null ? serviceResolver : LnUrl::getService;
     }
 
     /**
@@ -98,8 +118,8 @@ public class DelegateNegotiationHandler extends NegotiationHandler {
                 logger.fine("Received payment request event: " + event.getId() + " for bidding: " + getBidEvent().getId());
                 AdPaymentRequestEvent paymentRequestEvent = (AdPaymentRequestEvent) event;
                 logger.fine("Initiating payout to " + lnurl);
-                lnurl
-                    .getService()
+                serviceResolver
+                    .apply(lnurl)
                     .then(r -> {
                         try {
                             logger.fine(
@@ -64,6 +64,19 @@ public abstract class NegotiationHandler {
         void onBail(NegotiationHandler neg, AdBailEvent event, boolean initiatedByCounterparty);
 
         void onClose(NegotiationHandler neg, AdOfferEvent offer);
+
+        /**
+         * Called when the negotiation is opened with an offer.
+         * @param neg
+         * @param offer
+         */
+        default void onOpen(NegotiationHandler neg, AdOfferEvent offer) {}
+
+        /**
+         * Called once, when the negotiation is marked as completed.
+         * @param neg
+         */
+        default void onComplete(NegotiationHandler neg) {}
     }
 
     private final NostrPool pool;
@@ -74,7 +87,7 @@ public abstract class NegotiationHandler {
     private final List<Listener> listeners = new CopyOnWriteArrayList<>();
     private final Instant createAt = Instant.now();
 
-    private AdOfferEvent offer; // the offer we are negotiating on
+    private volatile AdOfferEvent offer; // the offer we are negotiating on
     private int counterpartyPenalty = 0;
     private int localPenalty = 0;
 
@@ -110,7 +123,15 @@ public abstract class NegotiationHandler {
      * Mark the negotiation as completed.
      */
     public void markCompleted() {
+        if (completed) return;
         this.completed = true;
+        for (Listener listener : listeners) {
+            try {
+                listener.onComplete(this);
+            } catch (Exception e) {
+                logger.log(Level.WARNING, "Error in onComplete callback: ", e);
+            }
+        }
     }
 
     /**
@@ -161,6 +182,13 @@ public abstract class NegotiationHandler {
 
     public void open(@Nonnull AdOfferEvent offer) {
         this.offer = offer;
+        for (Listener listener : listeners) {
+            try {
+                listener.onOpen(this, offer);
+            } catch (Exception e) {
+                logger.log(Level.WARNING, "Error in onOpen callback: ", e);
+            }
+        }
     }
 
     /**
@@ -230,51 +258,59 @@ public abstract class NegotiationHandler {
         AdNegotiationEvent
             .cast(signer, ev, offer)
             .then(event -> {
-                try {
-                    if (event instanceof AdOfferEvent) return null;
-
-                    if (!event.isValid()) return null; // continue only if the event is valid
-
-                    if (event instanceof AdPowNegotiationEvent) {
-                        // ensure the counterparty if providing the requested proof of work (if any)
-                        if (
-                            // offer is a special case, we won't ask for pow right away as the counterparty has no
-                            // idea we want pow from them, yet
-                            !(event instanceof AdOfferEvent) && event.checkPow(counterpartyPenalty)
-                        ) {
-                            // if valid pow, we reset the counterparty penalty
-                            counterpartyPenalty = 0;
-                        } else {
-                            throw new RuntimeException("Counterparty failed to provide valid proof of work");
-                        }
+                handleEvent(event);
+                return null;
+            });
+    }
 
-                        // handle penalty increase driven by the counterparty
-                        AdPowNegotiationEvent powEvent = (AdPowNegotiationEvent) event;
-                        if (powEvent.getRequestedDifficultyToRespond() > localPenalty) {
-                            int p = powEvent.getRequestedDifficultyToRespond();
-                            if (p < 0) p = 0;
-                            if (p > maxDiff) {
-                                throw new Exception("Too difficult");
-                            }
-                            this.localPenalty = p;
-                        }
-                    }
+    /**
+     * Handle a negotiation event that was already decrypted and cast against the offer of this negotiation.
+     * @param event the event
+     */
+    public final void handleEvent(AdNegotiationEvent event) {
+        try {
+            if (event instanceof AdOfferEvent) return;
+
+            if (!event.isValid()) return; // continue only if the event is valid
+
+            if (event instanceof AdPowNegotiationEvent) {
+                // ensure the counterparty if providing the requested proof of work (if any)
+                if (
+                    // offer is a special case, we won't ask for pow right away as the counterparty has no
+                    // idea we want pow from them, yet
+                    !(event instanceof AdOfferEvent) && event.checkPow(counterpartyPenalty)
+                ) {
+                    // if valid pow, we reset the counterparty penalty
+                    counterpartyPenalty = 0;
+                } else {
+                    throw new RuntimeException("Counterparty failed to provide valid proof of work");
+                }
 
-                    // handle bailing
-                    if (event instanceof AdBailEvent) {
-                        AdBailEvent bailEvent = (AdBailEvent) event;
-                        for (Listener listener : listeners) {
-                            listener.onBail(this, bailEvent, true);
-                        }
-                        close();
+                // handle penalty increase driven by the counterparty
+                AdPowNegotiationEvent powEvent = (AdPowNegotiationEvent) event;
+                if (powEvent.getRequestedDifficultyToRespond() > localPenalty) {
+                    int p = powEvent.getRequestedDifficultyToRespond();
+                    if (p < 0) p = 0;
+                    if (p > maxDiff) {
+                        throw new Exception("Too difficult");
                     }
+                    this.localPenalty = p;
+                }
+            }
 
-                    onEvent(event);
-                } catch (Exception e) {
-                    throw new RuntimeException("Error processing event: " + event.getId(), e);
+            // handle bailing
+            if (event instanceof AdBailEvent) {
+                AdBailEvent bailEvent = (AdBailEvent) event;
+                for (Listener listener : listeners) {
+                    listener.onBail(this, bailEvent, true);
                 }
-                return null;
-            });
+                close();
+            }
+
+            onEvent(event);
+        } catch (Exception e) {
+            throw new RuntimeException("Error processing event: " + event.getId(), e);
+        }
     }
 
     protected abstract void onEvent(AdNegotiationEvent ev);
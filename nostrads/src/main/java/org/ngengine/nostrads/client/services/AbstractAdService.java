@@ -37,8 +37,11 @@ import java.io.Closeable;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
@@ -47,6 +50,7 @@ import org.ngengine.nostr4j.NostrFilter;
 import org.ngengine.nostr4j.NostrPool;
 import org.ngengine.nostr4j.NostrSubscription;
 import org.ngengine.nostr4j.event.NostrEvent.TagValue;
+import org.ngengine.nostr4j.event.SignedNostrEvent;
 import org.ngengine.nostr4j.keypair.NostrPublicKey;
 import org.ngengine.nostr4j.signer.NostrSigner;
 import org.ngengine.nostrads.client.negotiation.NegotiationHandler;
@@ -67,6 +71,8 @@ import org.ngengine.platform.NGEPlatform;
 public abstract class AbstractAdService implements Closeable {
 
     private static final Logger logger = Logger.getLogger(AbstractAdService.class.getName());
+    private static final long TIMEOUT_TICK_MILLIS = 1000;
+    private static final int TIMEOUT_WHEEL_SLOTS = 512;
     private final NostrSigner signer;
     private int maxDiff = 32;
     private final NostrPool pool;
@@ -74,8 +80,26 @@ public abstract class AbstractAdService implements Closeable {
     protected final AsyncExecutor executor;
     private volatile boolean closed = false;
     private final List<Runnable> closers = new ArrayList<>();
-    private final List<NegotiationHandler> activeNegotiations;
+    // active negotiations and their pending timeouts
+    private final Map<NegotiationHandler, List<TimingWheel.Timeout<NegotiationHandler>>> activeNegotiations =
+        new ConcurrentHashMap<>();
+    private final TimingWheel<NegotiationHandler> timeouts = new TimingWheel<>(
+        TIMEOUT_TICK_MILLIS,
+        TIMEOUT_WHEEL_SLOTS,
+        System.currentTimeMillis()
+    );
+    private final NegotiationHandler.Listener negotiationTracker = new NegotiationTracker();
+    // indexes of the active negotiations, to route events and cancellations without scanning them all
+    private final Map<String, NegotiationHandler> negotiationsByOffer = new ConcurrentHashMap<>();
+    private final Map<String, Set<NegotiationHandler>> negotiationsByBid = new ConcurrentHashMap<>();
+    private final Map<String, Set<NegotiationHandler>> negotiationsByCoordinates = new ConcurrentHashMap<>();
+    // negotiations registered before their offer was made, indexed by offer when they are opened
+    private final Set<NegotiationHandler> unopenedNegotiations = Collections.newSetFromMap(new ConcurrentHashMap<>());
     private final Duration negotiationAcceptanceTimeout = Duration.ofSeconds(5);
+    // ids of the events already received, the same event is usually delivered by several relays.
+    // Each subscription has its own, so an event consumed by one is never dropped for another.
+    private final SeenEvents seenCancellations = new SeenEvents();
+    private final SeenEvents seenNegotiationEvents = new SeenEvents();
 
     /**
      * Constructor for AbstractAdService.
@@ -90,13 +114,12 @@ public abstract class AbstractAdService implements Closeable {
         this.signer = signer;
         this.pool = pool;
         this.taxonomy = taxonomy;
-        this.activeNegotiations = new CopyOnWriteArrayList<>();
 
         AsyncExecutor updater = NGEPlatform.get().newAsyncExecutor(this.getClass());
 
         registerCloser(() -> {
             updater.close();
-            for (NegotiationHandler negotiation : activeNegotiations) {
+            for (NegotiationHandler negotiation : activeNegotiations.keySet()) {
                 try {
                     if (!negotiation.isCompleted()) {
                         negotiation
@@ -117,11 +140,16 @@ public abstract class AbstractAdService implements Closeable {
                 }
             }
             activeNegotiations.clear();
+            negotiationsByOffer.clear();
+            negotiationsByBid.clear();
+            negotiationsByCoordinates.clear();
+            unopenedNegotiations.clear();
         });
 
         NostrSubscription cancellationSub = getPool()
             .subscribe(new NostrFilter().withKind(5).limit(1).withTag("k", String.valueOf(AdBidEvent.KIND)));
         cancellationSub.addEventListener((sub, ev, eose) -> {
+            if (!seenCancellations.markSeen(ev.getId())) return;
             List<TagValue> cancelledIds = ev.getTag("e");
             if (cancelledIds != null) {
                 for (TagValue cancelledId : cancelledIds) {
@@ -159,30 +187,7 @@ public abstract class AbstractAdService implements Closeable {
                     new NostrFilter().withKind(AdNegotiationEvent.KIND).withTag("p", pubkey.asHex())
                 );
 
-                sub.addEventListener((s, event, stored) -> {
-                    String offerId = event.getFirstTag("d").get(0);
-                    if (offerId == null) return;
-
-                    NostrPublicKey author = event.getPubkey();
-                    for (NegotiationHandler negotiation : activeNegotiations) {
-                        AdOfferEvent offer = negotiation.getOffer();
-                        AdBidEvent bid = negotiation.getBidEvent();
-
-                        // if delegate side: the counterparty is the author of the offer
-                        // if offer side: the counterparty is the delegate
-                        NostrPublicKey counterparty = pubkey.equals(bid.getDelegate()) ? offer.getPubkey() : bid.getDelegate();
-
-                        if (offer.getId().equals(offerId) && counterparty.equals(author)) {
-                            // if the event is already handled, skip it
-                            if (negotiation.isClosed() || negotiation.isCompleted()) {
-                                return;
-                            }
-
-                            negotiation.onEvent(event);
-                            break;
-                        }
-                    }
-                });
+                sub.addEventListener((s, event, stored) -> dispatchNegotiationEvent(pubkey, event, stored));
                 registerCloser(() -> {
                     sub.close();
                 });
@@ -209,31 +214,187 @@ public abstract class AbstractAdService implements Closeable {
      * @param negotiation
      */
     protected void registerNegotiation(NegotiationHandler negotiation) {
-        this.activeNegotiations.add(negotiation);
+        // schedule the acceptance and hold time deadlines
+        Instant createdAt = negotiation.getCreatedAt();
+        List<TimingWheel.Timeout<NegotiationHandler>> negotiationTimeouts = new ArrayList<>(2);
+        negotiationTimeouts.add(
+            timeouts.schedule(negotiation, createdAt.plus(negotiationAcceptanceTimeout).toEpochMilli())
+        );
+        negotiationTimeouts.add(
+            timeouts.schedule(negotiation, createdAt.plus(negotiation.getBidEvent().getHoldTime()).toEpochMilli())
+        );
+        if (this.activeNegotiations.putIfAbsent(negotiation, negotiationTimeouts) != null) {
+            for (TimingWheel.Timeout<NegotiationHandler> timeout : negotiationTimeouts) {
+                timeout.cancel();
+            }
+            return;
+        }
+        AdBidEvent bid = negotiation.getBidEvent();
+        addToIndex(negotiationsByBid, bid.getId(), negotiation);
+        if (bid.getCoordinates() != null) {
+            addToIndex(negotiationsByCoordinates, bid.getCoordinates().coords(), negotiation);
+        }
+        AdOfferEvent offer = negotiation.getOffer();
+        if (offer != null) {
+            negotiationsByOffer.put(offer.getId(), negotiation);
+        } else {
+            unopenedNegotiations.add(negotiation);
+        }
+
+        negotiation.addListener(negotiationTracker);
+        if (offer == null && negotiation.getOffer() != null) {
+            // opened before the listener was added
+            indexOffer(negotiation, negotiation.getOffer());
+        }
+        if (negotiation.isClosed()) {
+            // closed before the listener was added
+            unregisterNegotiation(negotiation);
+        }
     }
 
-    protected void onAdCancelledById(@Nonnull String id) {
-        for (NegotiationHandler negotiation : activeNegotiations) {
-            if (negotiation.getBidEvent().getId().equals(id)) {
-                if (!negotiation.isClosed() && !negotiation.isCompleted()) {
-                    logger.info("Negotiation cancelled by id: " + id);
-                    negotiation.bail(Reason.CANCELLED);
-                }
+    private void indexOffer(NegotiationHandler negotiation, AdOfferEvent offer) {
+        if (unopenedNegotiations.remove(negotiation) && activeNegotiations.containsKey(negotiation)) {
+            negotiationsByOffer.put(offer.getId(), negotiation);
+            // unregistered concurrently
+            if (!activeNegotiations.containsKey(negotiation)) negotiationsByOffer.remove(offer.getId(), negotiation);
+        }
+    }
+
+    private void unregisterNegotiation(NegotiationHandler negotiation) {
+        List<TimingWheel.Timeout<NegotiationHandler>> negotiationTimeouts = this.activeNegotiations.remove(negotiation);
+        if (negotiationTimeouts == null) return;
+        for (TimingWheel.Timeout<NegotiationHandler> timeout : negotiationTimeouts) {
+            timeout.cancel();
+        }
+        AdBidEvent bid = negotiation.getBidEvent();
+        removeFromIndex(negotiationsByBid, bid.getId(), negotiation);
+        if (bid.getCoordinates() != null) {
+            removeFromIndex(negotiationsByCoordinates, bid.getCoordinates().coords(), negotiation);
+        }
+        AdOfferEvent offer = negotiation.getOffer();
+        if (offer != null) {
+            negotiationsByOffer.remove(offer.getId(), negotiation);
+        }
+        unopenedNegotiations.remove(negotiation);
+    }
+
+    private static void addToIndex(Map<String, Set<NegotiationHandler>> index, String key, NegotiationHandler negotiation) {
+        // mutate inside compute, so a concurrent remove can't drop the set while it is being added to
+        index.compute(
+            key,
+            (k, set) -> {
+                if (set == null) set = Collections.newSetFromMap(new ConcurrentHashMap<>());
+                set.add(negotiation);
+                return set;
             }
+        );
+    }
+
+    private static void removeFromIndex(
+        Map<String, Set<NegotiationHandler>> index,
+        String key,
+        NegotiationHandler negotiation
+    ) {
+        index.computeIfPresent(
+            key,
+            (k, set) -> {
+                set.remove(negotiation);
+                return set.isEmpty() ? null : set;
+            }
+        );
+    }
+
+    /**
+     * Route a negotiation event: events targeting an offer go to the negotiation that owns it, new offers
+     * targeting a bid go to {@link #onOffer(AdOfferEvent)}. Each event is decrypted only once.
+     */
+    private void dispatchNegotiationEvent(NostrPublicKey pubkey, SignedNostrEvent event, boolean stored) {
+        String target = event.getFirstTag("d").get(0);
+        if (target == null) return;
+
+        NegotiationHandler negotiation = getNegotiationByOffer(target);
+        if (negotiation == null) {
+            // a new offer, old ones are not admitted
+            if (stored || !isOfferTarget(target)) return;
+            if (!seenNegotiationEvents.markSeen(event.getId())) return;
+            AdNegotiationEvent
+                .cast(signer, event, null)
+                .then(ev -> {
+                    if (ev instanceof AdOfferEvent && !closed) {
+                        onOffer((AdOfferEvent) ev);
+                    }
+                    return null;
+                })
+                .catchException(ex -> logger.log(Level.FINE, "Error processing offer: " + event.getId(), ex));
+            return;
+        }
+
+        AdOfferEvent offer = negotiation.getOffer();
+        AdBidEvent bid = negotiation.getBidEvent();
+
+        // if delegate side: the counterparty is the author of the offer
+        // if offer side: the counterparty is the delegate
+        NostrPublicKey counterparty = pubkey.equals(bid.getDelegate()) ? offer.getPubkey() : bid.getDelegate();
+        if (!counterparty.equals(event.getPubkey())) return;
+
+        // if the event is already handled, skip it
+        if (negotiation.isClosed() || negotiation.isCompleted()) {
+            return;
         }
+        if (!seenNegotiationEvents.markSeen(event.getId())) return;
+
+        AdNegotiationEvent
+            .cast(signer, event, offer)
+            .then(ev -> {
+                if (negotiation.isClosed() || negotiation.isCompleted()) return null;
+                negotiation.handleEvent(ev);
+                return null;
+            })
+            .catchException(ex -> logger.log(Level.FINE, "Error processing negotiation event: " + event.getId(), ex));
     }
 
-    protected void onAdCancelledByCoordinates(@Nonnull String coordinates) {
-        for (NegotiationHandler negotiation : activeNegotiations) {
-            if (negotiation.getBidEvent().getCoordinates().coords().equals(coordinates)) {
-                if (!negotiation.isClosed() && !negotiation.isCompleted()) {
-                    logger.info("Negotiation cancelled by coordinates: " + coordinates);
-                    negotiation.bail(Reason.CANCELLED);
-                }
+    /**
+     * Check if new offers targeting the given bid should be delivered to {@link #onOffer(AdOfferEvent)}.
+     * By default no offer is admitted.
+     * @param bidId the id of the bid targeted by the offer
+     * @return true if the offer should be decrypted and delivered
+     */
+    protected boolean isOfferTarget(@Nonnull String bidId) {
+        return false;
+    }
+
+    /**
+     * Called with new offers targeting a bid for which {@link #isOfferTarget(String)} returned true.
+     * @param offer the decrypted offer
+     */
+    protected void onOffer(@Nonnull AdOfferEvent offer) {}
+
+    /**
+     * Find the active negotiation for an offer.
+     */
+    @Nullable
+    private NegotiationHandler getNegotiationByOffer(String offerId) {
+        return negotiationsByOffer.get(offerId);
+    }
+
+    private void bailAll(@Nullable Set<NegotiationHandler> negotiations, String reason) {
+        if (negotiations == null) return;
+        for (NegotiationHandler negotiation : negotiations) {
+            if (!negotiation.isClosed() && !negotiation.isCompleted()) {
+                logger.info("Negotiation cancelled by " + reason);
+                negotiation.bail(Reason.CANCELLED);
             }
         }
     }
 
+    protected void onAdCancelledById(@Nonnull String id) {
+        bailAll(negotiationsByBid.get(id), "id: " + id);
+    }
+
+    protected void onAdCancelledByCoordinates(@Nonnull String coordinates) {
+        bailAll(negotiationsByCoordinates.get(coordinates), "coordinates: " + coordinates);
+    }
+
     /**
      * Close the service and clean up resources.
      */
@@ -258,31 +419,75 @@ public abstract class AbstractAdService implements Closeable {
         this.maxDiff = maxDiff;
     }
 
-    // loop for cleanup and timeouts
+    /**
+     * Untracks negotiations when they are closed and closes them when they are completed.
+     */
+    private class NegotiationTracker implements NegotiationHandler.Listener {
+
+        @Override
+        public void onBail(NegotiationHandler neg, AdBailEvent event, boolean initiatedByCounterparty) {}
+
+        @Override
+        public void onOpen(NegotiationHandler neg, AdOfferEvent offer) {
+            indexOffer(neg, offer);
+        }
+
+        @Override
+        public void onClose(NegotiationHandler neg, AdOfferEvent offer) {
+            unregisterNegotiation(neg);
+        }
+
+        @Override
+        public void onComplete(NegotiationHandler neg) {
+            executor.run(() -> {
+                neg.close();
+                return null;
+            });
+        }
+    }
+
+    private boolean isTimedOut(NegotiationHandler negotiation, Instant now) {
+        // a deadline is reached when the wheel expires it, that is also exactly on a tick boundary
+        long nowMillis = now.toEpochMilli();
+        Instant createdAt = negotiation.getCreatedAt();
+        long holdDeadline = createdAt.plus(negotiation.getBidEvent().getHoldTime()).toEpochMilli();
+        long acceptanceDeadline = createdAt.plus(negotiationAcceptanceTimeout).toEpochMilli();
+        return (
+            // check for expired hold time
+            TimingWheel.isDue(holdDeadline, nowMillis) ||
+            (!negotiation.isAccepted() && TimingWheel.isDue(acceptanceDeadline, nowMillis))
+        );
+    }
+
+    private void onTimeout(NegotiationHandler negotiation, Instant now) {
+        if (negotiation.isClosed()) {
+            unregisterNegotiation(negotiation);
+        } else if (negotiation.isCompleted()) {
+            negotiation.close();
+        } else if (isTimedOut(negotiation, now)) {
+            logger.fine("Negotiation timeouted: " + negotiation.getBidEvent().getId());
+            // bail the negotiation for timeout, without waiting for the relays
+            negotiation
+                .bail(AdBailEvent.Reason.EXPIRED)
+                .catchException(ex -> {
+                    logger.log(Level.WARNING, "Error bailing negotiation: " + negotiation.getBidEvent().getId(), ex);
+                    // try again on the next tick
+                    if (!closed && !negotiation.isClosed()) {
+                        timeouts.schedule(negotiation, System.currentTimeMillis());
+                    }
+                });
+        }
+    }
+
+    // loop for timeouts, only the negotiations whose deadline has passed are visited
     private void loop() {
         executor.runLater(
             () -> {
                 if (closed) return null;
-                for (NegotiationHandler negotiation : activeNegotiations) {
+                Instant now = Instant.now();
+                for (NegotiationHandler negotiation : timeouts.advance(now.toEpochMilli())) {
                     try {
-                        if (negotiation.isCompleted()) {
-                            negotiation.close();
-                        } else if (
-                            // check for expired hold time
-                            negotiation.getCreatedAt().plus(negotiation.getBidEvent().getHoldTime()).isBefore(Instant.now()) ||
-                            (
-                                !negotiation.isAccepted() &&
-                                negotiation.getCreatedAt().plus(negotiationAcceptanceTimeout).isBefore(Instant.now())
-                            )
-                        ) {
-                            logger.fine("Negotiation timeouted: " + negotiation.getBidEvent().getId());
-                            // bail the negotiation for timeout
-                            negotiation.bail(AdBailEvent.Reason.EXPIRED).await();
-                        }
-                        if (negotiation.isClosed()) {
-                            activeNegotiations.remove(negotiation);
-                            continue;
-                        }
+                        onTimeout(negotiation, now);
                     } catch (Exception e) {
                         logger.log(Level.WARNING, "Error updating negotiation: " + negotiation.getBidEvent().getId(), e);
                     }
@@ -290,8 +495,8 @@ public abstract class AbstractAdService implements Closeable {
                 loop();
                 return null;
             },
-            1,
-            TimeUnit.SECONDS
+            TIMEOUT_TICK_MILLIS,
+            TimeUnit.MILLISECONDS
         );
     }
 
@@ -0,0 +1,263 @@
+/**
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2025, Riccardo Balbo
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.ngengine.nostrads.client.services;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.ngengine.nostr4j.keypair.NostrPublicKey;
+import org.ngengine.platform.AsyncExecutor;
+import org.ngengine.platform.AsyncTask;
+import org.ngengine.platform.NGEPlatform;
+import org.ngengine.platform.VStore;
+
+/**
+ * Stores all the penalties in a single {@link PenaltyTable}, persisted in the VStore as a snapshot plus an
+ * append log of small segments, one per batch. When there are too many segments they are compacted into a
+ * new snapshot.
+ *
+ * The whole table is loaded in memory the first time it is used, and penalties stored with the per-file
+ * layout of {@link FilePenaltyEngine} are migrated into it.
+ */
+public class CompactPenaltyEngine implements PenaltyEngine {
+
+    private static final Logger logger = Logger.getLogger(CompactPenaltyEngine.class.getName());
+    private static final String SNAPSHOT_PREFIX = "nostrads/penalties/table-";
+    private static final String SEGMENT_PREFIX = "nostrads/penalties/log-";
+    private static final String SUFFIX = ".dat";
+    private static final int MAGIC = 0x5450414e; // "NAPT"
+    private static final int HEADER_SIZE = 8;
+
+    private final VStore store;
+    private final AsyncExecutor executor;
+    private final PenaltyTable table = new PenaltyTable(); // guarded by itself
+    private volatile boolean opened = false;
+    private volatile int maxSegments = 16;
+
+    // persistence state, guarded by ioLock
+    private final Object ioLock = new Object();
+    private long seq = 0;
+    private long snapshotSeq = -1;
+    private final List<String> segments = new ArrayList<>();
+
+    public CompactPenaltyEngine(VStore store) {
+        this.store = store;
+        this.executor = NGEPlatform.get().newAsyncExecutor(CompactPenaltyEngine.class);
+    }
+
+    /**
+     * Set how many segments can be appended before they are compacted into a new snapshot.
+     */
+    public void setMaxSegments(int maxSegments) {
+        this.maxSegments = maxSegments;
+    }
+
+    private static long parseSeq(String path, String prefix) {
+        if (!path.startsWith(prefix) || !path.endsWith(SUFFIX)) return -1;
+        try {
+            return Long.parseLong(path.substring(prefix.length(), path.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private void open() throws Exception {
+        // must be called while holding ioLock
+        if (opened) return;
+        // start over if a previous attempt failed halfway
+        segments.clear();
+        snapshotSeq = -1;
+        synchronized (table) {
+            table.clear();
+        }
+        List<Long> snapshots = new ArrayList<>();
+        List<Long> logs = new ArrayList<>();
+        for (String path : store.listAll().await()) {
+            long s = parseSeq(path, SNAPSHOT_PREFIX);
+            if (s >= 0) snapshots.add(s);
+            s = parseSeq(path, SEGMENT_PREFIX);
+            if (s >= 0) logs.add(s);
+        }
+        Collections.sort(snapshots, Collections.reverseOrder());
+        Collections.sort(logs);
+
+        // newest valid snapshot, a partially written one is skipped
+        for (long s : snapshots) {
+            byte[] data = store.readFully(SNAPSHOT_PREFIX + s + SUFFIX).await();
+            if (
+                data.length >= HEADER_SIZE &&
+                PenaltyTable.readInt(data, 0) == MAGIC &&
+                data.length == HEADER_SIZE + PenaltyTable.readInt(data, 4) * PenaltyTable.RECORD_SIZE
+            ) {
+                synchronized (table) {
+                    table.putRecords(data, HEADER_SIZE, data.length - HEADER_SIZE);
+                }
+                snapshotSeq = s;
+                break;
+            }
+            logger.warning("Skipping invalid POW penalties snapshot " + s);
+        }
+        seq = Math.max(seq, snapshotSeq);
+
+        // replay the log
+        for (long s : logs) {
+            String path = SEGMENT_PREFIX + s + SUFFIX;
+            if (s <= snapshotSeq) {
+                store.delete(path).await(); // already in the snapshot
+                continue;
+            }
+            byte[] data = store.readFully(path).await();
+            synchronized (table) {
+                table.putRecords(data, 0, data.length);
+            }
+            segments.add(path);
+            seq = Math.max(seq, s);
+        }
+        for (long s : snapshots) {
+            if (s != snapshotSeq) store.delete(SNAPSHOT_PREFIX + s + SUFFIX).await();
+        }
+
+        // migrate the per-file layout
+        Map<NostrPublicKey, Integer> legacy = FilePenaltyEngine.readAll(store);
+        if (!legacy.isEmpty()) {
+            synchronized (table) {
+                for (Map.Entry<NostrPublicKey, Integer> e : legacy.entrySet()) {
+                    byte[] key = PenaltyTable.toKey(e.getKey());
+                    if (!table.contains(key)) table.put(key, e.getValue());
+                }
+            }
+            compact0();
+            FilePenaltyEngine.deleteAll(store);
+            logger.info("Migrated " + legacy.size() + " POW penalties from the per-file layout");
+        }
+        opened = true;
+        logger.fine("Loaded POW penalties table with " + table.size() + " parties and " + segments.size() + " segments");
+    }
+
+    @Override
+    public AsyncTask<Integer> load(NostrPublicKey party) {
+        byte[] key = PenaltyTable.toKey(party);
+        if (opened) {
+            int penalty;
+            synchronized (table) {
+                penalty = table.get(key, 0);
+            }
+            return NGEPlatform.get().wrapPromise((res, rej) -> res.accept(penalty));
+        }
+        return executor.run(() -> {
+            synchronized (ioLock) {
+                open();
+            }
+            synchronized (table) {
+                return table.get(key, 0);
+            }
+        });
+    }
+
+    @Override
+    public AsyncTask<Void> store(Map<NostrPublicKey, Integer> batch) {
+        return executor.run(() -> {
+            synchronized (ioLock) {
+                open();
+                byte[] records = new byte[batch.size() * PenaltyTable.RECORD_SIZE];
+                int pos = 0;
+                synchronized (table) {
+                    for (Map.Entry<NostrPublicKey, Integer> e : batch.entrySet()) {
+                        byte[] key = PenaltyTable.toKey(e.getKey());
+                        table.put(key, e.getValue());
+                        PenaltyTable.writeRecord(records, pos, key, e.getValue());
+                        pos += PenaltyTable.RECORD_SIZE;
+                    }
+                }
+                String path = SEGMENT_PREFIX + (++seq) + SUFFIX;
+                store.writeFully(path, records).await();
+                segments.add(path);
+                if (segments.size() > maxSegments) {
+                    compact0();
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Write a new snapshot and drop the log segments it replaces.
+     * Parties with no penalty are not included in the snapshot.
+     */
+    public AsyncTask<Void> compact() {
+        return executor.run(() -> {
+            synchronized (ioLock) {
+                open();
+                compact0();
+            }
+            return null;
+        });
+    }
+
+    private void compact0() throws Exception {
+        // must be called while holding ioLock
+        byte[] records;
+        synchronized (table) {
+            records = table.toRecords();
+        }
+        byte[] data = new byte[HEADER_SIZE + records.length];
+        PenaltyTable.writeInt(data, 0, MAGIC);
+        PenaltyTable.writeInt(data, 4, records.length / PenaltyTable.RECORD_SIZE);
+        System.arraycopy(records, 0, data, HEADER_SIZE, records.length);
+
+        long s = ++seq;
+        store.writeFully(SNAPSHOT_PREFIX + s + SUFFIX, data).await();
+
+        // the new snapshot is complete, the old files can go
+        if (snapshotSeq >= 0) {
+            store.delete(SNAPSHOT_PREFIX + snapshotSeq + SUFFIX).await();
+        }
+        for (String path : segments) {
+            try {
+                store.delete(path).await();
+            } catch (Exception e) {
+                logger.log(Level.WARNING, "Failed to delete POW penalties segment " + path, e);
+            }
+        }
+        segments.clear();
+        snapshotSeq = s;
+        logger.fine("Compacted POW penalties table, " + (records.length / PenaltyTable.RECORD_SIZE) + " parties");
+    }
+
+    @Override
+    public void close() {
+        executor.close();
+    }
+}
@@ -0,0 +1,158 @@
+/**
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2025, Riccardo Balbo
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.ngengine.nostrads.client.services;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.ngengine.nostr4j.keypair.NostrPublicKey;
+import org.ngengine.platform.AsyncTask;
+import org.ngengine.platform.NGEPlatform;
+import org.ngengine.platform.VStore;
+
+/**
+ * The original storage layout: one 4-byte file per party in the VStore.
+ * Kept to read existing stores, see {@link CompactPenaltyEngine} for the default engine.
+ */
+public class FilePenaltyEngine implements PenaltyEngine {
+
+    private static final Logger logger = Logger.getLogger(FilePenaltyEngine.class.getName());
+    static final String PREFIX = "nostrads/powlist/";
+    static final String SUFFIX = ".dat";
+
+    private final VStore store;
+
+    public FilePenaltyEngine(VStore store) {
+        this.store = store;
+    }
+
+    private static String getPath(NostrPublicKey party) {
+        return PREFIX + party.asBech32() + SUFFIX;
+    }
+
+    @Override
+    public AsyncTask<Integer> load(NostrPublicKey party) {
+        String path = getPath(party);
+        String pubkey = party.asBech32();
+        return store
+            .exists(path)
+            .catchException(ex -> {
+                logger.log(Level.WARNING, "Failed to check if POW penalty exists for " + pubkey, ex);
+            })
+            .compose(exists -> {
+                if (!exists) {
+                    logger.fine("No POW penalty found for " + pubkey + ", returning default penalty of 0");
+                    return NGEPlatform
+                        .get()
+                        .wrapPromise((res, rej) -> {
+                            res.accept(0);
+                        });
+                }
+                return store
+                    .read(path)
+                    .then(is -> {
+                        byte[] data = new byte[4];
+                        try {
+                            int read = is.read(data);
+                            if (read == 4) {
+                                int penalty = PenaltyTable.readInt(data, 0);
+                                logger.fine("Read POW penalty for " + pubkey + ": " + penalty);
+                                return penalty;
+                            } else {
+                                logger.warning(
+                                    "Failed to read POW penalty for " + pubkey + ", expected 4 bytes but got " + read
+                                );
+                                return 0; // default penalty
+                            }
+                        } catch (IOException e) {
+                            logger.log(Level.WARNING, "Failed to read POW penalty for " + pubkey, e);
+                            return 0; // default penalty
+                        } finally {
+                            try {
+                                is.close();
+                            } catch (IOException e) {
+                                logger.log(Level.WARNING, "Failed to close input stream", e);
+                            }
+                        }
+                    });
+            });
+    }
+
+    @Override
+    public AsyncTask<Void> store(Map<NostrPublicKey, Integer> batch) {
+        List<AsyncTask<Void>> writes = new ArrayList<>();
+        for (Map.Entry<NostrPublicKey, Integer> e : batch.entrySet()) {
+            byte[] data = new byte[4];
+            PenaltyTable.writeInt(data, 0, e.getValue());
+            writes.add(store.writeFully(getPath(e.getKey()), data));
+        }
+        return NGEPlatform.get().awaitAll(writes).then(r -> null);
+    }
+
+    /**
+     * Read all the penalties stored with this layout.
+     * Used by the other engines to migrate existing stores, see {@link #deleteAll(VStore)}.
+     */
+    public static Map<NostrPublicKey, Integer> readAll(VStore store) throws Exception {
+        Map<NostrPublicKey, Integer> penalties = new HashMap<>();
+        for (String path : store.listAll().await()) {
+            if (!path.startsWith(PREFIX) || !path.endsWith(SUFFIX)) continue;
+            String npub = path.substring(PREFIX.length(), path.length() - SUFFIX.length());
+            try {
+                byte[] data = store.readFully(path).await();
+                if (data.length == 4) {
+                    penalties.put(NostrPublicKey.fromBech32(npub), PenaltyTable.readInt(data, 0));
+                }
+            } catch (Exception e) {
+                logger.log(Level.WARNING, "Failed to read POW penalty " + path, e);
+            }
+        }
+        return penalties;
+    }
+
+    /**
+     * Delete all the penalties stored with this layout, once they are migrated.
+     */
+    public static void deleteAll(VStore store) throws Exception {
+        for (String path : store.listAll().await()) {
+            if (!path.startsWith(PREFIX) || !path.endsWith(SUFFIX)) continue;
+            store.delete(path).await();
+        }
+    }
+
+    @Override
+    public void close() {}
+}
@@ -31,109 +31,218 @@
 
 package org.ngengine.nostrads.client.services;
 
-import java.io.IOException;
+import jakarta.annotation.Nullable;
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import org.ngengine.nostr4j.event.SignedNostrEvent;
+import org.ngengine.nostr4j.keypair.NostrPublicKey;
 import org.ngengine.nostrads.client.negotiation.NegotiationHandler;
 import org.ngengine.nostrads.protocol.AdBidEvent;
+import org.ngengine.platform.AsyncExecutor;
 import org.ngengine.platform.AsyncTask;
 import org.ngengine.platform.NGEPlatform;
 import org.ngengine.platform.VStore;
 
 /**
  * PenaltyStorage is responsible for storing and retrieving POW penalties for Ad parties.
- * It uses a VStore to persist the penalties associated with each party's public key.
+ * It uses a {@link PenaltyEngine} to persist the penalties associated with each party's public key.
+ *
+ * Only the penalties that changed since the last flush and a bounded set of recently used ones are kept in
+ * memory, every other lookup reads through to the engine.
+ * Changes are written back to the store in batches, every {@link #getFlushInterval()} and on close.
  */
-public class PenaltyStorage {
+public class PenaltyStorage implements Closeable {
 
     private static final Logger logger = Logger.getLogger(PenaltyStorage.class.getName());
-    private final VStore store;
+    private static final int MAX_RECENT = 4096;
+    private final PenaltyEngine engine;
+
+    // penalties changed since the last flush, by pubkey
+    private final Map<NostrPublicKey, Integer> dirty = new ConcurrentHashMap<>();
+    // recently used penalties, in access order, so lookups of active parties don't touch the engine
+    private final Map<NostrPublicKey, Integer> recent = Collections.synchronizedMap(
+        new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<NostrPublicKey, Integer> eldest) {
+                return size() > MAX_RECENT;
+            }
+        }
+    );
+    // in flight loads, so concurrent lookups of the same party read the store only once
+    private final Map<NostrPublicKey, AsyncTask<Integer>> loading = new ConcurrentHashMap<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private final AsyncExecutor flushExecutor;
+    private final Runnable closer;
+    private volatile Duration flushInterval = Duration.ofSeconds(5);
 
+    /**
+     * Create a storage backed by a {@link CompactPenaltyEngine} on the given store.
+     */
     public PenaltyStorage(VStore store) {
-        this.store = store;
+        this(new CompactPenaltyEngine(store));
     }
 
-    private String getPath(SignedNostrEvent event) {
-        return "nostrads/powlist/" + event.getPubkey().asBech32() + ".dat";
-    }
+    public PenaltyStorage(PenaltyEngine engine) {
+        this.engine = engine;
+        this.flushExecutor = NGEPlatform.get().newAsyncExecutor(PenaltyStorage.class);
 
-    public void set(NegotiationHandler neg) {
-        int v = neg.getCounterpartyPenalty();
-        this.store.write(getPath(neg.getBidEvent()))
-            .then(os -> {
-                try {
-                    os.write(
-                        new byte[] {
-                            (byte) (v & 0xFF),
-                            (byte) ((v >> 8) & 0xFF),
-                            (byte) ((v >> 16) & 0xFF),
-                            (byte) ((v >> 24) & 0xFF),
+        // the finalizer must not reference this
+        Map<NostrPublicKey, Integer> dirty = this.dirty;
+        Map<NostrPublicKey, Integer> recent = this.recent;
+        AsyncExecutor flushExecutor = this.flushExecutor;
+        this.closer =
+            NGEPlatform
+                .get()
+                .registerFinalizer(
+                    this,
+                    () -> {
+                        try {
+                            flush(engine, dirty, recent).await();
+                        } catch (Exception e) {
+                            logger.log(Level.WARNING, "Failed to flush POW penalties", e);
                         }
-                    );
-                } catch (IOException e) {
-                    logger.log(Level.WARNING, "Failed to store POW penalty", e);
-                } finally {
-                    try {
-                        os.close();
-                    } catch (IOException e) {
-                        logger.log(Level.WARNING, "Failed to close output stream", e);
+                        flushExecutor.close();
+                        engine.close();
                     }
+                );
+    }
+
+    /**
+     * Set how long the changed penalties are kept in memory before being written to the store.
+     */
+    public void setFlushInterval(Duration flushInterval) {
+        this.flushInterval = flushInterval;
+    }
+
+    public Duration getFlushInterval() {
+        return flushInterval;
+    }
+
+    public void set(NegotiationHandler neg) {
+        dirty.put(neg.getBidEvent().getPubkey(), neg.getCounterpartyPenalty());
+        scheduleFlush();
+    }
+
+    private void scheduleFlush() {
+        if (!flushScheduled.compareAndSet(false, true)) return;
+        flushExecutor.runLater(
+            () -> {
+                flushScheduled.set(false);
+                flush().await();
+                return null;
+            },
+            flushInterval.toMillis(),
+            TimeUnit.MILLISECONDS
+        );
+    }
+
+    /**
+     * Write all the changed penalties to the store.
+     * @return an AsyncTask that completes when all the penalties are written
+     */
+    public AsyncTask<Void> flush() {
+        return flush(engine, dirty, recent);
+    }
+
+    private static AsyncTask<Void> flush(
+        PenaltyEngine engine,
+        Map<NostrPublicKey, Integer> dirty,
+        Map<NostrPublicKey, Integer> recent
+    ) {
+        Map<NostrPublicKey, Integer> batch = new HashMap<>(dirty);
+        if (batch.isEmpty()) {
+            return NGEPlatform.get().wrapPromise((res, rej) -> res.accept(null));
+        }
+        logger.fine("Flushing " + batch.size() + " POW penalties");
+        return engine
+            .store(batch)
+            .then(r -> {
+                for (Map.Entry<NostrPublicKey, Integer> e : batch.entrySet()) {
+                    recent.put(e.getKey(), e.getValue());
+                    // a penalty set while storing stays dirty for the next flush
+                    dirty.remove(e.getKey(), e.getValue());
                 }
                 return null;
+            })
+            .catchException(ex -> {
+                // still dirty, retried with the next flush
+                logger.log(Level.WARNING, "Failed to store POW penalties", ex);
             });
     }
 
+    /**
+     * Get the penalty for the author of the bid only if it is already in memory.
+     * @return the penalty or null if it was not loaded yet
+     */
+    @Nullable
+    public Integer getCached(AdBidEvent ev) {
+        NostrPublicKey pubkey = ev.getPubkey();
+        Integer penalty = dirty.get(pubkey);
+        return penalty != null ? penalty : recent.get(pubkey);
+    }
+
     public AsyncTask<Integer> get(AdBidEvent ev) {
-        String path = getPath(ev);
-        String pubkey = ev.getPubkey().asBech32();
-        return store
-            .exists(path)
-            .catchException(ex -> {
-                logger.log(Level.WARNING, "Failed to check if POW penalty exists for " + pubkey, ex);
-            })
-            .compose(exists -> {
-                if (!exists) {
-                    logger.fine("No POW penalty found for " + pubkey + ", returning default penalty of 0");
-                    return NGEPlatform
-                        .get()
-                        .wrapPromise((res, rej) -> {
-                            res.accept(0);
-                        });
-                }
-                return store
-                    .read(path)
-                    .then(is -> {
-                        byte[] data = new byte[4];
-                        try {
-                            int read = is.read(data);
-                            if (read == 4) {
-                                int penalty =
-                                    (
-                                        (data[0] & 0xFF) |
-                                        ((data[1] & 0xFF) << 8) |
-                                        ((data[2] & 0xFF) << 16) |
-                                        ((data[3] & 0xFF) << 24)
-                                    );
-                                logger.fine("Read POW penalty for " + pubkey + ": " + penalty);
-                                return penalty;
-                            } else {
-                                logger.warning(
-                                    "Failed to read POW penalty for " + pubkey + ", expected 4 bytes but got " + read
-                                );
-                                return 0; // default penalty
-                            }
-                        } catch (IOException e) {
-                            logger.log(Level.WARNING, "Failed to read POW penalty for " + pubkey, e);
-                            return 0; // default penalty
-                        } finally {
-                            try {
-                                is.close();
-                            } catch (IOException e) {
-                                logger.log(Level.WARNING, "Failed to close input stream", e);
-                            }
-                        }
+        NostrPublicKey pubkey = ev.getPubkey();
+        Integer cached = getCached(ev);
+        if (cached != null) {
+            return NGEPlatform.get().wrapPromise((res, rej) -> res.accept(cached));
+        }
+        boolean[] started = { false };
+        AsyncTask<Integer> task = loading.computeIfAbsent(
+            pubkey,
+            k -> {
+                started[0] = true;
+                return engine
+                    .load(k)
+                    .then(penalty -> {
+                        // a penalty set while loading is newer than the stored one
+                        Integer current = dirty.get(k);
+                        if (current != null) return current;
+                        recent.put(k, penalty);
+                        return penalty;
                     });
-            });
+            }
+        );
+        if (started[0]) {
+            task
+                .then(r -> loading.remove(pubkey, task))
+                .catchException(ex -> {
+                    loading.remove(pubkey, task);
+                });
+        }
+        return task;
+    }
+
+    /**
+     * Get the penalties for a batch of bids.
+     * Each party is loaded from the store at most once and all the loads run concurrently.
+     * @return an AsyncTask that completes with the penalties in the same order of the bids
+     */
+    public AsyncTask<List<Integer>> get(Collection<AdBidEvent> evs) {
+        Map<NostrPublicKey, AsyncTask<Integer>> byParty = new HashMap<>();
+        List<AsyncTask<Integer>> tasks = new ArrayList<>(evs.size());
+        for (AdBidEvent ev : evs) {
+            tasks.add(byParty.computeIfAbsent(ev.getPubkey(), k -> get(ev)));
+        }
+        return NGEPlatform.get().awaitAll(tasks);
+    }
+
+    /**
+     * Flush the pending penalties and release the resources.
+     */
+    @Override
+    public void close() {
+        closer.run();
     }
 }
@@ -0,0 +1,220 @@
+/**
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2025, Riccardo Balbo
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.ngengine.nostrads.client.services;
+
+import org.ngengine.nostr4j.keypair.NostrPublicKey;
+
+/**
+ * An open-addressed hash table of penalties keyed by the raw 32-byte pubkey.
+ * Keys are stored inline in a single array, so the table costs ~40 bytes per party and no objects.
+ *
+ * The table is serialized as a sequence of {@link #RECORD_SIZE} bytes records
+ * (32 bytes pubkey + 4 bytes little endian penalty), later records override earlier ones.
+ *
+ * Not thread safe.
+ */
+public final class PenaltyTable {
+
+    public static final int KEY_SIZE = 32;
+    public static final int RECORD_SIZE = KEY_SIZE + 4;
+    private static final float LOAD_FACTOR = 0.7f;
+
+    private byte[] keys;
+    private int[] values;
+    private boolean[] used;
+    private int mask;
+    private int size;
+
+    PenaltyTable() {
+        this(1024);
+    }
+
+    PenaltyTable(int expectedSize) {
+        int capacity = 16;
+        while (capacity * LOAD_FACTOR < expectedSize) capacity <<= 1;
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        keys = new byte[capacity * KEY_SIZE];
+        values = new int[capacity];
+        used = new boolean[capacity];
+        mask = capacity - 1;
+        size = 0;
+    }
+
+    public static byte[] toKey(NostrPublicKey pubkey) {
+        String hex = pubkey.asHex();
+        byte[] key = new byte[KEY_SIZE];
+        for (int i = 0; i < KEY_SIZE; i++) {
+            key[i] = (byte) ((Character.digit(hex.charAt(i * 2), 16) << 4) | Character.digit(hex.charAt(i * 2 + 1), 16));
+        }
+        return key;
+    }
+
+    public static NostrPublicKey fromKey(byte[] data, int offset) {
+        StringBuilder hex = new StringBuilder(KEY_SIZE * 2);
+        for (int i = 0; i < KEY_SIZE; i++) {
+            int b = data[offset + i] & 0xFF;
+            hex.append(Character.forDigit(b >> 4, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return NostrPublicKey.fromHex(hex.toString());
+    }
+
+    public static int hash(byte[] key, int offset) {
+        // pubkeys are uniformly distributed, the first 8 bytes are a good enough hash
+        long h = 0;
+        for (int i = 0; i < 8; i++) {
+            h = (h << 8) | (key[offset + i] & 0xFF);
+        }
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private int find(byte[] key, int offset) {
+        int slot = hash(key, offset) & mask;
+        while (used[slot]) {
+            if (equals(slot, key, offset)) return slot;
+            slot = (slot + 1) & mask;
+        }
+        return ~slot; // free slot where the key would be inserted
+    }
+
+    private boolean equals(int slot, byte[] key, int offset) {
+        int base = slot * KEY_SIZE;
+        for (int i = 0; i < KEY_SIZE; i++) {
+            if (keys[base + i] != key[offset + i]) return false;
+        }
+        return true;
+    }
+
+    void clear() {
+        allocate(used.length);
+    }
+
+    int size() {
+        return size;
+    }
+
+    int capacity() {
+        return used.length;
+    }
+
+    boolean contains(byte[] key) {
+        return find(key, 0) >= 0;
+    }
+
+    int get(byte[] key, int defaultValue) {
+        int slot = find(key, 0);
+        return slot >= 0 ? values[slot] : defaultValue;
+    }
+
+    void put(byte[] key, int value) {
+        put(key, 0, value);
+    }
+
+    private void put(byte[] key, int offset, int value) {
+        int slot = find(key, offset);
+        if (slot >= 0) {
+            values[slot] = value;
+            return;
+        }
+        if (size + 1 > used.length * LOAD_FACTOR) {
+            grow();
+            slot = find(key, offset);
+        }
+        slot = ~slot;
+        System.arraycopy(key, offset, keys, slot * KEY_SIZE, KEY_SIZE);
+        values[slot] = value;
+        used[slot] = true;
+        size++;
+    }
+
+    private void grow() {
+        byte[] oldKeys = keys;
+        int[] oldValues = values;
+        boolean[] oldUsed = used;
+        allocate(oldUsed.length * 2);
+        for (int i = 0; i < oldUsed.length; i++) {
+            if (oldUsed[i]) put(oldKeys, i * KEY_SIZE, oldValues[i]);
+        }
+    }
+
+    /**
+     * Apply a sequence of serialized records.
+     */
+    void putRecords(byte[] data, int offset, int length) {
+        int end = offset + length - (length % RECORD_SIZE); // ignore a truncated record
+        for (int i = offset; i < end; i += RECORD_SIZE) {
+            put(data, i, readInt(data, i + KEY_SIZE));
+        }
+    }
+
+    /**
+     * Serialize the table, skipping the parties with no penalty.
+     */
+    byte[] toRecords() {
+        int count = 0;
+        for (int i = 0; i < used.length; i++) {
+            if (used[i] && values[i] != 0) count++;
+        }
+        byte[] out = new byte[count * RECORD_SIZE];
+        int pos = 0;
+        for (int i = 0; i < used.length; i++) {
+            if (!used[i] || values[i] == 0) continue;
+            System.arraycopy(keys, i * KEY_SIZE, out, pos, KEY_SIZE);
+            writeInt(out, pos + KEY_SIZE, values[i]);
+            pos += RECORD_SIZE;
+        }
+        return out;
+    }
+
+    static void writeRecord(byte[] out, int offset, byte[] key, int value) {
+        System.arraycopy(key, 0, out, offset, KEY_SIZE);
+        writeInt(out, offset + KEY_SIZE, value);
+    }
+
+    static int readInt(byte[] data, int offset) {
+        return (
+            (data[offset] & 0xFF) |
+            ((data[offset + 1] & 0xFF) << 8) |
+            ((data[offset + 2] & 0xFF) << 16) |
+            ((data[offset + 3] & 0xFF) << 24)
+        );
+    }
+
+    static void writeInt(byte[] out, int offset, int v) {
+        out[offset] = (byte) (v & 0xFF);
+        out[offset + 1] = (byte) ((v >> 8) & 0xFF);
+        out[offset + 2] = (byte) ((v >> 16) & 0xFF);
+        out[offset + 3] = (byte) ((v >> 24) & 0xFF);
+    }
+}
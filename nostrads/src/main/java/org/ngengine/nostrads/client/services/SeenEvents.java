@@ -0,0 +1,160 @@
+/**
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2025, Riccardo Balbo
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.ngengine.nostrads.client.services;
+
+import jakarta.annotation.Nonnull;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded set of the ids of the events that were already received, used to drop the copies of the same
+ * event delivered by different relays before they are parsed or decrypted.
+ *
+ * The ids are kept in two generations: when the current generation is full it replaces the previous one,
+ * that is dropped. So at least the last maxSize/2 ids and at most the last maxSize ids are remembered, with
+ * no per-entry bookkeeping. Ids are stored as 32 bytes.
+ */
+public final class SeenEvents {
+
+    public static final int DEFAULT_MAX_SIZE = 200_000;
+
+    private final int generationSize;
+    private Set<Object> current = new HashSet<>(); // guarded by this
+    private Set<Object> previous = new HashSet<>(); // guarded by this
+    private final AtomicLong duplicates = new AtomicLong();
+
+    public SeenEvents() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * Create a new seen events filter
+     * @param maxSize the maximum number of ids to remember
+     */
+    public SeenEvents(int maxSize) {
+        if (maxSize < 2) throw new IllegalArgumentException("maxSize must be at least 2");
+        this.generationSize = maxSize / 2;
+    }
+
+    /**
+     * Mark an event as seen.
+     * @param id the event id
+     * @return true if the event was not seen before, false if it is a duplicate
+     */
+    public boolean markSeen(@Nonnull String id) {
+        Object key = toKey(id);
+        synchronized (this) {
+            if (previous.contains(key) || !current.add(key)) {
+                duplicates.incrementAndGet();
+                return false;
+            }
+            if (current.size() >= generationSize) {
+                previous = current;
+                current = new HashSet<>();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Check if an event was seen, without marking it.
+     * @param id the event id
+     */
+    public boolean isSeen(@Nonnull String id) {
+        Object key = toKey(id);
+        synchronized (this) {
+            return current.contains(key) || previous.contains(key);
+        }
+    }
+
+    private static Object toKey(String id) {
+        if (id.length() != 64) return id;
+        long[] v = new long[4];
+        for (int i = 0; i < 64; i++) {
+            int d = Character.digit(id.charAt(i), 16);
+            if (d < 0) return id; // not an hex id, kept as it is
+            v[i >> 4] = (v[i >> 4] << 4) | d;
+        }
+        return new Id(v[0], v[1], v[2], v[3]);
+    }
+
+    /**
+     * Get the number of ids remembered.
+     */
+    public synchronized int size() {
+        return current.size() + previous.size();
+    }
+
+    /**
+     * Get the number of duplicates dropped.
+     */
+    public long getDuplicates() {
+        return duplicates.get();
+    }
+
+    public synchronized void clear() {
+        current = new HashSet<>();
+        previous = new HashSet<>();
+    }
+
+    @Override
+    public String toString() {
+        return "SeenEvents{size=" + size() + ", maxSize=" + (generationSize * 2) + ", duplicates=" + getDuplicates() + "}";
+    }
+
+    private static final class Id {
+
+        private final long a, b, c, d;
+
+        Id(long a, long b, long c, long d) {
+            this.a = a;
+            this.b = b;
+            this.c = c;
+            this.d = d;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Id)) return false;
+            Id id = (Id) o;
+            return a == id.a && b == id.b && c == id.c && d == id.d;
+        }
+
+        @Override
+        public int hashCode() {
+            // ids are hashes, the first bytes are already well distributed
+            return (int) (a ^ (a >>> 32));
+        }
+    }
+}
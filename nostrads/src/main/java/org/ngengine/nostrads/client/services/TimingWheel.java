@@ -0,0 +1,176 @@
+/**
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2025, Riccardo Balbo
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.ngengine.nostrads.client.services;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hashed timing wheel: items are hashed by their deadline into a ring of slots, one per tick, and items
+ * further away than one turn of the wheel just stay in their slot until enough turns have passed.
+ *
+ * Scheduling and cancelling are O(1), advancing the wheel only visits the slots of the elapsed ticks.
+ * The wheel doesn't run by itself, it is advanced by calling {@link #advance(long)} periodically.
+ */
+public final class TimingWheel<T> {
+
+    /**
+     * A scheduled item, that can be cancelled before it expires.
+     */
+    public static final class Timeout<T> {
+
+        private final TimingWheel<T> wheel;
+        private final T item;
+        private final long deadlineTick;
+        private boolean done; // guarded by the wheel
+
+        private Timeout(TimingWheel<T> wheel, T item, long deadlineTick) {
+            this.wheel = wheel;
+            this.item = item;
+            this.deadlineTick = deadlineTick;
+        }
+
+        public T getItem() {
+            return item;
+        }
+
+        /**
+         * Cancel this timeout, it does nothing if the timeout already expired.
+         */
+        public void cancel() {
+            synchronized (wheel) {
+                if (done) return;
+                done = true;
+                wheel.size--;
+            }
+        }
+    }
+
+    private final long tickMillis;
+    private final List<List<Timeout<T>>> slots;
+    private long currentTick;
+    private int size = 0;
+
+    /**
+     * Create a new timing wheel
+     * @param tickMillis the duration of a tick, deadlines are rounded up to the next tick
+     * @param slots the number of slots in the wheel
+     * @param nowMillis the current time
+     */
+    public TimingWheel(long tickMillis, int slots, long nowMillis) {
+        if (tickMillis <= 0) throw new IllegalArgumentException("tickMillis must be positive");
+        if (slots <= 0) throw new IllegalArgumentException("slots must be positive");
+        this.tickMillis = tickMillis;
+        this.slots = new ArrayList<>(slots);
+        for (int i = 0; i < slots; i++) {
+            this.slots.add(new ArrayList<>());
+        }
+        this.currentTick = nowMillis / tickMillis;
+    }
+
+    /**
+     * Schedule an item to expire at the given deadline.
+     * Deadlines in the past expire on the next call to {@link #advance(long)}.
+     * @param item the item
+     * @param deadlineMillis the deadline in epoch milliseconds
+     * @return the timeout, can be used to cancel it
+     */
+    public synchronized Timeout<T> schedule(T item, long deadlineMillis) {
+        long tick = Math.max(Math.floorDiv(deadlineMillis + tickMillis - 1, tickMillis), currentTick + 1);
+        Timeout<T> timeout = new Timeout<>(this, item, tick);
+        slots.get((int) Math.floorMod(tick, (long) slots.size())).add(timeout);
+        size++;
+        return timeout;
+    }
+
+    /**
+     * Advance the wheel up to the given time and return the items that expired, in no particular order.
+     * @param nowMillis the current time in epoch milliseconds
+     * @return the expired items
+     */
+    public synchronized List<T> advance(long nowMillis) {
+        List<T> expired = new ArrayList<>();
+        long nowTick = nowMillis / tickMillis;
+        if (nowTick <= currentTick) return expired;
+        if (nowTick - currentTick >= slots.size()) {
+            // a full turn has passed, every slot needs to be checked once
+            for (List<Timeout<T>> slot : slots) {
+                expire(slot, nowTick, expired);
+            }
+        } else {
+            for (long tick = currentTick + 1; tick <= nowTick; tick++) {
+                expire(slots.get((int) Math.floorMod(tick, (long) slots.size())), nowTick, expired);
+            }
+        }
+        currentTick = nowTick;
+        return expired;
+    }
+
+    private void expire(List<Timeout<T>> slot, long nowTick, List<T> expired) {
+        // compact the slot in place, keeping only the timeouts of the next turns
+        int kept = 0;
+        for (int i = 0; i < slot.size(); i++) {
+            Timeout<T> timeout = slot.get(i);
+            if (timeout.done) continue; // cancelled
+            if (timeout.deadlineTick <= nowTick) {
+                timeout.done = true;
+                size--;
+                expired.add(timeout.item);
+            } else {
+                slot.set(kept++, timeout);
+            }
+        }
+        slot.subList(kept, slot.size()).clear();
+    }
+
+    /**
+     * Check if a deadline is due at the given time, consistently with the wheel, that expires an item once the
+     * time reaches its deadline.
+     * @param deadlineMillis the deadline in epoch milliseconds
+     * @param nowMillis the current time in epoch milliseconds
+     */
+    public static boolean isDue(long deadlineMillis, long nowMillis) {
+        return deadlineMillis <= nowMillis;
+    }
+
+    /**
+     * Get the number of scheduled items that have not expired or been cancelled yet.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "TimingWheel{" + "tickMillis=" + tickMillis + ", slots=" + slots.size() + ", size=" + size + '}';
+    }
+}
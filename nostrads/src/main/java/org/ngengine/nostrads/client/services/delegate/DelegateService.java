@@ -35,11 +35,13 @@ import jakarta.annotation.Nonnull;
 import jakarta.annotation.Nullable;
 import java.time.Duration;
 import java.time.Instant;
-import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.BiFunction;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -49,8 +51,6 @@ import org.ngengine.nostr4j.NostrFilter;
 import org.ngengine.nostr4j.NostrPool;
 import org.ngengine.nostr4j.NostrSubscription;
 import org.ngengine.nostr4j.event.SignedNostrEvent;
-import org.ngengine.nostr4j.keypair.NostrPublicKey;
-import org.ngengine.nostr4j.nip01.Nip01;
 import org.ngengine.nostr4j.signer.NostrSigner;
 import org.ngengine.nostrads.client.negotiation.DelegateNegotiationHandler;
 import org.ngengine.nostrads.client.negotiation.DelegateNegotiationHandler.AdvListener;
@@ -58,9 +58,10 @@ import org.ngengine.nostrads.client.negotiation.DelegateNegotiationHandler.Notif
 import org.ngengine.nostrads.client.negotiation.NegotiationHandler;
 import org.ngengine.nostrads.client.services.AbstractAdService;
 import org.ngengine.nostrads.client.services.PenaltyStorage;
+import org.ngengine.nostrads.client.services.SeenEvents;
 import org.ngengine.nostrads.protocol.AdBidEvent;
+import org.ngengine.nostrads.protocol.CompiledAdBid;
 import org.ngengine.nostrads.protocol.negotiation.AdBailEvent;
-import org.ngengine.nostrads.protocol.negotiation.AdNegotiationEvent;
 import org.ngengine.nostrads.protocol.negotiation.AdOfferEvent;
 import org.ngengine.nostrads.protocol.negotiation.AdPaymentRequestEvent;
 import org.ngengine.nostrads.protocol.types.AdTaxonomy;
@@ -68,9 +69,6 @@ import org.ngengine.platform.AsyncTask;
 import org.ngengine.platform.NGEPlatform;
 import org.ngengine.platform.NGEUtils;
 import org.ngengine.wallets.PayResponse;
-import org.ngengine.wallets.Wallet;
-import org.ngengine.wallets.nip47.NWCUri;
-import org.ngengine.wallets.nip47.NWCWallet;
 
 public class DelegateService extends AbstractAdService {
 
@@ -84,6 +82,12 @@ public class DelegateService extends AbstractAdService {
     private long maxFeeMsats = 10000;
     private LnUrl feeCollector = null;
     private final Map<String, BoundBid> negotiationListeners = new ConcurrentHashMap<>();
+    private MetadataCache metadataCache = new MetadataCache();
+    private final WalletPool walletPool = new WalletPool();
+    // ids of the bids already received, the same bid is usually delivered by several relays
+    private final SeenEvents seenBids = new SeenEvents();
+    private FeeLedger feeLedger = new FeeLedger();
+    private final FeeLedger.Settler feeSettler = new FeeSettler();
 
     public static class BoundBid {
 
@@ -143,6 +147,9 @@ public class DelegateService extends AbstractAdService {
         this.filterBids =
             filterBids != null ? filterBids : bid -> NGEPlatform.get().wrapPromise((res, rej) -> res.accept(true));
         this.penaltyStorage = penaltyStorage;
+        this.feeLedger.setSettler(feeSettler);
+        registerCloser(() -> this.feeLedger.close());
+        registerCloser(walletPool::close);
     }
 
     public void setFee(long minFeeMsats, double percentFee, long maxFeeMsats, LnUrl collector) {
@@ -155,159 +162,246 @@ public class DelegateService extends AbstractAdService {
         this.feeCollector = collector;
     }
 
-    public AsyncTask<Void> listen(Instant since) throws Exception {
-        if (since == null) {
-            since = Instant.now().minus(Duration.ofMinutes(5));
+    /**
+     * Set the cache used to resolve the app metadata and the LNURL services to pay.
+     * It can be shared between services.
+     */
+    public void setMetadataCache(@Nonnull MetadataCache metadataCache) {
+        this.metadataCache = Objects.requireNonNull(metadataCache);
+    }
+
+    public @Nonnull MetadataCache getMetadataCache() {
+        return metadataCache;
+    }
+
+    /**
+     * Set the ledger where the fees are accrued until they are settled, this should be called before
+     * {@link #listen(Instant)}. The previous ledger is closed.
+     * By default fees are accrued in memory only.
+     */
+    public void setFeeLedger(@Nonnull FeeLedger feeLedger) {
+        FeeLedger previous = this.feeLedger;
+        this.feeLedger = Objects.requireNonNull(feeLedger);
+        feeLedger.setSettler(feeSettler);
+        if (previous != feeLedger) {
+            previous.setSettler(null);
+            previous.close();
         }
+    }
 
-        String pubkeyHex = getSigner().getPublicKey().await().asHex();
+    public @Nonnull FeeLedger getFeeLedger() {
+        return feeLedger;
+    }
 
-        logger.info("Listening for bids since: " + since);
-        NostrSubscription bidDelegationSub = getPool()
-            .subscribe(new NostrFilter().withKind(AdBidEvent.KIND).withTag("D", pubkeyHex).since(since));
-        bidDelegationSub.addEventListener(this::onNewBid);
-        AsyncTask
-            .any(bidDelegationSub.open())
-            .catchException(ex -> {
-                logger.log(Level.SEVERE, "Error opening subscription for bids", ex);
-                this.close();
-            });
+    /**
+     * Settles the fees with a payment to the fee collector, from the wallet that owes them.
+     */
+    private final class FeeSettler implements FeeLedger.Settler {
+
+        @Override
+        public AsyncTask<String> requestInvoice(String nwcUri, long amountMsats) {
+            LnUrl collector = feeCollector;
+            if (collector == null) {
+                return NGEPlatform
+                    .get()
+                    .wrapPromise((res, rej) -> rej.accept(new IllegalStateException("No fee collector")));
+            }
+            return metadataCache
+                .getService(collector)
+                .compose(serv -> {
+                    LnUrlPay payService = (LnUrlPay) serv;
+                    try {
+                        return payService.fetchInvoice(amountMsats, "Delegate fee for nostr-ads", null);
+                    } catch (Exception e) {
+                        throw new RuntimeException("Failed to fetch fee invoice", e);
+                    }
+                })
+                .then(payResp -> payResp.getPr());
+        }
+
+        @Override
+        public AsyncTask<Void> payInvoice(String nwcUri, String invoice, long amountMsats) {
+            return NGEPlatform
+                .get()
+                .wrapPromise((res, rej) -> {
+                    WalletPool.Lease wallet = walletPool.acquire(nwcUri);
+                    try {
+                        wallet
+                            .payInvoice(invoice, amountMsats)
+                            .then(r -> {
+                                wallet.close();
+                                res.accept(null);
+                                return null;
+                            })
+                            .catchException(ex -> {
+                                wallet.close();
+                                rej.accept(ex);
+                            });
+                    } catch (Exception e) {
+                        wallet.close();
+                        rej.accept(e);
+                    }
+                });
+        }
+
+        @Override
+        public AsyncTask<Boolean> isPaid(String nwcUri, String invoice) {
+            return NGEPlatform
+                .get()
+                .wrapPromise((res, rej) -> {
+                    WalletPool.Lease wallet = walletPool.acquire(nwcUri);
+                    try {
+                        wallet
+                            .lookupInvoice(invoice)
+                            .then(data -> {
+                                wallet.close();
+                                res.accept(data != null && data.getPreimage() != null);
+                                return null;
+                            })
+                            .catchException(ex -> {
+                                wallet.close();
+                                rej.accept(ex);
+                            });
+                    } catch (Exception e) {
+                        wallet.close();
+                        rej.accept(e);
+                    }
+                });
+        }
+    }
 
-        NostrSubscription negotiationsSub = getPool()
-            .subscribe(
-                new NostrFilter().withTag("p", pubkeyHex).withKind(AdNegotiationEvent.KIND).limit(0).since(Instant.now())
-            );
+    public @Nonnull WalletPool getWalletPool() {
+        return walletPool;
+    }
 
-        negotiationsSub.addEventListener((s, event, stored) -> {
-            String dTag = event.getFirstTag("d").get(0);
-            BoundBid b = negotiationListeners.get(dTag);
-            if (b == null) return; // bid not handled
-            logger.info(b.bidEvent().getId() + " New negotiation event received: " + event);
+    @Override
+    protected boolean isOfferTarget(String bidId) {
+        return negotiationListeners.containsKey(bidId);
+    }
 
-            Listener listener = b.listener();
-            AdBidEvent bidEvent = b.bidEvent();
+    @Override
+    protected void onOffer(AdOfferEvent offer) {
+        BoundBid b = negotiationListeners.get(offer.getTargetEvent());
+        if (b == null) return; // bid not handled
+        if (isClosed()) return;
+        logger.info(b.bidEvent().getId() + " Processing offer event: " + offer.getId());
 
-            List<NostrPublicKey> bidTargets = bidEvent.getTargetedOfferers();
-            List<NostrPublicKey> appTargets = bidEvent.getTargetedApps();
+        Listener listener = b.listener();
+        AdBidEvent bidEvent = b.bidEvent();
 
-            AdNegotiationEvent
-                .cast(getSigner(), event, null)
-                .then(ev -> {
-                    if (!(ev instanceof AdOfferEvent)) return null;
-                    if (isClosed()) return null;
-                    logger.info(b.bidEvent().getId() + " Processing offer event: " + ev.getId());
-                    AdOfferEvent offer = (AdOfferEvent) ev;
+        CompiledAdBid compiledBid = bidEvent.getCompiled();
 
-                    if (bidTargets != null && !bidTargets.contains(offer.getPubkey())) {
-                        logger.info(
-                            b.bidEvent().getId() + " Ignoring offer from non-targeted offerer: " + offer.getPubkey().asHex()
-                        );
-                        return null;
-                    }
+        if (!compiledBid.isOffererAllowed(offer.getPubkey())) {
+            logger.info(b.bidEvent().getId() + " Ignoring offer from non-targeted offerer: " + offer.getPubkey().asHex());
+            return;
+        }
 
-                    if (appTargets != null && !appTargets.contains(offer.getAppPubkey())) {
-                        logger.info(
-                            b.bidEvent().getId() + " Ignoring offer from non-targeted app: " + offer.getAppPubkey().asHex()
-                        );
+        if (!compiledBid.isAppAllowed(offer.getAppPubkey())) {
+            logger.info(b.bidEvent().getId() + " Ignoring offer from non-targeted app: " + offer.getAppPubkey().asHex());
+            return;
+        }
+        metadataCache
+            .getMetadata(getPool(), offer.getAppPubkey())
+            .then(nip01 -> {
+                try {
+                    if (isClosed()) return null;
+                    logger.info(b.bidEvent().getId() + " Nip01 fetched for offer: " + offer.getId() + ":" + nip01);
+                    LnUrl lnurl = nip01.getPaymentAddress();
+
+                    DelegateNegotiationHandler neg = new DelegateNegotiationHandler(
+                        lnurl,
+                        getPool(),
+                        getSigner(),
+                        bidEvent,
+                        getMaxDiff(),
+                        metadataCache::getService
+                    );
+
+                    // --- PAYOUT LIMIT CHECK BEFORE ACCEPTING OFFER ---
+                    long maxPayouts = bidEvent.getMaxPayouts();
+                    long payoutResetInterval = bidEvent.getPayoutResetInterval().getSeconds();
+                    String bidId = bidEvent.getId();
+                    if (!tracker.canIncrement(bidId, "payouts", payoutResetInterval, maxPayouts)) {
+                        logger.warning(b.bidEvent().getId() + " Max payouts reached for bid: " + bidId + " (pre-accept)");
+                        neg.bail(AdBailEvent.Reason.PAYOUT_LIMIT, offer);
                         return null;
                     }
-                    Nip01
-                        .fetch(getPool(), offer.getAppPubkey())
-                        .then(nip01 -> {
-                            try {
-                                if (isClosed()) return null;
-                                logger.info(b.bidEvent().getId() + " Nip01 fetched for offer: " + offer.getId() + ":" + nip01);
-                                LnUrl lnurl = nip01.getPaymentAddress();
-
-                                DelegateNegotiationHandler neg = new DelegateNegotiationHandler(
-                                    lnurl,
-                                    getPool(),
-                                    getSigner(),
-                                    bidEvent,
-                                    getMaxDiff()
-                                );
-
-                                // --- PAYOUT LIMIT CHECK BEFORE ACCEPTING OFFER ---
-                                long maxPayouts = bidEvent.getMaxPayouts();
-                                long payoutResetInterval = bidEvent.getPayoutResetInterval().getSeconds();
-                                String bidId = bidEvent.getId();
-                                if (!tracker.canIncrement(bidId, "payouts", payoutResetInterval, maxPayouts)) {
-                                    logger.warning(
-                                        b.bidEvent().getId() + " Max payouts reached for bid: " + bidId + " (pre-accept)"
+
+                    neg.markAccepted();
+
+                    this.filterNegotiations.apply(neg, offer)
+                        .compose(accepted -> {
+                            return penaltyStorage
+                                .get(neg.getBidEvent())
+                                .then(penalty -> {
+                                    if (isClosed()) return null;
+                                    logger.info(
+                                        b.bidEvent().getId() +
+                                        " Negotiation filter result for offer " +
+                                        offer.getId() +
+                                        ": " +
+                                        accepted
                                     );
-                                    neg.bail(AdBailEvent.Reason.PAYOUT_LIMIT, offer);
+                                    if (accepted) {
+                                        registerNegotiation(neg);
+                                        neg.addListener(listener);
+
+                                        neg.setCounterpartyPenalty(penalty);
+                                        if (penalty > 0) {
+                                            logger.info(
+                                                b.bidEvent().getId() +
+                                                " Negotiation has a penalty: " +
+                                                penalty +
+                                                " msats"
+                                            );
+                                        } else {
+                                            logger.info(b.bidEvent().getId() + " Negotiation has no penalty");
+                                        }
+
+                                        logger.info("Accepting offer: " + offer.getId());
+                                        neg.acceptOffer(offer);
+                                    } else {
+                                        logger.info(b.bidEvent().getId() + " Negotiation rejected by filter: " + offer.getId());
+                                    }
+
                                     return null;
-                                }
-
-                                neg.markAccepted();
-
-                                this.filterNegotiations.apply(neg, offer)
-                                    .compose(accepted -> {
-                                        return penaltyStorage
-                                            .get(neg.getBidEvent())
-                                            .then(penalty -> {
-                                                if (isClosed()) return null;
-                                                logger.info(
-                                                    b.bidEvent().getId() +
-                                                    " Negotiation filter result for offer " +
-                                                    offer.getId() +
-                                                    ": " +
-                                                    accepted
-                                                );
-                                                if (accepted) {
-                                                    registerNegotiation(neg);
-                                                    neg.addListener(listener);
-
-                                                    neg.setCounterpartyPenalty(penalty);
-                                                    if (penalty > 0) {
-                                                        logger.info(
-                                                            b.bidEvent().getId() +
-                                                            " Negotiation has a penalty: " +
-                                                            penalty +
-                                                            " msats"
-                                                        );
-                                                    } else {
-                                                        logger.info(b.bidEvent().getId() + " Negotiation has no penalty");
-                                                    }
-
-                                                    logger.info("Accepting offer: " + offer.getId());
-                                                    neg.acceptOffer(offer);
-                                                } else {
-                                                    logger.info(
-                                                        b.bidEvent().getId() +
-                                                        " Negotiation rejected by filter: " +
-                                                        offer.getId()
-                                                    );
-                                                }
-
-                                                return null;
-                                            });
-                                    })
-                                    .catchException(ex -> {
-                                        logger.log(
-                                            Level.WARNING,
-                                            b.bidEvent().getId() + " Error filtering negotiation: " + bidEvent.getId(),
-                                            ex
-                                        );
-                                        neg.close();
-                                    });
-                            } catch (Exception e) {
-                                logger.log(
-                                    Level.WARNING,
-                                    b.bidEvent().getId() + " Error processing event: " + event.getId(),
-                                    e
-                                );
-                            }
-                            return null;
+                                });
                         })
                         .catchException(ex -> {
-                            logger.log(Level.WARNING, "Error fetching nip01 for event: " + event.getId(), ex);
+                            logger.log(
+                                Level.WARNING,
+                                b.bidEvent().getId() + " Error filtering negotiation: " + bidEvent.getId(),
+                                ex
+                            );
+                            neg.close();
                         });
-                    return null;
-                });
-        });
+                } catch (Exception e) {
+                    logger.log(Level.WARNING, b.bidEvent().getId() + " Error processing event: " + offer.getId(), e);
+                }
+                return null;
+            })
+            .catchException(ex -> {
+                logger.log(Level.WARNING, "Error fetching nip01 for event: " + offer.getId(), ex);
+            });
+    }
+
+    public AsyncTask<Void> listen(Instant since) throws Exception {
+        if (since == null) {
+            since = Instant.now().minus(Duration.ofMinutes(5));
+        }
 
-        negotiationsSub.open();
+        String pubkeyHex = getSigner().getPublicKey().await().asHex();
+
+        logger.info("Listening for bids since: " + since);
+        NostrSubscription bidDelegationSub = getPool()
+            .subscribe(new NostrFilter().withKind(AdBidEvent.KIND).withTag("D", pubkeyHex).since(since));
+        bidDelegationSub.addEventListener(this::onNewBid);
+        AsyncTask
+            .any(bidDelegationSub.open())
+            .catchException(ex -> {
+                logger.log(Level.SEVERE, "Error opening subscription for bids", ex);
+                this.close();
+            });
 
         registerCloser(
             NGEPlatform
@@ -320,11 +414,6 @@ public class DelegateService extends AbstractAdService {
                         } catch (Exception e) {
                             logger.log(Level.WARNING, "Error closing bid delegation subscription", e);
                         }
-                        try {
-                            negotiationsSub.close();
-                        } catch (Exception e) {
-                            logger.log(Level.WARNING, "Error closing negotiations subscription", e);
-                        }
                     }
                 )
         );
@@ -338,6 +427,7 @@ public class DelegateService extends AbstractAdService {
 
     protected void onNewBid(NostrSubscription sub, SignedNostrEvent event, boolean stored) {
         if (isClosed()) return;
+        if (!seenBids.markSeen(event.getId())) return; // already received from another relay
         AdBidEvent bid = new AdBidEvent(getTaxonomy(), event);
         if (!bid.isValid()) {
             logger.warning("Invalid bid event received: " + bid.getId());
@@ -362,110 +452,136 @@ public class DelegateService extends AbstractAdService {
             });
     }
 
+    /**
+     * Handles the negotiations of a bid, it holds the delegate payload of the bid, decrypted once when the bid is
+     * handled so payments don't need to decrypt and parse it again.
+     */
     private class Listener implements AdvListener {
 
-        private final Wallet wallet;
+        private final Map<String, Object> payload;
+        private final String nwcUri;
+        private final Long dailyBudgetMsats;
+        private final WalletPool.Lease wallet;
         private final Tracker tracker;
 
-        Listener(Wallet wallet, Tracker tracker) {
+        Listener(Map<String, Object> payload, WalletPool.Lease wallet, Tracker tracker) {
+            this.payload = payload;
+            this.nwcUri = NGEUtils.safeString(Objects.requireNonNull(payload.get("nwc")));
+            Object dailyBudget = payload.get("dailyBudget");
+            this.dailyBudgetMsats = dailyBudget != null ? NGEUtils.safeLong(dailyBudget) : null;
             this.wallet = wallet;
             this.tracker = tracker;
         }
 
+        void close() {
+            wallet.close();
+        }
+
         @Override
-        public synchronized void onBail(NegotiationHandler neg, AdBailEvent event, boolean initiatedByCounterparty) {
+        public void onBail(NegotiationHandler neg, AdBailEvent event, boolean initiatedByCounterparty) {
             logger.info("Bail event received: " + event);
         }
 
+        /**
+         * Pay out a negotiation. Every stage is chained asynchronously (reservation, payment, payout notification
+         * and fee) so a slow payment never holds a thread or delays the other negotiations, concurrency is
+         * limited per wallet by the {@link WalletPool}. The fee is accrued in the {@link FeeLedger} and settled
+         * later in batches.
+         */
         @Override
-        public synchronized void onPaymentRequest(
+        public void onPaymentRequest(
             NegotiationHandler neg,
             AdPaymentRequestEvent event,
             String invoice,
             NotifyPayout notifyPayout
         ) {
             logger.info("Payment request event received: " + event);
+            logger.fine("Payouts: " + walletPool);
 
             AdBidEvent bidEvent = neg.getBidEvent();
+            Runnable release;
+            try {
+                release = reserve(neg, bidEvent);
+            } catch (Exception e) {
+                logger.log(Level.WARNING, "Failed to process payment request for bid: " + bidEvent.getId(), e);
+                neg.bail(AdBailEvent.Reason.FAILED_PAYMENT);
+                return;
+            }
+            if (release == null) return;
+            AtomicReference<Runnable> reservation = new AtomicReference<>(release);
+
+            Consumer<Throwable> fail = ex -> {
+                Runnable r = reservation.getAndSet(null);
+                if (r != null) r.run();
+                logger.log(Level.WARNING, "Failed to process payment request for bid: " + bidEvent.getId(), ex);
+                neg.bail(AdBailEvent.Reason.FAILED_PAYMENT);
+            };
+
+            logger.finer("Paying invoice: " + invoice + " for " + bidEvent.getBidMsats() + " msats");
+            AsyncTask<PayResponse> payment;
+            try {
+                payment = wallet.payInvoice(invoice, bidEvent.getBidMsats());
+            } catch (Exception e) {
+                // the lease was closed while the negotiation was in flight
+                fail.accept(e);
+                return;
+            }
+            payment
+                .compose(paid -> {
+                    logger.finer("Invoice paid");
+                    reservation.set(null); // the payment went through, keep it
+                    collectFee(bidEvent);
+                    return notifyPayout.call("NOSTR-Ads: Payout for " + bidEvent.getAdId() + " completed!");
+                })
+                .then(v -> {
+                    neg.markCompleted();
+                    return null;
+                })
+                .catchException(fail);
+        }
+
+        /**
+         * Reserve the daily budget and a payout for the bid.
+         * @return a callback that gives the reservation back if the payment fails, or null if the bid can't pay
+         *     (the negotiation is bailed)
+         */
+        private Runnable reserve(NegotiationHandler neg, AdBidEvent bidEvent) {
             String bidId = bidEvent.getId();
-            bidEvent
-                .getDecryptedDelegatePayload(getSigner())
-                .then(payload -> {
-                    try {
-                        logger.finer("With payload: " + payload);
-                        // --- DAILY BUDGET TRACKING ---
-                        long dailyBudgetMsats = NGEUtils.safeLong(Objects.requireNonNull(payload.get("dailyBudget")));
-                        long budgetResetInterval = 86400; // 1 day in seconds
-
-                        if (!tracker.canIncrement(bidId, "budget", budgetResetInterval, dailyBudgetMsats)) {
-                            logger.warning("Not enough daily budget left for bid: " + bidId);
-                            neg.bail(AdBailEvent.Reason.OUT_OF_BUDGET);
-                            return null;
-                        }
-                        tracker.increment(bidId, "budget", budgetResetInterval, dailyBudgetMsats);
-
-                        // --- PAYOUT TRACKING ---
-                        long maxPayouts = bidEvent.getMaxPayouts(); // Add getter to AdBidEvent if needed
-                        long payoutResetInterval = bidEvent.getPayoutResetInterval().getSeconds(); // Add getter to
-                        // AdBidEvent if
-                        // needed
-
-                        if (!tracker.canIncrement(bidId, "payouts", payoutResetInterval, maxPayouts)) {
-                            logger.warning("Max payouts reached for bid: " + bidId);
-                            neg.bail(AdBailEvent.Reason.PAYOUT_LIMIT);
-                            return null;
-                        }
-                        tracker.increment(bidId, "payouts", payoutResetInterval, maxPayouts);
+            logger.finer("With payload: " + payload);
 
-                        logger.finer("Paying invoice: " + invoice + " for " + bidEvent.getBidMsats() + " msats");
-                        PayResponse res = wallet.payInvoice(invoice, bidEvent.getBidMsats()).await();
-                        logger.finer("Invoice paid");
+            // --- DAILY BUDGET TRACKING ---
+            long dailyBudgetMsats = Objects.requireNonNull(this.dailyBudgetMsats, "dailyBudget");
+            long budgetResetInterval = 86400; // 1 day in seconds
 
-                        notifyPayout
-                            .call("NOSTR-Ads: Payout for " + bidEvent.getAdId() + " completed!")
-                            .then(v -> {
-                                neg.markCompleted();
-                                return null;
-                            })
-                            .catchException(ex -> {
-                                logger.log(Level.WARNING, "Error notifying payout: " + ex.getMessage(), ex);
-                                neg.bail(AdBailEvent.Reason.FAILED_PAYMENT);
-                            });
+            if (!tracker.tryIncrement(bidId, "budget", budgetResetInterval, dailyBudgetMsats, 1)) {
+                logger.warning("Not enough daily budget left for bid: " + bidId);
+                neg.bail(AdBailEvent.Reason.OUT_OF_BUDGET);
+                return null;
+            }
 
-                        if (feeCollector != null) {
-                            long fee = Math.min(
-                                maxFeeMsats,
-                                Math.max(minFeeMsats, (long) (bidEvent.getBidMsats() * percentFee))
-                            );
-                            logger.info("Collecting fee of " + fee + " msats");
-                            feeCollector
-                                .getService()
-                                .compose(serv -> {
-                                    LnUrlPay payService = (LnUrlPay) serv;
-                                    try {
-                                        return payService.fetchInvoice(fee, "Delegate fee for nostr-ads", null);
-                                    } catch (Exception e) {
-                                        throw new RuntimeException("Failed to fetch fee invoice", e);
-                                    }
-                                })
-                                .compose(payResp -> {
-                                    String feeInvoice = payResp.getPr();
-                                    return wallet.payInvoice(feeInvoice, fee);
-                                })
-                                .catchException(ex -> {
-                                    logger.log(Level.SEVERE, "Failed to pay fee for negotiation: " + bidEvent.getId(), ex);
-                                });
-                        }
-                    } catch (Exception e) {
-                        logger.log(Level.WARNING, "Failed to process payment request: " + e.getMessage(), e);
-                        neg.bail(AdBailEvent.Reason.FAILED_PAYMENT);
-                    }
-                    return null;
-                })
-                .catchException(ex -> {
-                    logger.log(Level.WARNING, "Failed to decrypt delegate payload for bid: " + bidEvent.getId(), ex);
-                    neg.bail(AdBailEvent.Reason.FAILED_PAYMENT);
-                });
+            // --- PAYOUT TRACKING ---
+            long maxPayouts = bidEvent.getMaxPayouts();
+            long payoutResetInterval = bidEvent.getPayoutResetInterval().getSeconds();
+
+            if (!tracker.tryIncrement(bidId, "payouts", payoutResetInterval, maxPayouts, 1)) {
+                // give back the budget taken above
+                tracker.tryIncrement(bidId, "budget", budgetResetInterval, dailyBudgetMsats, -1);
+                logger.warning("Max payouts reached for bid: " + bidId);
+                neg.bail(AdBailEvent.Reason.PAYOUT_LIMIT);
+                return null;
+            }
+
+            return () -> {
+                tracker.tryIncrement(bidId, "payouts", payoutResetInterval, maxPayouts, -1);
+                tracker.tryIncrement(bidId, "budget", budgetResetInterval, dailyBudgetMsats, -1);
+            };
+        }
+
+        private void collectFee(AdBidEvent bidEvent) {
+            if (feeCollector == null) return;
+            long fee = Math.min(maxFeeMsats, Math.max(minFeeMsats, (long) (bidEvent.getBidMsats() * percentFee)));
+            logger.fine("Accruing fee of " + fee + " msats for bid " + bidEvent.getId());
+            feeLedger.accrue(nwcUri, fee);
         }
 
         @Override
@@ -483,9 +599,16 @@ public class DelegateService extends AbstractAdService {
             .then(payload -> {
                 try {
                     String nwc = NGEUtils.safeString(Objects.requireNonNull(payload.get("nwc")));
-                    NWCWallet wallet = new NWCWallet(new NWCUri(nwc));
-                    Listener listener = new Listener(wallet, tracker);
-                    negotiationListeners.put(bidEvent.getId(), new BoundBid(bidEvent, listener));
+                    WalletPool.Lease wallet = walletPool.acquire(nwc);
+                    // bids that have been paying out recently are likely to pay again soon
+                    if (tracker.getValue(bidEvent.getId(), "payouts") > 0) {
+                        walletPool.warm(nwc);
+                    }
+                    Listener listener = new Listener(payload, wallet, tracker);
+                    BoundBid bound = new BoundBid(bidEvent, listener);
+                    BoundBid previous = negotiationListeners.put(bidEvent.getId(), bound);
+                    if (previous != null) previous.listener().close();
+                    schedulePurge(bound);
                     return null;
                 } catch (Exception e) {
                     throw new RuntimeException("Failed to handle bid: " + bidEvent, e);
@@ -493,10 +616,31 @@ public class DelegateService extends AbstractAdService {
             });
     }
 
+    /**
+     * Drop the bid when it expires, with its decrypted payload and wallet lease.
+     */
+    private void schedulePurge(BoundBid bound) {
+        CompiledAdBid compiled = bound.bidEvent().getCompiled();
+        if (compiled == null || compiled.getExpirationMillis() == Long.MAX_VALUE) return;
+        long delay = Math.max(0, compiled.getExpirationMillis() - System.currentTimeMillis());
+        executor.runLater(
+            () -> {
+                if (negotiationListeners.remove(bound.bidEvent().getId(), bound)) {
+                    logger.fine("Bid expired: " + bound.bidEvent().getId());
+                    bound.listener().close();
+                }
+                return null;
+            },
+            delay,
+            TimeUnit.MILLISECONDS
+        );
+    }
+
     @Override
     protected void onAdCancelledById(@Nonnull String id) {
         super.onAdCancelledById(id);
-        negotiationListeners.remove(id);
+        BoundBid b = negotiationListeners.remove(id);
+        if (b != null) b.listener().close();
     }
 
     @Override
@@ -508,6 +652,7 @@ public class DelegateService extends AbstractAdService {
                 AdBidEvent bidEvent = b.getValue().bidEvent();
                 if (bidEvent.getCoordinates() != null && bidEvent.getCoordinates().coords().equals(addr)) {
                     logger.info("Bid event cancelled by coordinates: " + addr);
+                    b.getValue().listener().close();
                     return true;
                 }
                 return false;
@@ -0,0 +1,515 @@
+/**
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2025, Riccardo Balbo
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.ngengine.nostrads.client.services.delegate;
+
+import jakarta.annotation.Nonnull;
+import jakarta.annotation.Nullable;
+import java.io.Closeable;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.ngengine.platform.AsyncExecutor;
+import org.ngengine.platform.AsyncTask;
+import org.ngengine.platform.NGEPlatform;
+import org.ngengine.platform.NGEUtils;
+import org.ngengine.platform.VStore;
+
+/**
+ * Accrues the delegate fees owed by each wallet and settles them in batches, with a single payment per wallet
+ * when the accrued amount reaches a threshold or every settle interval, instead of one payment per payout.
+ *
+ * The accrued fees are persisted in the store, so fees that were not settled yet survive restarts. The store
+ * holds the NWC URIs of the wallets that owe fees and should be kept private.
+ *
+ * Every settlement goes through an invoice that is persisted before it is paid, and the ledger is saved again
+ * as soon as the payment succeeds. If the outcome of a payment is unknown, because it failed or the delegate
+ * stopped while it was in flight, the invoice status is checked before trying again, so the same fees are
+ * never paid twice. An unpaid invoice is paid again until it expires, then it is replaced with a new one.
+ * Failed settlements are retried with an exponential backoff, not on every new fee.
+ */
+public final class FeeLedger implements Closeable {
+
+    /**
+     * How the fees are settled.
+     */
+    public static interface Settler {
+        /**
+         * Get an invoice for the fees owed by a wallet.
+         * @param nwcUri the wallet that will pay the invoice
+         * @param amountMsats the amount of the invoice
+         * @return the bolt11 invoice
+         */
+        AsyncTask<String> requestInvoice(String nwcUri, long amountMsats);
+
+        /**
+         * Pay an invoice with a wallet, the returned task must complete only when the payment is done.
+         */
+        AsyncTask<Void> payInvoice(String nwcUri, String invoice, long amountMsats);
+
+        /**
+         * Check if a wallet paid an invoice, the returned task must fail if the status can't be determined.
+         */
+        AsyncTask<Boolean> isPaid(String nwcUri, String invoice);
+    }
+
+    private static final class Settlement {
+
+        final long amountMsats;
+        final String invoice;
+        final long createdAt;
+        final long expiresAt;
+
+        Settlement(long amountMsats, String invoice, long createdAt, long expiresAt) {
+            this.amountMsats = amountMsats;
+            this.invoice = invoice;
+            this.createdAt = createdAt;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static final class Retry {
+
+        final int attempts;
+        final long notBefore;
+
+        Retry(int attempts, long notBefore) {
+            this.attempts = attempts;
+            this.notBefore = notBefore;
+        }
+    }
+
+    private static final Logger logger = Logger.getLogger(FeeLedger.class.getName());
+    private static final String PATH = "nostrads/fees";
+    public static final long DEFAULT_THRESHOLD_MSATS = 50_000;
+    public static final Duration DEFAULT_SETTLE_INTERVAL = Duration.ofHours(1);
+    private static final long SAVE_DELAY = 1000;
+    // expiry of the invoices that don't carry one we can read
+    private static final long DEFAULT_INVOICE_EXPIRY = Duration.ofMinutes(10).toMillis();
+    // an invoice this close to its expiry is replaced instead of being paid again
+    private static final long INVOICE_EXPIRY_MARGIN = Duration.ofMinutes(1).toMillis();
+    private static final long MIN_RETRY_DELAY = Duration.ofSeconds(30).toMillis();
+    private static final long MAX_RETRY_DELAY = Duration.ofHours(1).toMillis();
+    private static final String BECH32_CHARSET = "qpzry9x8gf2tvdw0s3jn54khce6mua7l";
+
+    @Nullable
+    private final VStore store;
+
+    private final long thresholdMsats;
+    private final Duration settleInterval;
+
+    // accrued msats by NWC URI, including the ones of the pending settlements
+    private final Map<String, Long> accrued = new ConcurrentHashMap<>();
+    // settlements whose invoice was requested and not confirmed as paid yet, by NWC URI
+    private final Map<String, Settlement> pending = new ConcurrentHashMap<>();
+    private final Set<String> settling = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    // backoff of the wallets whose last settlement failed, by NWC URI
+    private final Map<String, Retry> retries = new ConcurrentHashMap<>();
+    private final AtomicBoolean saveScheduled = new AtomicBoolean(false);
+    // the last write of the ledger, writes are chained so the newest state is always written last
+    private final Object saveLock = new Object();
+    private AsyncTask<Void> lastSave; // guarded by saveLock
+    private final AsyncExecutor executor;
+    private final Runnable closer;
+    private volatile Settler settler;
+    private volatile boolean closed = false;
+
+    /**
+     * Create a ledger that is kept only in memory.
+     */
+    public FeeLedger() {
+        this(null, DEFAULT_THRESHOLD_MSATS, DEFAULT_SETTLE_INTERVAL);
+    }
+
+    public FeeLedger(@Nullable VStore store) {
+        this(store, DEFAULT_THRESHOLD_MSATS, DEFAULT_SETTLE_INTERVAL);
+    }
+
+    /**
+     * @param store where the accrued fees are persisted, if null they are kept only in memory
+     * @param thresholdMsats settle a wallet as soon as it owes at least this amount
+     * @param settleInterval settle every wallet that owes something at this interval
+     */
+    public FeeLedger(@Nullable VStore store, long thresholdMsats, @Nonnull Duration settleInterval) {
+        this.store = store;
+        this.thresholdMsats = thresholdMsats;
+        this.settleInterval = settleInterval;
+        load();
+        this.executor = NGEPlatform.get().newAsyncExecutor(FeeLedger.class);
+        AsyncExecutor executor = this.executor;
+        this.closer = NGEPlatform.get().registerFinalizer(this, () -> executor.close());
+        settleLoop();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void load() {
+        if (store == null) return;
+        try {
+            if (!store.exists(PATH).await()) return;
+            byte[] json = store.readFully(PATH).await();
+            Map<String, Object> data = NGEPlatform.get().fromJSON(new String(json, StandardCharsets.UTF_8), Map.class);
+            Object accruedData = data.get("accrued");
+            if (!(accruedData instanceof Map)) {
+                // flat layout, without pending settlements
+                accruedData = data;
+            } else {
+                Object pendingData = data.get("pending");
+                if (pendingData instanceof Map) {
+                    for (Map.Entry<String, Object> e : ((Map<String, Object>) pendingData).entrySet()) {
+                        Map<String, Object> p = (Map<String, Object>) e.getValue();
+                        String invoice = NGEUtils.safeString(p.get("invoice"));
+                        long createdAt = NGEUtils.safeLong(p.get("createdAt"));
+                        long expiresAt = p.get("expiresAt") != null
+                            ? NGEUtils.safeLong(p.get("expiresAt"))
+                            : getInvoiceExpiry(invoice, createdAt);
+                        pending.put(
+                            e.getKey(),
+                            new Settlement(NGEUtils.safeLong(p.get("amount")), invoice, createdAt, expiresAt)
+                        );
+                    }
+                }
+            }
+            for (Map.Entry<String, Object> e : ((Map<String, Object>) accruedData).entrySet()) {
+                long msats = NGEUtils.safeLong(e.getValue());
+                if (msats > 0) accrued.put(e.getKey(), msats);
+            }
+            logger.fine(
+                "Loaded unsettled fees for " + accrued.size() + " wallets, " + pending.size() + " settlements pending"
+            );
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Failed to load fee ledger from store", e);
+        }
+    }
+
+    /**
+     * Set how the fees are settled. The settlements that were pending when the ledger was saved are resumed.
+     */
+    public void setSettler(@Nullable Settler settler) {
+        this.settler = settler;
+        if (settler != null && !pending.isEmpty()) {
+            executor.run(() -> {
+                for (String nwcUri : pending.keySet()) {
+                    settle(nwcUri, true);
+                }
+                return null;
+            });
+        }
+    }
+
+    /**
+     * Record a fee owed by the given wallet.
+     */
+    public void accrue(@Nonnull String nwcUri, long feeMsats) {
+        if (feeMsats <= 0) return;
+        long total = accrued.merge(nwcUri, feeMsats, Long::sum);
+        scheduleSave();
+        if (total >= thresholdMsats) {
+            settle(nwcUri, false);
+        }
+    }
+
+    /**
+     * The fees owed by the given wallet and not settled yet, in msats.
+     */
+    public long getAccrued(@Nonnull String nwcUri) {
+        return accrued.getOrDefault(nwcUri, 0L);
+    }
+
+    /**
+     * The fees owed by all the wallets and not settled yet, in msats.
+     */
+    public long getTotalAccrued() {
+        long total = 0;
+        for (long v : accrued.values()) total += v;
+        return total;
+    }
+
+    /**
+     * The invoice of the settlement of the given wallet that was not confirmed as paid yet, if any.
+     */
+    @Nullable
+    public String getPendingInvoice(@Nonnull String nwcUri) {
+        Settlement s = pending.get(nwcUri);
+        return s != null ? s.invoice : null;
+    }
+
+    /**
+     * Settle the fees owed by every wallet now, including the ones that are waiting to retry a failed settlement.
+     */
+    public void settleAll() {
+        for (String nwcUri : accrued.keySet()) {
+            settle(nwcUri, true);
+        }
+    }
+
+    /**
+     * @param force true to settle even if the wallet is waiting to retry a failed settlement
+     */
+    private void settle(String nwcUri, boolean force) {
+        Settler settler = this.settler;
+        if (settler == null || closed) return;
+        Retry retry = retries.get(nwcUri);
+        if (!force && retry != null && System.currentTimeMillis() < retry.notBefore) return;
+        if (!settling.add(nwcUri)) return;
+        AsyncTask<Void> task;
+        try {
+            Settlement s = pending.get(nwcUri);
+            task = s != null ? resume(settler, nwcUri, s) : start(settler, nwcUri);
+        } catch (Exception e) {
+            settling.remove(nwcUri);
+            logger.log(Level.WARNING, "Failed to settle fees", e);
+            return;
+        }
+        task
+            .then(v -> {
+                retries.remove(nwcUri);
+                settling.remove(nwcUri);
+                if (getAccrued(nwcUri) >= thresholdMsats) settle(nwcUri, false);
+                return null;
+            })
+            .catchException(ex -> {
+                Retry r = retries.compute(nwcUri, (k, prev) -> {
+                    int attempts = prev != null ? prev.attempts + 1 : 1;
+                    long delay = Math.min(MAX_RETRY_DELAY, MIN_RETRY_DELAY << Math.min(attempts - 1, 20));
+                    return new Retry(attempts, System.currentTimeMillis() + delay);
+                });
+                settling.remove(nwcUri);
+                logger.log(
+                    Level.WARNING,
+                    "Failed to settle fees, they will be retried in " + (r.notBefore - System.currentTimeMillis()) + " ms",
+                    ex
+                );
+            });
+    }
+
+    private AsyncTask<Void> start(Settler settler, String nwcUri) {
+        long amount = getAccrued(nwcUri);
+        if (amount <= 0) return NGEPlatform.get().wrapPromise((res, rej) -> res.accept(null));
+        logger.info("Settling " + amount + " msats of fees");
+        return settler
+            .requestInvoice(nwcUri, amount)
+            .compose(invoice -> {
+                long now = System.currentTimeMillis();
+                Settlement s = new Settlement(amount, invoice, now, getInvoiceExpiry(invoice, now));
+                pending.put(nwcUri, s);
+                // the invoice must be stored before it is paid, if it can't be the payment is not attempted
+                return save().compose(v -> pay(settler, nwcUri, s));
+            });
+    }
+
+    private AsyncTask<Void> resume(Settler settler, String nwcUri, Settlement s) {
+        // the outcome of the previous payment is unknown, it might have gone through
+        return settler
+            .isPaid(nwcUri, s.invoice)
+            .compose(paid -> {
+                if (paid) {
+                    logger.info("Pending fee invoice was already paid");
+                    complete(nwcUri, s);
+                    return NGEPlatform.get().wrapPromise((res, rej) -> res.accept(null));
+                }
+                if (System.currentTimeMillis() < s.expiresAt - INVOICE_EXPIRY_MARGIN) {
+                    return pay(settler, nwcUri, s);
+                }
+                // never paid and expired, start over with a new invoice
+                pending.remove(nwcUri, s);
+                return start(settler, nwcUri);
+            });
+    }
+
+    private AsyncTask<Void> pay(Settler settler, String nwcUri, Settlement s) {
+        return settler
+            .payInvoice(nwcUri, s.invoice, s.amountMsats)
+            .then(v -> {
+                complete(nwcUri, s);
+                return null;
+            });
+    }
+
+    private void complete(String nwcUri, Settlement s) {
+        // fees accrued while the payment was in flight stay in the ledger
+        accrued.computeIfPresent(nwcUri, (k, total) -> total - s.amountMsats > 0 ? total - s.amountMsats : null);
+        pending.remove(nwcUri, s);
+        save()
+            .catchException(ex -> {
+                // the invoice is still stored as pending, it will be found paid on the next check
+                logger.log(Level.WARNING, "Failed to save settled fees", ex);
+            });
+    }
+
+    /**
+     * Get when a bolt11 invoice expires, from its timestamp and expiry fields.
+     * @param invoice the invoice
+     * @param createdAt when the invoice was received, used if the invoice can't be read
+     * @return the expiry time in milliseconds since the epoch
+     */
+    static long getInvoiceExpiry(String invoice, long createdAt) {
+        try {
+            String data = invoice.toLowerCase();
+            data = data.substring(data.lastIndexOf('1') + 1, data.length() - 6); // drop the hrp and the checksum
+            int[] words = new int[data.length()];
+            for (int i = 0; i < words.length; i++) {
+                words[i] = BECH32_CHARSET.indexOf(data.charAt(i));
+                if (words[i] < 0) throw new IllegalArgumentException("Invalid bech32 character");
+            }
+            long timestamp = 0;
+            for (int i = 0; i < 7; i++) {
+                timestamp = (timestamp << 5) | words[i];
+            }
+            long expiry = 3600; // bolt11 default
+            int pos = 7;
+            int end = words.length - 104; // the signature
+            while (pos + 3 <= end) {
+                int type = words[pos];
+                int length = (words[pos + 1] << 5) | words[pos + 2];
+                pos += 3;
+                if (type == 6) { // x
+                    expiry = 0;
+                    for (int i = 0; i < length; i++) {
+                        expiry = (expiry << 5) | words[pos + i];
+                    }
+                }
+                pos += length;
+            }
+            return (timestamp + expiry) * 1000;
+        } catch (Exception e) {
+            return createdAt + DEFAULT_INVOICE_EXPIRY;
+        }
+    }
+
+    private void settleLoop() {
+        executor.runLater(
+            () -> {
+                if (closed) return null;
+                for (String nwcUri : accrued.keySet()) {
+                    settle(nwcUri, false);
+                }
+                settleLoop();
+                return null;
+            },
+            settleInterval.toMillis(),
+            TimeUnit.MILLISECONDS
+        );
+    }
+
+    private void scheduleSave() {
+        if (store == null || !saveScheduled.compareAndSet(false, true)) return;
+        executor.runLater(
+            () -> {
+                saveScheduled.set(false);
+                if (closed) return null; // saved on close
+                save()
+                    .catchException(ex -> {
+                        logger.log(Level.WARNING, "Failed to save fee ledger to store", ex);
+                    });
+                return null;
+            },
+            SAVE_DELAY,
+            TimeUnit.MILLISECONDS
+        );
+    }
+
+    /**
+     * Write the ledger to the store, after the previous write.
+     * @return an AsyncTask that completes when the current state of the ledger is stored
+     */
+    private AsyncTask<Void> save() {
+        if (store == null) return NGEPlatform.get().wrapPromise((res, rej) -> res.accept(null));
+        synchronized (saveLock) {
+            AsyncTask<Void> previous = lastSave;
+            AsyncTask<Void> next = NGEPlatform
+                .get()
+                .wrapPromise((res, rej) -> {
+                    Runnable write = () -> {
+                        try {
+                            // serialized when the write starts, so it includes every change made before it
+                            byte[] data = serialize();
+                            store
+                                .writeFully(PATH, data)
+                                .then(v -> {
+                                    res.accept(null);
+                                    return null;
+                                })
+                                .catchException(rej::accept);
+                        } catch (Exception e) {
+                            rej.accept(e);
+                        }
+                    };
+                    if (previous == null) {
+                        write.run();
+                    } else {
+                        previous
+                            .then(v -> {
+                                write.run();
+                                return null;
+                            })
+                            .catchException(ex -> write.run());
+                    }
+                });
+            lastSave = next;
+            return next;
+        }
+    }
+
+    private byte[] serialize() throws Exception {
+        Map<String, Object> pendingData = new HashMap<>();
+        for (Map.Entry<String, Settlement> e : pending.entrySet()) {
+            Map<String, Object> p = new HashMap<>();
+            p.put("amount", e.getValue().amountMsats);
+            p.put("invoice", e.getValue().invoice);
+            p.put("createdAt", e.getValue().createdAt);
+            p.put("expiresAt", e.getValue().expiresAt);
+            pendingData.put(e.getKey(), p);
+        }
+        Map<String, Object> data = new HashMap<>();
+        data.put("accrued", new HashMap<>(accrued));
+        data.put("pending", pendingData);
+        return NGEPlatform.get().toJSON(data).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            save().await();
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Failed to save fee ledger to store", e);
+        }
+        closer.run();
+    }
+}
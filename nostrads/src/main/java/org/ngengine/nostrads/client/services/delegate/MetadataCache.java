@@ -0,0 +1,200 @@
+/**
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2025, Riccardo Balbo
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.ngengine.nostrads.client.services.delegate;
+
+import jakarta.annotation.Nonnull;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import org.ngengine.lnurl.LnUrl;
+import org.ngengine.lnurl.LnUrlService;
+import org.ngengine.nostr4j.NostrPool;
+import org.ngengine.nostr4j.keypair.NostrPublicKey;
+import org.ngengine.nostr4j.nip01.Nip01;
+import org.ngengine.nostr4j.nip01.Nip01UserMetadata;
+import org.ngengine.platform.AsyncTask;
+
+/**
+ * A shared cache of the app metadata and of the LNURL-pay descriptors used by the delegate.
+ *
+ * Concurrent lookups of the same key share a single in-flight fetch, successful results are kept for a
+ * while and failed (or empty) lookups are remembered for a shorter time, so a popular app does not cause
+ * a relay or HTTP round trip for every offer and payment. A fetch still in flight after the negative TTL is
+ * considered hung and the next lookup starts a new one.
+ */
+public final class MetadataCache {
+
+    public static final int DEFAULT_MAX_SIZE = 10_000;
+    public static final long DEFAULT_METADATA_TTL = 5 * 60 * 1000;
+    public static final long DEFAULT_SERVICE_TTL = 30 * 60 * 1000;
+    public static final long DEFAULT_NEGATIVE_TTL = 30 * 1000;
+
+    private final int maxSize;
+    private final long negativeTtl;
+    private final Lookups<Nip01UserMetadata> metadata;
+    private final Lookups<LnUrlService> services;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public MetadataCache() {
+        this(DEFAULT_MAX_SIZE, DEFAULT_METADATA_TTL, DEFAULT_SERVICE_TTL, DEFAULT_NEGATIVE_TTL);
+    }
+
+    /**
+     * @param maxSize the maximum number of entries to keep for each kind of lookup
+     * @param metadataTtl how long app metadata is kept, in milliseconds
+     * @param serviceTtl how long LNURL-pay descriptors are kept, in milliseconds
+     * @param negativeTtl how long failed lookups are remembered and how long a fetch can be in flight before
+     *     it is replaced, in milliseconds
+     */
+    public MetadataCache(int maxSize, long metadataTtl, long serviceTtl, long negativeTtl) {
+        if (maxSize <= 0) throw new IllegalArgumentException("maxSize must be positive");
+        this.maxSize = maxSize;
+        this.negativeTtl = negativeTtl;
+        this.metadata = new Lookups<>(metadataTtl);
+        this.services = new Lookups<>(serviceTtl);
+    }
+
+    /**
+     * Get the metadata of an app, fetching it from the pool if not cached.
+     */
+    public AsyncTask<Nip01UserMetadata> getMetadata(@Nonnull NostrPool pool, @Nonnull NostrPublicKey app) {
+        return metadata.get(app.asHex(), () -> Nip01.fetch(pool, app));
+    }
+
+    /**
+     * Get the service descriptor of an LNURL, fetching it if not cached.
+     */
+    public AsyncTask<LnUrlService> getService(@Nonnull LnUrl lnurl) {
+        return services.get(lnurl.toString(), lnurl::getService);
+    }
+
+    public int size() {
+        return metadata.entries.size() + services.entries.size();
+    }
+
+    /**
+     * Number of lookups served by a cached or in-flight fetch
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Number of lookups that started a new fetch
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public String toString() {
+        return "MetadataCache{size=" + size() + ", hits=" + getHits() + ", misses=" + getMisses() + "}";
+    }
+
+    private static final class Entry<V> {
+
+        final AsyncTask<V> task;
+        // while the fetch is in flight, the time after which it is considered hung and can be replaced
+        volatile long expiresAt;
+
+        Entry(AsyncTask<V> task, long expiresAt) {
+            this.task = task;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final class Lookups<V> {
+
+        final long ttl;
+        final ConcurrentHashMap<String, Entry<V>> entries = new ConcurrentHashMap<>();
+        final ConcurrentLinkedQueue<String> insertionOrder = new ConcurrentLinkedQueue<>();
+
+        Lookups(long ttl) {
+            this.ttl = ttl;
+        }
+
+        AsyncTask<V> get(String key, Supplier<AsyncTask<V>> fetch) {
+            long now = System.currentTimeMillis();
+            Entry<V> current = entries.get(key);
+            if (current != null && current.expiresAt > now) {
+                hits.incrementAndGet();
+                return current.task;
+            }
+
+            // only one caller gets to start the fetch, the others share it
+            Object[] created = new Object[2];
+            Entry<V> entry = entries.compute(
+                key,
+                (k, e) -> {
+                    if (e != null && e.expiresAt > now) return e;
+                    Entry<V> fresh = new Entry<>(fetch.get(), now + negativeTtl);
+                    created[0] = fresh;
+                    created[1] = e; // a replaced entry keeps its place in the insertion order
+                    return fresh;
+                }
+            );
+            if (created[0] != entry) {
+                hits.incrementAndGet();
+                return entry.task;
+            }
+            misses.incrementAndGet();
+
+            entry.task
+                .then(v -> {
+                    entry.expiresAt = System.currentTimeMillis() + (v != null ? ttl : negativeTtl);
+                    return null;
+                })
+                .catchException(ex -> {
+                    entry.expiresAt = System.currentTimeMillis() + negativeTtl;
+                });
+
+            if (created[1] == null) insertionOrder.add(key);
+            if (entries.size() > maxSize) {
+                evict(now);
+            }
+            return entry.task;
+        }
+
+        void evict(long now) {
+            entries.values().removeIf(e -> e.expiresAt <= now);
+            while (entries.size() > maxSize) {
+                String key = insertionOrder.poll();
+                if (key == null) break;
+                entries.remove(key);
+            }
+            insertionOrder.removeIf(key -> !entries.containsKey(key));
+        }
+    }
+}
@@ -31,110 +31,308 @@
 
 package org.ngengine.nostrads.client.services.delegate;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import org.ngengine.platform.AsyncExecutor;
 import org.ngengine.platform.NGEPlatform;
 import org.ngengine.platform.VStore;
 
+/**
+ * Tracks rate limited counters (eg. payouts and budget per bid).
+ *
+ * Counters are updated lock-free, so updates to different counters never contend. Every changed counter is
+ * queued to be logged and the log is written to the store as a small segment, counters that change while a
+ * segment is being written are grouped in the next one. The segments are periodically folded into a snapshot
+ * of the whole tracker and then deleted. On startup the newest snapshot is loaded and the segments written
+ * after it are replayed on top.
+ */
 public class Tracker implements Closeable {
 
     private static final java.util.logging.Logger logger = java.util.logging.Logger.getLogger(Tracker.class.getName());
+    private static final String LEGACY_PATH = "nostrads/tracker";
+    private static final String SNAPSHOT_PREFIX = "nostrads/tracker-wal/snapshot-";
+    private static final String SEGMENT_PREFIX = "nostrads/tracker-wal/log-";
+    private static final String SUFFIX = ".dat";
+    private static final int MAGIC = 0x54524b31; // "TRK1"
+    private static final byte OP_SET = 1;
+
     private final VStore store;
-    private final Map<String, Map<String, TrackedCounter>> tracked = new HashMap<>();
+    private final Map<String, Map<String, TrackedCounter>> tracked = new ConcurrentHashMap<>();
     private final AsyncExecutor cleanupExecutor;
+    private final AsyncExecutor writeExecutor;
     private final Runnable closer;
 
+    // counters by the time they can be dropped, guarded by itself
+    private final PriorityQueue<Expiry> expiries = new PriorityQueue<>();
+
+    // counters changed since they were last logged
+    private final Queue<TrackedCounter> dirty = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean writeScheduled = new AtomicBoolean(false);
+
+    // persistence state, guarded by ioLock
+    private final Object ioLock = new Object();
+    private long seq = 0;
+    private long snapshotSeq = -1;
+    private final List<String> segments = new ArrayList<>();
+    private volatile int maxSegments = 64;
+
     public Tracker(VStore store) {
         this.store = store;
-        String path = "nostrads/tracker";
-        Map<String, Map<String, Object>> data = null;
         try {
-            if (store.exists(path).await()) {
-                byte[] json = store.readFully(path).await();
-                data = NGEPlatform.get().fromJSON(new String(json, StandardCharsets.UTF_8), Map.class);
+            synchronized (ioLock) {
+                load();
             }
         } catch (Exception e) {
             logger.log(Level.WARNING, "Failed to load tracker from store", e);
         }
-        if (data != null) {
-            for (Map.Entry<String, Map<String, Object>> entry : data.entrySet()) {
-                String key = entry.getKey();
-                Map<String, Object> counters = entry.getValue();
-                Map<String, TrackedCounter> counterMap = new HashMap<>();
-                for (Map.Entry<String, Object> c : counters.entrySet()) {
-                    counterMap.put(c.getKey(), TrackedCounter.fromMap((Map<String, Object>) c.getValue()));
-                }
-                tracked.put(key, counterMap);
-            }
-        }
         this.cleanupExecutor = NGEPlatform.get().newAsyncExecutor();
+        this.writeExecutor = NGEPlatform.get().newAsyncExecutor(Tracker.class);
         cleanupLoop();
-        this.closer = NGEPlatform.get().registerFinalizer(this, () -> cleanupExecutor.close());
+        AsyncExecutor cleanupExecutor = this.cleanupExecutor;
+        AsyncExecutor writeExecutor = this.writeExecutor;
+        this.closer =
+            NGEPlatform
+                .get()
+                .registerFinalizer(
+                    this,
+                    () -> {
+                        cleanupExecutor.close();
+                        writeExecutor.close();
+                    }
+                );
+    }
+
+    /**
+     * Set how many log segments can be written before they are folded into a new snapshot.
+     */
+    public void setMaxSegments(int maxSegments) {
+        this.maxSegments = maxSegments;
     }
 
-    public synchronized void increment(String key, String counter, long resetIntervalSeconds, long maxValue) {
-        Map<String, TrackedCounter> counters = tracked.computeIfAbsent(key, k -> new HashMap<>());
-        TrackedCounter tc = counters.computeIfAbsent(counter, k -> new TrackedCounter(0, 0, resetIntervalSeconds, maxValue));
-        Instant now = Instant.now();
-        if (tc.lastReset == 0 || now.getEpochSecond() - tc.lastReset >= tc.resetIntervalSeconds) {
-            tc.value = 0;
-            tc.lastReset = now.getEpochSecond();
+    private static long parseSeq(String path, String prefix) {
+        if (!path.startsWith(prefix) || !path.endsWith(SUFFIX)) return -1;
+        try {
+            return Long.parseLong(path.substring(prefix.length(), path.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
         }
-        tc.value++;
-        commit();
     }
 
-    public synchronized boolean canIncrement(String key, String counter, long resetIntervalSeconds, long maxValue) {
-        Map<String, TrackedCounter> counters = tracked.computeIfAbsent(key, k -> new HashMap<>());
-        TrackedCounter tc = counters.computeIfAbsent(counter, k -> new TrackedCounter(0, 0, resetIntervalSeconds, maxValue));
-        Instant now = Instant.now();
-        if (tc.lastReset == 0 || now.getEpochSecond() - tc.lastReset >= tc.resetIntervalSeconds) {
-            tc.value = 0;
-            tc.lastReset = now.getEpochSecond();
+    private void load() throws Exception {
+        // must be called while holding ioLock
+        List<Long> snapshots = new ArrayList<>();
+        List<Long> logs = new ArrayList<>();
+        for (String path : store.listAll().await()) {
+            long s = parseSeq(path, SNAPSHOT_PREFIX);
+            if (s >= 0) snapshots.add(s);
+            s = parseSeq(path, SEGMENT_PREFIX);
+            if (s >= 0) logs.add(s);
+        }
+        Collections.sort(snapshots, Collections.reverseOrder());
+        Collections.sort(logs);
+
+        // newest valid snapshot, a partially written one is skipped
+        for (long s : snapshots) {
+            try {
+                readSnapshot(store.readFully(SNAPSHOT_PREFIX + s + SUFFIX).await());
+                snapshotSeq = s;
+                break;
+            } catch (Exception e) {
+                logger.log(Level.WARNING, "Skipping invalid tracker snapshot " + s, e);
+                tracked.clear();
+            }
+        }
+        seq = Math.max(seq, snapshotSeq);
+
+        if (snapshotSeq < 0 && store.exists(LEGACY_PATH).await()) {
+            readLegacy(store.readFully(LEGACY_PATH).await());
+        }
+
+        for (long s : logs) {
+            String path = SEGMENT_PREFIX + s + SUFFIX;
+            if (s <= snapshotSeq) {
+                store.delete(path).await(); // already in the snapshot
+                continue;
+            }
+            replay(store.readFully(path).await());
+            segments.add(path);
+            seq = Math.max(seq, s);
+        }
+        for (long s : snapshots) {
+            if (s != snapshotSeq) store.delete(SNAPSHOT_PREFIX + s + SUFFIX).await();
+        }
+
+        if (snapshotSeq < 0 && store.exists(LEGACY_PATH).await()) {
+            snapshot0();
+            store.delete(LEGACY_PATH).await();
+            logger.info("Migrated tracker to the write-ahead log");
         }
-        return tc.value < maxValue;
     }
 
-    public synchronized long getValue(String key, String counter) {
+    @SuppressWarnings("unchecked")
+    private void readLegacy(byte[] json) {
+        Map<String, Map<String, Object>> data = NGEPlatform.get().fromJSON(new String(json, StandardCharsets.UTF_8), Map.class);
+        if (data == null) return;
+        for (Map.Entry<String, Map<String, Object>> entry : data.entrySet()) {
+            String key = entry.getKey();
+            Map<String, Object> counters = entry.getValue();
+            Map<String, TrackedCounter> counterMap = new ConcurrentHashMap<>();
+            for (Map.Entry<String, Object> c : counters.entrySet()) {
+                TrackedCounter tc = TrackedCounter.fromMap(key, c.getKey(), (Map<String, Object>) c.getValue());
+                counterMap.put(c.getKey(), tc);
+                scheduleExpiry(tc);
+            }
+            tracked.put(key, counterMap);
+        }
+    }
+
+    private void readSnapshot(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        if (in.readInt() != MAGIC) throw new IOException("Invalid tracker snapshot header");
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            readRecord(in);
+        }
+    }
+
+    private void replay(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        try {
+            while (in.available() > 0) {
+                readRecord(in);
+            }
+        } catch (EOFException e) {
+            logger.warning("Ignoring truncated tracker log record");
+        }
+    }
+
+    private void readRecord(DataInputStream in) throws IOException {
+        byte op = in.readByte();
+        if (op != OP_SET) throw new IOException("Unknown tracker log record " + op);
+        String key = in.readUTF();
+        String counter = in.readUTF();
+        long value = in.readLong();
+        long lastReset = in.readLong();
+        TrackedCounter tc = new TrackedCounter(key, counter, value, lastReset, in.readLong(), in.readLong());
+        tracked.computeIfAbsent(key, k -> new ConcurrentHashMap<>()).put(counter, tc);
+        scheduleExpiry(tc);
+    }
+
+    /**
+     * @return false if the counter was dropped and nothing was written
+     */
+    private static boolean writeRecord(DataOutputStream out, TrackedCounter tc) throws IOException {
+        Window w = tc.window.get();
+        if (w == TrackedCounter.DROPPED) return false;
+        out.writeByte(OP_SET);
+        out.writeUTF(tc.key);
+        out.writeUTF(tc.counter);
+        out.writeLong(w.value);
+        out.writeLong(w.lastReset);
+        out.writeLong(tc.resetIntervalSeconds);
+        out.writeLong(tc.maxValue);
+        return true;
+    }
+
+    private TrackedCounter getCounter(String key, String counter, long resetIntervalSeconds, long maxValue) {
+        Map<String, TrackedCounter> counters = tracked.get(key);
+        TrackedCounter tc = counters != null ? counters.get(counter) : null;
+        if (tc != null) return tc;
+        // created under the lock of the key, so it can't be added to a map that is being dropped by untrack
+        TrackedCounter[] created = new TrackedCounter[1];
+        tracked.compute(
+            key,
+            (k, m) -> {
+                if (m == null) m = new ConcurrentHashMap<>();
+                created[0] =
+                    m.computeIfAbsent(counter, c -> new TrackedCounter(key, counter, 0, 0, resetIntervalSeconds, maxValue));
+                return m;
+            }
+        );
+        return created[0];
+    }
+
+    private void untrack(TrackedCounter tc) {
+        tracked.computeIfPresent(
+            tc.key,
+            (k, counters) -> {
+                counters.remove(tc.counter, tc);
+                return counters.isEmpty() ? null : counters;
+            }
+        );
+    }
+
+    /**
+     * Atomically add delta to the counter, starting a new window if the current one has expired.
+     *
+     * @param key the tracked entity (eg. the bid id)
+     * @param counter the counter name
+     * @param resetIntervalSeconds the length of the window, used when the counter is created
+     * @param maxValue the limit, the counter is not changed if it would go above it
+     * @param delta how much to add, can be negative to give back a previous increment
+     * @return true if the counter was changed, false if the limit would be exceeded
+     */
+    public boolean tryIncrement(String key, String counter, long resetIntervalSeconds, long maxValue, long delta) {
+        long now = Instant.now().getEpochSecond();
+        while (true) {
+            TrackedCounter tc = getCounter(key, counter, resetIntervalSeconds, maxValue);
+            if (tc.add(now, delta, maxValue)) {
+                scheduleExpiry(tc);
+                log(tc);
+                return true;
+            }
+            if (!tc.isDropped()) return false;
+            // the cleanup loop dropped the counter in the meantime, apply the change to a new one
+            untrack(tc);
+        }
+    }
+
+    public void increment(String key, String counter, long resetIntervalSeconds, long maxValue) {
+        tryIncrement(key, counter, resetIntervalSeconds, Long.MAX_VALUE, 1);
+    }
+
+    public boolean canIncrement(String key, String counter, long resetIntervalSeconds, long maxValue) {
+        return getValue(key, counter) < maxValue;
+    }
+
+    public long getValue(String key, String counter) {
         Map<String, TrackedCounter> counters = tracked.get(key);
         if (counters == null) return 0;
         TrackedCounter tc = counters.get(counter);
         if (tc == null) return 0;
-        Instant now = Instant.now();
-        if (tc.lastReset == 0 || now.getEpochSecond() - tc.lastReset >= tc.resetIntervalSeconds) {
+        Window w = tc.window.get();
+        if (tc.isExpired(w, Instant.now().getEpochSecond())) {
             return 0;
         }
-        return tc.value;
+        return w.value;
     }
 
     private void cleanupLoop() {
         this.cleanupExecutor.runLater(
                 () -> {
-                    synchronized (this) {
-                        Instant now = Instant.now();
-                        AtomicBoolean changed = new AtomicBoolean(false);
-                        for (Map<String, TrackedCounter> counters : tracked.values()) {
-                            counters
-                                .entrySet()
-                                .removeIf(entry -> {
-                                    TrackedCounter tc = entry.getValue();
-                                    if (
-                                        tc.lastReset != 0 && now.getEpochSecond() - tc.lastReset >= tc.resetIntervalSeconds * 3
-                                    ) {
-                                        changed.set(true);
-                                        return true;
-                                    }
-                                    return false;
-                                });
-                        }
-                        if (changed.get()) {
-                            commit();
+                    dropExpired(Instant.now().getEpochSecond());
+                    synchronized (ioLock) {
+                        if (segments.size() > maxSegments) {
+                            try {
+                                snapshot0();
+                            } catch (Exception e) {
+                                logger.log(Level.WARNING, "Failed to snapshot tracker", e);
+                            }
                         }
                     }
                     cleanupLoop();
@@ -145,55 +343,262 @@ public class Tracker implements Closeable {
             );
     }
 
+    /**
+     * Queue the counter to be dropped when its current window is stale, if not queued already.
+     * Deadlines only move forward, so a thread that read an older window never replaces a newer deadline.
+     */
+    private void scheduleExpiry(TrackedCounter tc) {
+        while (true) {
+            long deadline = tc.getDeadline();
+            long scheduled = tc.scheduledDeadline.get();
+            if (deadline == Long.MAX_VALUE || deadline <= scheduled) return;
+            if (tc.scheduledDeadline.compareAndSet(scheduled, deadline)) {
+                synchronized (expiries) {
+                    expiries.add(new Expiry(deadline, tc));
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Drop the counters whose deadline has passed, only the due entries are visited.
+     * A dropped counter can't be changed anymore, so an increment racing with the cleanup either keeps the counter
+     * alive or is applied to a new one, it is never lost.
+     * Dropped counters are not logged: replaying them is harmless and the next snapshot leaves them out.
+     */
+    private void dropExpired(long now) {
+        while (true) {
+            Expiry e;
+            synchronized (expiries) {
+                e = expiries.peek();
+                if (e == null || e.deadline > now) return;
+                expiries.poll();
+            }
+            TrackedCounter tc = e.counter;
+            // superseded by a newer window, that has its own entry
+            if (e.deadline != tc.scheduledDeadline.get()) continue;
+            // fails if the window was changed since it became stale, the counter is kept
+            if (tc.drop(now)) untrack(tc);
+        }
+    }
+
+    private void log(TrackedCounter tc) {
+        if (tc.dirty.compareAndSet(false, true)) {
+            dirty.add(tc);
+        }
+        commit();
+    }
+
+    /**
+     * Schedule a write of the changed counters, if one is not already scheduled.
+     * Counters changed while a write is in progress are grouped in the next one.
+     */
     private void commit() {
-        synchronized (this) {
+        if (dirty.isEmpty() || !writeScheduled.compareAndSet(false, true)) return;
+        writeExecutor.run(() -> {
+            boolean written = false;
             try {
-                Map<String, Map<String, Object>> serializable = new HashMap<>();
-                for (Map.Entry<String, Map<String, TrackedCounter>> entry : tracked.entrySet()) {
-                    Map<String, Object> counters = new HashMap<>();
-                    for (Map.Entry<String, TrackedCounter> c : entry.getValue().entrySet()) {
-                        counters.put(c.getKey(), c.getValue().toMap());
-                    }
-                    serializable.put(entry.getKey(), counters);
+                written = writeSegment();
+            } finally {
+                writeScheduled.set(false);
+            }
+            // group what changed in the meantime, a failed write is retried with the next change
+            if (written) commit();
+            return null;
+        });
+    }
+
+    private boolean writeSegment() {
+        // the queue is drained while holding ioLock, so segments are always written in order
+        synchronized (ioLock) {
+            List<TrackedCounter> batch = new ArrayList<>();
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bos);
+            try {
+                TrackedCounter tc;
+                while ((tc = dirty.poll()) != null) {
+                    // cleared before reading the state, so a concurrent change queues it again
+                    tc.dirty.set(false);
+                    // a dropped counter is not logged, its last logged state is stale and it is dropped again on load
+                    if (!writeRecord(out, tc)) continue;
+                    batch.add(tc);
                 }
-                String json = NGEPlatform.get().toJSON(serializable);
-                store.writeFully("nostrads/tracker", json.getBytes(StandardCharsets.UTF_8)).await();
+                if (batch.isEmpty()) return true;
+                String path = SEGMENT_PREFIX + (++seq) + SUFFIX;
+                store.writeFully(path, bos.toByteArray()).await();
+                segments.add(path);
+                return true;
             } catch (Exception e) {
-                logger.log(Level.WARNING, "Failed to save tracker to store", e);
+                logger.log(Level.WARNING, "Failed to save tracker log to store", e);
+                // queue them again, they will be retried with the next write
+                for (TrackedCounter tc : batch) {
+                    if (tc.dirty.compareAndSet(false, true)) dirty.add(tc);
+                }
+                return false;
             }
         }
     }
 
+    /**
+     * Write all the changed counters now.
+     */
+    public void flush() {
+        writeSegment();
+    }
+
+    /**
+     * Write a snapshot of the whole tracker and drop the log segments it replaces.
+     */
+    public void snapshot() {
+        synchronized (ioLock) {
+            try {
+                snapshot0();
+            } catch (Exception e) {
+                logger.log(Level.WARNING, "Failed to snapshot tracker", e);
+            }
+        }
+    }
+
+    private void snapshot0() throws Exception {
+        // must be called while holding ioLock
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+        int count = 0;
+        for (Map<String, TrackedCounter> counters : tracked.values()) {
+            for (TrackedCounter tc : counters.values()) {
+                if (writeRecord(out, tc)) count++;
+            }
+        }
+        byte[] records = bos.toByteArray();
+        bos = new ByteArrayOutputStream(8 + records.length);
+        out = new DataOutputStream(bos);
+        out.writeInt(MAGIC);
+        out.writeInt(count);
+        out.write(records);
+
+        long s = ++seq;
+        store.writeFully(SNAPSHOT_PREFIX + s + SUFFIX, bos.toByteArray()).await();
+
+        // the new snapshot is complete, the old files can go
+        if (snapshotSeq >= 0) {
+            store.delete(SNAPSHOT_PREFIX + snapshotSeq + SUFFIX).await();
+        }
+        for (String path : segments) {
+            try {
+                store.delete(path).await();
+            } catch (Exception e) {
+                logger.log(Level.WARNING, "Failed to delete tracker log segment " + path, e);
+            }
+        }
+        segments.clear();
+        snapshotSeq = s;
+    }
+
     @Override
     public void close() {
+        flush();
         closer.run();
     }
 
-    private static class TrackedCounter {
+    private static final class Window {
 
-        long value;
-        long lastReset;
-        long resetIntervalSeconds;
-        long maxValue;
+        final long value;
+        final long lastReset;
 
-        TrackedCounter(long value, long lastReset, long resetIntervalSeconds, long maxValue) {
+        Window(long value, long lastReset) {
             this.value = value;
             this.lastReset = lastReset;
+        }
+    }
+
+    private static final class Expiry implements Comparable<Expiry> {
+
+        final long deadline;
+        final TrackedCounter counter;
+
+        Expiry(long deadline, TrackedCounter counter) {
+            this.deadline = deadline;
+            this.counter = counter;
+        }
+
+        @Override
+        public int compareTo(Expiry o) {
+            return Long.compare(deadline, o.deadline);
+        }
+    }
+
+    private static final class TrackedCounter {
+
+        // the window of a dropped counter
+        static final Window DROPPED = new Window(0, 0);
+
+        final String key;
+        final String counter;
+        final long resetIntervalSeconds;
+        final long maxValue;
+        final AtomicReference<Window> window;
+        final AtomicBoolean dirty = new AtomicBoolean(false);
+        // the deadline of the newest expiry entry, 0 if none
+        final AtomicLong scheduledDeadline = new AtomicLong(0);
+
+        TrackedCounter(String key, String counter, long value, long lastReset, long resetIntervalSeconds, long maxValue) {
+            this.key = key;
+            this.counter = counter;
             this.resetIntervalSeconds = resetIntervalSeconds;
             this.maxValue = maxValue;
+            this.window = new AtomicReference<>(new Window(value, lastReset));
+        }
+
+        boolean isExpired(Window w, long now) {
+            return w.lastReset == 0 || now - w.lastReset >= resetIntervalSeconds;
+        }
+
+        /**
+         * @return when the current window becomes stale and the counter can be dropped
+         */
+        long getDeadline() {
+            return getDeadline(window.get());
         }
 
-        Map<String, Object> toMap() {
-            Map<String, Object> m = new HashMap<>();
-            m.put("value", value);
-            m.put("lastReset", lastReset);
-            m.put("resetIntervalSeconds", resetIntervalSeconds);
-            m.put("maxValue", maxValue);
-            return m;
+        private long getDeadline(Window w) {
+            return w.lastReset == 0 ? Long.MAX_VALUE : w.lastReset + resetIntervalSeconds * 3;
+        }
+
+        boolean isDropped() {
+            return window.get() == DROPPED;
+        }
+
+        /**
+         * Replace the window with a tombstone if it is stale, the counter can't be changed after that.
+         * @return false if the window is not stale or it was changed concurrently
+         */
+        boolean drop(long now) {
+            Window w = window.get();
+            if (w == DROPPED || now < getDeadline(w)) return false;
+            return window.compareAndSet(w, DROPPED);
+        }
+
+        /**
+         * Reset the window if expired and add delta, unless the result would go above limit.
+         */
+        boolean add(long now, long delta, long limit) {
+            while (true) {
+                Window w = window.get();
+                if (w == DROPPED) return false;
+                boolean expired = isExpired(w, now);
+                long value = expired ? 0 : w.value;
+                long lastReset = expired ? now : w.lastReset;
+                if (delta > 0 && value > limit - delta) return false;
+                Window next = new Window(Math.max(0, value + delta), lastReset);
+                if (window.compareAndSet(w, next)) return true;
+            }
         }
 
-        static TrackedCounter fromMap(Map<String, Object> m) {
+        static TrackedCounter fromMap(String key, String counter, Map<String, Object> m) {
             return new TrackedCounter(
+                key,
+                counter,
                 ((Number) m.getOrDefault("value", 0)).longValue(),
                 ((Number) m.getOrDefault("lastReset", 0)).longValue(),
                 ((Number) m.getOrDefault("resetIntervalSeconds", 0)).longValue(),
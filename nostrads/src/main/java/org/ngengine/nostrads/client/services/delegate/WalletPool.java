@@ -0,0 +1,418 @@
+/**
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2025, Riccardo Balbo
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.ngengine.nostrads.client.services.delegate;
+
+import jakarta.annotation.Nonnull;
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.ngengine.platform.AsyncExecutor;
+import org.ngengine.platform.AsyncTask;
+import org.ngengine.platform.NGEPlatform;
+import org.ngengine.wallets.InvoiceData;
+import org.ngengine.wallets.PayResponse;
+import org.ngengine.wallets.Wallet;
+import org.ngengine.wallets.nip47.NWCUri;
+import org.ngengine.wallets.nip47.NWCWallet;
+
+/**
+ * A pool of NWC wallet connections, keyed by NWC URI.
+ *
+ * All the bids funded by the same wallet share one connection: {@link #acquire(String)} returns a {@link Lease} that
+ * must be closed when the bid is done with it, and connections nobody holds are closed after being idle for a
+ * while. Payments from all the leases are pipelined on the shared connection, up to a maximum number of
+ * requests in flight, the others are queued up to a maximum depth and rejected past it.
+ *
+ * Connections are opened lazily on the first payment, unless they are {@link #warm(String) warmed}.
+ */
+public final class WalletPool implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(WalletPool.class.getName());
+    public static final long DEFAULT_IDLE_TIMEOUT = 5 * 60 * 1000;
+    public static final int DEFAULT_MAX_IN_FLIGHT = 8;
+    public static final int DEFAULT_MAX_QUEUED = 256;
+
+    private final Function<String, Wallet> factory;
+    private final long idleTimeout;
+    private final int maxInFlight;
+    private final int maxQueued;
+    private final Map<String, Connection> connections = new HashMap<>(); // guarded by this
+    private final AsyncExecutor evictExecutor;
+    private final Runnable closer;
+    private volatile boolean closed = false;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    public WalletPool() {
+        this(uri -> new NWCWallet(new NWCUri(uri)), DEFAULT_IDLE_TIMEOUT, DEFAULT_MAX_IN_FLIGHT, DEFAULT_MAX_QUEUED);
+    }
+
+    public WalletPool(@Nonnull Function<String, Wallet> factory, long idleTimeout, int maxInFlight) {
+        this(factory, idleTimeout, maxInFlight, DEFAULT_MAX_QUEUED);
+    }
+
+    /**
+     * @param factory creates the wallet connection for a URI
+     * @param idleTimeout how long a connection nobody holds is kept open, in milliseconds
+     * @param maxInFlight the maximum number of concurrent payments on a connection
+     * @param maxQueued the maximum number of payments waiting for a connection, more are rejected
+     */
+    public WalletPool(@Nonnull Function<String, Wallet> factory, long idleTimeout, int maxInFlight, int maxQueued) {
+        if (maxInFlight <= 0) throw new IllegalArgumentException("maxInFlight must be positive");
+        if (maxQueued < 0) throw new IllegalArgumentException("maxQueued must not be negative");
+        this.factory = factory;
+        this.idleTimeout = idleTimeout;
+        this.maxInFlight = maxInFlight;
+        this.maxQueued = maxQueued;
+        this.evictExecutor = NGEPlatform.get().newAsyncExecutor(WalletPool.class);
+        AsyncExecutor evictExecutor = this.evictExecutor;
+        this.closer = NGEPlatform.get().registerFinalizer(this, () -> evictExecutor.close());
+        evictLoop();
+    }
+
+    /**
+     * Get a lease on the connection for the given NWC URI.
+     * The lease must be closed to release it, closing it does not close the shared connection.
+     */
+    public synchronized Lease acquire(@Nonnull String nwcUri) {
+        if (closed) throw new IllegalStateException("Wallet pool is closed");
+        Connection c = connections.computeIfAbsent(nwcUri, Connection::new);
+        c.refs++;
+        return new Lease(c);
+    }
+
+    /**
+     * Open the connection for the given NWC URI now, instead of waiting for the first payment.
+     */
+    public void warm(@Nonnull String nwcUri) {
+        Connection c;
+        synchronized (this) {
+            if (closed) return;
+            c = connections.computeIfAbsent(nwcUri, Connection::new);
+            c.idleSince = System.currentTimeMillis();
+        }
+        try {
+            c.connect();
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Failed to warm wallet connection", e);
+        }
+    }
+
+    private synchronized void release(Connection c) {
+        c.refs--;
+        if (c.refs == 0) c.idleSince = System.currentTimeMillis();
+    }
+
+    /**
+     * Number of open connections
+     */
+    public synchronized int size() {
+        return connections.size();
+    }
+
+    /**
+     * Number of payments currently in flight, on all the connections
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Number of payments currently waiting for a connection
+     */
+    public int getQueueDepth() {
+        return queued.get();
+    }
+
+    /**
+     * Number of payments waiting for the connection of the given NWC URI
+     */
+    public int getQueueDepth(@Nonnull String nwcUri) {
+        Connection c;
+        synchronized (this) {
+            c = connections.get(nwcUri);
+        }
+        if (c == null) return 0;
+        synchronized (c) {
+            return c.queue.size();
+        }
+    }
+
+    /**
+     * The highest number of payments that have been waiting at the same time on a single connection
+     */
+    public int getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+
+    /**
+     * Number of payments that completed successfully
+     */
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    /**
+     * Number of payments that failed
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * Number of payments rejected because the queue of their connection was full
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    @Override
+    public String toString() {
+        return (
+            "WalletPool{connections=" +
+            size() +
+            ", inFlight=" +
+            getInFlight() +
+            ", queued=" +
+            getQueueDepth() +
+            ", maxQueueDepth=" +
+            getMaxQueueDepth() +
+            ", completed=" +
+            getCompleted() +
+            ", failed=" +
+            getFailed() +
+            ", rejected=" +
+            getRejected() +
+            "}"
+        );
+    }
+
+    private void evictLoop() {
+        evictExecutor.runLater(
+            () -> {
+                if (closed) return null;
+                evictIdle(System.currentTimeMillis());
+                evictLoop();
+                return null;
+            },
+            Math.max(1000, idleTimeout / 2),
+            TimeUnit.MILLISECONDS
+        );
+    }
+
+    private void evictIdle(long now) {
+        List<Connection> evicted = new ArrayList<>();
+        synchronized (this) {
+            connections
+                .values()
+                .removeIf(c -> {
+                    if (!c.isIdle(now)) return false;
+                    evicted.add(c);
+                    return true;
+                });
+        }
+        for (Connection c : evicted) {
+            logger.fine("Closing idle wallet connection");
+            c.close();
+        }
+    }
+
+    @Override
+    public void close() {
+        List<Connection> all;
+        synchronized (this) {
+            closed = true;
+            all = new ArrayList<>(connections.values());
+            connections.clear();
+        }
+        for (Connection c : all) {
+            c.close();
+        }
+        closer.run();
+    }
+
+    private final class Connection {
+
+        final String uri;
+        final Queue<Runnable> queue = new ArrayDeque<>(); // guarded by this
+        int inFlight = 0; // guarded by this
+        int refs = 0; // guarded by the pool
+        long idleSince = System.currentTimeMillis(); // guarded by the pool
+        Wallet wallet; // guarded by this
+        boolean closed = false; // guarded by this
+
+        Connection(String uri) {
+            this.uri = uri;
+        }
+
+        synchronized Wallet connect() {
+            if (closed) throw new IllegalStateException("Wallet connection is closed");
+            if (wallet == null) {
+                wallet = factory.apply(uri);
+            }
+            return wallet;
+        }
+
+        synchronized boolean isIdle(long now) {
+            return refs == 0 && inFlight == 0 && now - idleSince >= idleTimeout;
+        }
+
+        AsyncTask<PayResponse> payInvoice(String invoice, Long amount) {
+            return NGEPlatform
+                .get()
+                .wrapPromise((res, rej) -> {
+                    Runnable request = () -> {
+                        try {
+                            connect()
+                                .payInvoice(invoice, amount)
+                                .then(r -> {
+                                    completed.incrementAndGet();
+                                    res.accept(r);
+                                    next();
+                                    return null;
+                                })
+                                .catchException(ex -> {
+                                    failed.incrementAndGet();
+                                    rej.accept(ex);
+                                    next();
+                                });
+                        } catch (Exception e) {
+                            failed.incrementAndGet();
+                            rej.accept(e);
+                            next();
+                        }
+                    };
+                    synchronized (this) {
+                        if (inFlight >= maxInFlight) {
+                            if (queue.size() >= maxQueued) {
+                                rejected.incrementAndGet();
+                                rej.accept(new IllegalStateException("Too many pending payments for this wallet"));
+                                return;
+                            }
+                            queue.add(request);
+                            queued.incrementAndGet();
+                            maxQueueDepth.accumulateAndGet(queue.size(), Math::max);
+                            return;
+                        }
+                        inFlight++;
+                    }
+                    WalletPool.this.inFlight.incrementAndGet();
+                    request.run();
+                });
+        }
+
+        /**
+         * Called when a request completes, starts the next queued one on the freed slot.
+         */
+        private void next() {
+            Runnable request;
+            synchronized (this) {
+                request = queue.poll();
+                if (request == null) {
+                    inFlight--;
+                    WalletPool.this.inFlight.decrementAndGet();
+                    return;
+                }
+            }
+            queued.decrementAndGet();
+            request.run();
+        }
+
+        void close() {
+            Wallet w;
+            synchronized (this) {
+                closed = true;
+                w = wallet;
+                wallet = null;
+            }
+            if (w != null) {
+                try {
+                    w.close();
+                } catch (Exception e) {
+                    logger.log(Level.WARNING, "Error closing wallet connection", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * A lease on a pooled wallet connection.
+     */
+    public final class Lease implements Closeable {
+
+        private final Connection connection;
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        Lease(Connection connection) {
+            this.connection = connection;
+        }
+
+        public AsyncTask<PayResponse> payInvoice(String invoice, Long amount) {
+            if (released.get()) throw new IllegalStateException("Wallet lease is closed");
+            return connection.payInvoice(invoice, amount);
+        }
+
+        /**
+         * Look up an invoice paid or created by the wallet.
+         */
+        public AsyncTask<InvoiceData> lookupInvoice(String invoice) {
+            if (released.get()) throw new IllegalStateException("Wallet lease is closed");
+            return connection.connect().lookupInvoice(invoice);
+        }
+
+        /**
+         * Release the lease, the connection stays open for the other leases.
+         */
+        @Override
+        public void close() {
+            if (released.compareAndSet(false, true)) {
+                release(connection);
+            }
+        }
+    }
+}
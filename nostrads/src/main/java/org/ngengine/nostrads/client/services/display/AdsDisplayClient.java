@@ -34,7 +34,6 @@ package org.ngengine.nostrads.client.services.display;
 import jakarta.annotation.Nonnull;
 import jakarta.annotation.Nullable;
 import java.util.Map;
-import java.util.WeakHashMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Consumer;
 import java.util.function.Function;
@@ -68,11 +67,12 @@ public class AdsDisplayClient extends AbstractAdService {
 
     private static final Logger logger = Logger.getLogger(AdsDisplayClient.class.getName());
 
-    private final Map<String, RankedAd> bidsCache = new WeakHashMap<>();
+    private final BidCache bidsCache = new BidCache();
     private final Map<Adspace, RankedAdsQueue> queues = new ConcurrentHashMap<>();
     private final PenaltyStorage penaltyStorage;
     private int penaltyIncrease = 1; // default penalty increase for failed negotiations
     private final RefreshAdspaceCallback refreshCallback;
+    private final BidIngestion ingestion;
 
     /**
      * Constructor for AdsDisplayClient.
@@ -91,6 +91,36 @@ public class AdsDisplayClient extends AbstractAdService {
         super(pool, signer, taxonomy);
         this.penaltyStorage = penaltyStorage;
         this.refreshCallback = refreshCallback;
+        // all the adspaces share the same ingestion, so overlapping bids are fetched only once
+        this.ingestion = new BidIngestion(getTaxonomy(), pool, penaltyStorage, bidsCache, false);
+        registerCloser(() -> {
+            for (RankedAdsQueue queue : queues.values()) {
+                queue.close();
+            }
+            queues.clear();
+            ingestion.close();
+        });
+    }
+
+    /**
+     * Enable or disable the streaming mode.
+     * In streaming mode the queues are backfilled once and then kept up to date by a live subscription,
+     * instead of polling the relays periodically.
+     * @param streaming true to enable the streaming mode
+     */
+    public void setStreaming(boolean streaming) {
+        ingestion.setStreaming(streaming);
+    }
+
+    public boolean isStreaming() {
+        return ingestion.isStreaming();
+    }
+
+    /**
+     * Get the cache of the parsed bids shared by all the adspaces, eg. to check its hit rate.
+     */
+    public BidCache getBidCache() {
+        return bidsCache;
     }
 
     /**
@@ -111,7 +141,7 @@ public class AdsDisplayClient extends AbstractAdService {
             adspace,
             (k, v) -> {
                 if (v == null) {
-                    return new RankedAdsQueue(getTaxonomy(), getPool(), penaltyStorage, bidsCache, adspace);
+                    return new RankedAdsQueue(ingestion, adspace);
                 } else {
                     v.refs.incrementAndGet();
                     return v;
@@ -129,6 +159,7 @@ public class AdsDisplayClient extends AbstractAdService {
             adspace,
             (k, v) -> {
                 if (v.refs.decrementAndGet() <= 0) {
+                    v.close();
                     return null; // Remove the adspace if no more references
                 } else {
                     return v;
@@ -34,6 +34,7 @@ package org.ngengine.nostrads.client.services.display;
 import jakarta.annotation.Nonnull;
 import jakarta.annotation.Nullable;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import org.ngengine.nostr4j.NostrFilter;
 import org.ngengine.nostr4j.keypair.NostrPublicKey;
@@ -56,6 +57,7 @@ public class Adspace {
     private List<AdTaxonomy.Term> categories;
     private List<NostrPublicKey> advertisersWhitelist;
     private List<String> languages;
+    private int numBidsToLoad = NUM_BIDS_TO_LAOD;
 
     public Adspace(
         @Nonnull NostrPublicKey appKey,
@@ -80,8 +82,15 @@ public class Adspace {
      * @return a NostrFilter that matches bids for this adspace
      */
     public NostrFilter toFilter() {
+        return toFilter(getMimeTypes());
+    }
+
+    /**
+     * Build the filter for this adspace with a different set of mime types.
+     */
+    NostrFilter toFilter(Collection<AdMimeType> mimeTypes) {
         AdBidFilter filter = new AdBidFilter();
-        filter.limit(NUM_BIDS_TO_LAOD);
+        filter.limit(numBidsToLoad);
         filter.withPriceSlot(getPriceSlot());
         if (getAdvertisersWhitelist() != null) {
             for (NostrPublicKey advertiser : getAdvertisersWhitelist()) {
@@ -94,7 +103,7 @@ public class Adspace {
             filter.withLanguages(langs.toArray(new String[0]));
         }
 
-        filter.withMimeTypes(getMimeTypes().toArray(new AdMimeType[0]));
+        filter.withMimeTypes(mimeTypes.toArray(new AdMimeType[0]));
         return filter;
     }
 
@@ -213,6 +222,17 @@ public class Adspace {
         return this;
     }
 
+    /**
+     * Set how many bids are fetched for this adspace with each request, defaults to {@link #NUM_BIDS_TO_LAOD}.
+     */
+    public void setNumBidsToLoad(int numBidsToLoad) {
+        this.numBidsToLoad = numBidsToLoad;
+    }
+
+    public int getNumBidsToLoad() {
+        return numBidsToLoad;
+    }
+
     public void setAdvertisersWhitelist(@Nullable List<NostrPublicKey> advertisersWhitelist) {
         this.advertisersWhitelist = advertisersWhitelist;
     }
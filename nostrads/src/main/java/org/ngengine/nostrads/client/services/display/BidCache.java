@@ -0,0 +1,251 @@
+/**
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2025, Riccardo Balbo
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.ngengine.nostrads.client.services.display;
+
+import jakarta.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A concurrent cache of the parsed bids, keyed by event id.
+ * The ranking state of a bid (deranks and penalty) lives in its {@link RankedAd}, so the same instance is
+ * shared by every queue and reused across refreshes instead of reparsing the event.
+ *
+ * Entries expire with the bid they hold, and when the cache is full the oldest entries are evicted first.
+ */
+public final class BidCache {
+
+    public static final int DEFAULT_MAX_SIZE = 100_000;
+    private static final int MIN_SWEEP = 1024;
+
+    private final int maxSize;
+    private final Map<String, RankedAd> entries;
+    // entries removed early (eg. expired) are left in the queue and skipped, since they don't match the cached instance,
+    // until there are as many of them as live entries and they are swept
+    private final ConcurrentLinkedQueue<Insertion> insertionOrder = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger staleInsertions = new AtomicInteger();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private static final class Insertion {
+
+        final String id;
+        final RankedAd ad;
+
+        Insertion(String id, RankedAd ad) {
+            this.id = id;
+            this.ad = ad;
+        }
+    }
+
+    public BidCache() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * @param maxSize the maximum number of bids to keep in the cache
+     */
+    public BidCache(int maxSize) {
+        this(new ConcurrentHashMap<>(), maxSize);
+    }
+
+    private BidCache(Map<String, RankedAd> entries, int maxSize) {
+        if (maxSize <= 0) throw new IllegalArgumentException("maxSize must be positive");
+        this.maxSize = maxSize;
+        this.entries = entries;
+        for (RankedAd r : values()) {
+            insertionOrder.add(new Insertion(r.get().getId(), r));
+        }
+    }
+
+    /**
+     * Create a cache that stores its entries in the given map, for the callers that still pass their own map.
+     * A map that is not concurrent is synchronized.
+     */
+    static BidCache wrap(Map<String, RankedAd> map) {
+        return new BidCache(map instanceof ConcurrentMap ? map : Collections.synchronizedMap(map), DEFAULT_MAX_SIZE);
+    }
+
+    private Collection<RankedAd> values() {
+        if (entries instanceof ConcurrentMap) return entries.values();
+        synchronized (entries) {
+            return new ArrayList<>(entries.values());
+        }
+    }
+
+    /**
+     * Get a cached bid.
+     * @param id the event id
+     * @param now the current time in milliseconds, expired bids are evicted and never returned
+     * @return the cached bid or null
+     */
+    @Nullable
+    RankedAd get(String id, long now) {
+        RankedAd r = entries.get(id);
+        if (r != null && r.get().getCompiled().isExpired(now)) {
+            if (entries.remove(id, r)) {
+                evictions.incrementAndGet();
+                if (staleInsertions.incrementAndGet() > Math.max(MIN_SWEEP, entries.size())) {
+                    sweepInsertions();
+                }
+            }
+            r = null;
+        }
+        if (r == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return r;
+    }
+
+    /**
+     * Add a bid to the cache.
+     * @return the cached instance, that is the given one unless another thread added the same bid first
+     */
+    RankedAd put(RankedAd r) {
+        String id = r.get().getId();
+        RankedAd current = entries.putIfAbsent(id, r);
+        if (current != null) return current;
+        insertionOrder.add(new Insertion(id, r));
+        if (entries.size() > maxSize) {
+            evictOldest();
+        }
+        return r;
+    }
+
+    private void evictOldest() {
+        while (entries.size() > maxSize) {
+            Insertion oldest = insertionOrder.poll();
+            if (oldest == null) break;
+            // a bid cached again after its entry was removed has its own, newer insertion
+            if (entries.remove(oldest.id, oldest.ad)) {
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Evict all the expired bids.
+     * @param now the current time in milliseconds
+     * @return the number of evicted bids
+     */
+    int purgeExpired(long now) {
+        int removed = 0;
+        for (RankedAd r : values()) {
+            if (r.get().getCompiled().isExpired(now) && entries.remove(r.get().getId(), r)) {
+                removed++;
+            }
+        }
+        if (removed > 0) {
+            evictions.addAndGet(removed);
+            sweepInsertions();
+        }
+        return removed;
+    }
+
+    /**
+     * Drop the insertions of the entries that were removed early, so they don't pile up when the cache is not full.
+     */
+    private void sweepInsertions() {
+        staleInsertions.set(0);
+        insertionOrder.removeIf(e -> entries.get(e.id) != e.ad);
+    }
+
+    /**
+     * Get all the cached bids that are not expired, without counting them as lookups.
+     * @param now the current time in milliseconds
+     */
+    List<RankedAd> getAll(long now) {
+        List<RankedAd> all = new ArrayList<>(entries.size());
+        for (RankedAd r : values()) {
+            if (!r.get().getCompiled().isExpired(now)) all.add(r);
+        }
+        return all;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Number of lookups that found a valid cached bid
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Number of lookups that had to parse the bid
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Number of bids removed because they expired or to make room for newer ones
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    @Override
+    public String toString() {
+        return (
+            "BidCache{size=" +
+            size() +
+            ", maxSize=" +
+            maxSize +
+            ", hits=" +
+            getHits() +
+            ", misses=" +
+            getMisses() +
+            ", evictions=" +
+            getEvictions() +
+            "}"
+        );
+    }
+}
@@ -0,0 +1,662 @@
+/**
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2025, Riccardo Balbo
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.ngengine.nostrads.client.services.display;
+
+import jakarta.annotation.Nonnull;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.ngengine.nostr4j.NostrFilter;
+import org.ngengine.nostr4j.NostrPool;
+import org.ngengine.nostr4j.NostrSubscription;
+import org.ngengine.nostr4j.event.NostrEvent.TagValue;
+import org.ngengine.nostr4j.event.SignedNostrEvent;
+import org.ngengine.nostr4j.keypair.NostrPublicKey;
+import org.ngengine.nostr4j.pool.fetchpolicy.NostrPoolFetchPolicy;
+import org.ngengine.nostr4j.pool.fetchpolicy.NostrWaitForEventFetchPolicy;
+import org.ngengine.nostrads.client.services.PenaltyStorage;
+import org.ngengine.nostrads.client.services.SeenEvents;
+import org.ngengine.nostrads.protocol.AdBidEvent;
+import org.ngengine.nostrads.protocol.CompiledAdBid;
+import org.ngengine.nostrads.protocol.types.AdMimeType;
+import org.ngengine.nostrads.protocol.types.AdPriceSlot;
+import org.ngengine.nostrads.protocol.types.AdTaxonomy;
+import org.ngengine.platform.AsyncTask;
+import org.ngengine.platform.NGEPlatform;
+
+/**
+ * Loads the bids for a group of queues with a single fetch (or live subscription) covering all their
+ * adspaces, and routes every bid to the queues it matches through an inverted index on the adspace
+ * properties.
+ *
+ * The fetched time window is shared by all the queues, so a queue registered after the first update is
+ * seeded with the bids already in the cache and backfilled on its own by the next update.
+ */
+final class BidIngestion {
+
+    private static final Logger logger = Logger.getLogger(BidIngestion.class.getName());
+    private static final int numBidsToLoad = 10;
+
+    private final AdTaxonomy taxonomy;
+    private final NostrPool pool;
+    private final PenaltyStorage penaltyStorage;
+    private final BidCache bidsCache;
+    // ids of the live events already received, owned by the live subscription only
+    private final SeenEvents seenEvents = new SeenEvents();
+
+    // inverted index, guarded by this
+    private final Set<RankedAdsQueue> queues = new LinkedHashSet<>();
+    private final Map<AdPriceSlot, Set<RankedAdsQueue>> byPriceSlot = new HashMap<>();
+    private final Map<AdMimeType, Set<RankedAdsQueue>> byMimeType = new HashMap<>();
+    private final Map<String, Set<RankedAdsQueue>> byLanguage = new HashMap<>();
+    private final Set<RankedAdsQueue> anyLanguage = new HashSet<>();
+    private final Map<NostrPublicKey, Set<RankedAdsQueue>> byAdvertiser = new HashMap<>();
+    private final Set<RankedAdsQueue> anyAdvertiser = new HashSet<>();
+    private final Map<NostrPublicKey, Set<RankedAdsQueue>> byApp = new HashMap<>();
+    private final Map<NostrPublicKey, Set<RankedAdsQueue>> byOfferer = new HashMap<>();
+    // queues registered after the first update, that still need to be backfilled
+    private final Set<RankedAdsQueue> pendingBackfill = new LinkedHashSet<>();
+
+    // historical fetch, guarded by updateLock
+    private final Object updateLock = new Object();
+    private Instant newestBidTime = null;
+    private Instant oldestBidTime = null;
+    private volatile long lastUpdateStart = Long.MIN_VALUE;
+
+    // streaming mode
+    private volatile boolean streaming;
+    private volatile NostrSubscription liveSub = null;
+    private volatile boolean closed = false;
+
+    BidIngestion(
+        @Nonnull AdTaxonomy taxonomy,
+        @Nonnull NostrPool pool,
+        @Nonnull PenaltyStorage penaltyStorage,
+        @Nonnull BidCache bidsCache,
+        boolean streaming
+    ) {
+        this.taxonomy = taxonomy;
+        this.pool = pool;
+        this.penaltyStorage = penaltyStorage;
+        this.bidsCache = bidsCache;
+        this.streaming = streaming;
+    }
+
+    boolean isStreaming() {
+        return streaming;
+    }
+
+    /**
+     * Check if the live subscription is open, in that case the queues don't need to be polled.
+     */
+    boolean isLive() {
+        return liveSub != null;
+    }
+
+    void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+        if (!streaming) {
+            closeLiveSubscription();
+        }
+        // otherwise the subscription is opened by the next update, together with the backfill
+    }
+
+    void close() {
+        closed = true;
+        closeLiveSubscription();
+    }
+
+    private static <K> void index(Map<K, Set<RankedAdsQueue>> index, K key, RankedAdsQueue queue) {
+        index.computeIfAbsent(key, k -> new HashSet<>()).add(queue);
+    }
+
+    private static <K> void unindex(Map<K, Set<RankedAdsQueue>> index, K key, RankedAdsQueue queue) {
+        Set<RankedAdsQueue> set = index.get(key);
+        if (set == null) return;
+        set.remove(queue);
+        if (set.isEmpty()) index.remove(key);
+    }
+
+    void register(RankedAdsQueue queue) {
+        synchronized (this) {
+            if (!queues.add(queue)) return;
+            Adspace space = queue.getAdspace();
+            index(byPriceSlot, space.getPriceSlot(), queue);
+            for (AdMimeType mime : space.getMimeTypes()) {
+                index(byMimeType, mime, queue);
+            }
+            List<String> langs = space.getLanguages();
+            if (langs == null || langs.isEmpty()) {
+                anyLanguage.add(queue);
+            } else {
+                for (String lang : langs) {
+                    index(byLanguage, lang, queue);
+                }
+            }
+            List<NostrPublicKey> advertisers = space.getAdvertisersWhitelist();
+            if (advertisers == null) {
+                anyAdvertiser.add(queue);
+            } else {
+                for (NostrPublicKey advertiser : advertisers) {
+                    index(byAdvertiser, advertiser, queue);
+                }
+            }
+            index(byApp, space.getAppKey(), queue);
+            index(byOfferer, space.getUserKey(), queue);
+            if (lastUpdateStart != Long.MIN_VALUE) pendingBackfill.add(queue);
+        }
+        // the bids fetched for the other queues might match this one too
+        long now = System.currentTimeMillis();
+        for (RankedAd r : bidsCache.getAll(now)) {
+            if (route(r.get().getCompiled(), r.get().getPubkey()).contains(queue)) {
+                insertWithPenalty(r, List.of(queue));
+            }
+        }
+        // the merged filter changed
+        if (isLive()) openLiveSubscription();
+    }
+
+    /**
+     * Check if the queue was registered after the first update and was not backfilled yet.
+     */
+    synchronized boolean needsBackfill(RankedAdsQueue queue) {
+        return pendingBackfill.contains(queue);
+    }
+
+    void unregister(RankedAdsQueue queue) {
+        boolean empty;
+        synchronized (this) {
+            if (!queues.remove(queue)) return;
+            pendingBackfill.remove(queue);
+            Adspace space = queue.getAdspace();
+            unindex(byPriceSlot, space.getPriceSlot(), queue);
+            for (AdMimeType mime : space.getMimeTypes()) {
+                unindex(byMimeType, mime, queue);
+            }
+            anyLanguage.remove(queue);
+            List<String> langs = space.getLanguages();
+            if (langs != null) {
+                for (String lang : langs) {
+                    unindex(byLanguage, lang, queue);
+                }
+            }
+            anyAdvertiser.remove(queue);
+            List<NostrPublicKey> advertisers = space.getAdvertisersWhitelist();
+            if (advertisers != null) {
+                for (NostrPublicKey advertiser : advertisers) {
+                    unindex(byAdvertiser, advertiser, queue);
+                }
+            }
+            unindex(byApp, space.getAppKey(), queue);
+            unindex(byOfferer, space.getUserKey(), queue);
+            empty = queues.isEmpty();
+        }
+        if (empty) {
+            closeLiveSubscription();
+        } else if (isLive()) {
+            openLiveSubscription();
+        }
+    }
+
+    /**
+     * Find all the queues the bid should be routed to.
+     */
+    private synchronized List<RankedAdsQueue> route(CompiledAdBid bid, NostrPublicKey author) {
+        Set<RankedAdsQueue> matches = new HashSet<>();
+        // adspaces accept bids in their price slot or above
+        int slot = bid.getPriceSlot().ordinal();
+        for (Map.Entry<AdPriceSlot, Set<RankedAdsQueue>> e : byPriceSlot.entrySet()) {
+            if (e.getKey().ordinal() <= slot) matches.addAll(e.getValue());
+        }
+        if (matches.isEmpty()) return List.of();
+
+        Set<RankedAdsQueue> mime = byMimeType.get(bid.getMIMEType());
+        if (mime == null) return List.of();
+        matches.retainAll(mime);
+        if (matches.isEmpty()) return List.of();
+
+        Set<RankedAdsQueue> lang = new HashSet<>(anyLanguage);
+        List<String> bidLangs = bid.getLanguages();
+        if (bidLangs != null) {
+            for (String l : bidLangs) {
+                Set<RankedAdsQueue> s = byLanguage.get(l);
+                if (s != null) lang.addAll(s);
+            }
+        }
+        matches.retainAll(lang);
+        if (matches.isEmpty()) return List.of();
+
+        if (!anyAdvertiser.containsAll(matches)) {
+            Set<RankedAdsQueue> adv = new HashSet<>(anyAdvertiser);
+            Set<RankedAdsQueue> s = byAdvertiser.get(author);
+            if (s != null) adv.addAll(s);
+            matches.retainAll(adv);
+        }
+
+        // workaround https://github.com/hoytech/strfry/issues/150 with client-side
+        // filtering
+        List<NostrPublicKey> apps = bid.getTargetedApps();
+        if (apps != null && !apps.isEmpty()) {
+            Set<RankedAdsQueue> targeted = new HashSet<>();
+            for (NostrPublicKey app : apps) {
+                Set<RankedAdsQueue> s = byApp.get(app);
+                if (s != null) targeted.addAll(s);
+            }
+            matches.retainAll(targeted);
+        }
+        List<NostrPublicKey> offerers = bid.getTargetedOfferers();
+        if (offerers != null && !offerers.isEmpty()) {
+            Set<RankedAdsQueue> targeted = new HashSet<>();
+            for (NostrPublicKey offerer : offerers) {
+                Set<RankedAdsQueue> s = byOfferer.get(offerer);
+                if (s != null) targeted.addAll(s);
+            }
+            matches.retainAll(targeted);
+        }
+        return new ArrayList<>(matches);
+    }
+
+    /**
+     * Build the merged filters covering all the registered adspaces.
+     * Adspaces that differ only by mime types share the same filter.
+     */
+    private synchronized List<NostrFilter> getFilters() {
+        Map<List<Object>, Set<AdMimeType>> groups = new LinkedHashMap<>();
+        Map<List<Object>, Adspace> spaces = new HashMap<>();
+        for (RankedAdsQueue queue : queues) {
+            Adspace space = queue.getAdspace();
+            List<Object> key = Arrays.asList(space.getPriceSlot(), space.getLanguages(), space.getAdvertisersWhitelist());
+            groups.computeIfAbsent(key, k -> new LinkedHashSet<>()).addAll(space.getMimeTypes());
+            spaces.putIfAbsent(key, space);
+        }
+        List<NostrFilter> filters = new ArrayList<>();
+        for (Map.Entry<List<Object>, Set<AdMimeType>> e : groups.entrySet()) {
+            filters.add(spaces.get(e.getKey()).toFilter(e.getValue()));
+        }
+        return filters;
+    }
+
+    private synchronized void closeLiveSubscription() {
+        NostrSubscription sub = liveSub;
+        liveSub = null;
+        if (sub != null) {
+            sub.close();
+        }
+    }
+
+    /**
+     * Open (or reopen after the adspaces changed) the live subscription for new bids and for deletions of bids.
+     */
+    private synchronized void openLiveSubscription() {
+        if (closed || !streaming) return;
+        List<NostrFilter> filters = new ArrayList<>();
+        Instant now = Instant.now();
+        for (NostrFilter filter : getFilters()) {
+            filters.add(filter.since(now).limit(0));
+        }
+        if (filters.isEmpty()) return;
+        filters.add(new NostrFilter().withKind(5).withTag("k", String.valueOf(AdBidEvent.KIND)).since(now).limit(0));
+
+        NostrSubscription sub = pool.subscribe(filters);
+        sub.addEventListener((s, event, stored) -> {
+            if (closed || s != liveSub) return;
+            if (!seenEvents.markSeen(event.getId())) return; // already received from another relay
+            try {
+                if (event.getKind() == 5) {
+                    onDeletion(event);
+                } else {
+                    onLiveBid(event);
+                }
+            } catch (Exception e) {
+                logger.log(Level.WARNING, "Error processing live event: " + event.getId(), e);
+            }
+        });
+        AsyncTask
+            .any(sub.open())
+            .catchException(ex -> {
+                logger.log(Level.WARNING, "Error opening live subscription for bids", ex);
+            });
+
+        // the new subscription is opened before closing the old one, so nothing is lost in the switch
+        NostrSubscription old = liveSub;
+        liveSub = sub;
+        if (old != null) old.close();
+    }
+
+    private void onLiveBid(SignedNostrEvent event) throws Exception {
+        RankedAd r = toRankedAd(event);
+        if (r == null) return;
+        List<RankedAdsQueue> targets = route(r.get().getCompiled(), r.get().getPubkey());
+        if (targets.isEmpty()) return;
+        insertWithPenalty(r, targets);
+    }
+
+    /**
+     * Insert a bid in the given queues once its penalty is known, without blocking if it must be loaded.
+     */
+    private void insertWithPenalty(RankedAd r, List<RankedAdsQueue> targets) {
+        Integer penalty = penaltyStorage.getCached(r.get());
+        if (penalty != null) {
+            r.setPenalty(penalty);
+            for (RankedAdsQueue queue : targets) queue.insert(r);
+            return;
+        }
+        // the listener must not block, so the penalty is loaded asynchronously
+        penaltyStorage
+            .get(r.get())
+            .then(n -> {
+                r.setPenalty(n.intValue());
+                for (RankedAdsQueue queue : targets) queue.insert(r);
+                return null;
+            })
+            .catchException(e -> {
+                logger.log(Level.WARNING, "Error loading penalty for bid: " + r.get().getId(), e);
+                r.setPenalty(0);
+                for (RankedAdsQueue queue : targets) queue.insert(r);
+            });
+    }
+
+    private void onDeletion(SignedNostrEvent deletion) {
+        List<TagValue> ids = deletion.getTag("e");
+        List<TagValue> addrs = deletion.getTag("a");
+        List<RankedAdsQueue> targets;
+        synchronized (this) {
+            targets = new ArrayList<>(queues);
+        }
+        for (RankedAdsQueue queue : targets) {
+            queue.removeDeleted(deletion.getPubkey(), ids, addrs);
+        }
+    }
+
+    private RankedAd toRankedAd(SignedNostrEvent event) throws Exception {
+        // bids that were already parsed are reused with their ranking state
+        RankedAd cached = bidsCache.get(event.getId(), System.currentTimeMillis());
+        if (cached != null) return cached;
+
+        AdBidEvent bid = new AdBidEvent(taxonomy, event);
+        if (!bid.isValid()) {
+            logger.fine("Invalid bidding event: " + bid.getId());
+            return null; // skip invalid bids
+        }
+        return bidsCache.put(new RankedAd(bid));
+    }
+
+    /**
+     * Fetch new bids for all the registered queues.
+     * Concurrent calls are coalesced: if an update started while the caller was waiting, it is not repeated.
+     */
+    void update() {
+        long requested = System.currentTimeMillis();
+        synchronized (updateLock) {
+            if (lastUpdateStart >= requested) return;
+            lastUpdateStart = System.currentTimeMillis();
+            try {
+                doUpdate();
+            } catch (Exception e) {
+                logger.log(Level.WARNING, "Error updating ads queues", e);
+            }
+        }
+    }
+
+    private void doUpdate() throws Exception {
+        if (streaming && !isLive()) {
+            // opened before the backfill, so that nothing published in the meantime is lost
+            openLiveSubscription();
+        }
+
+        List<RankedAdsQueue> targets;
+        synchronized (this) {
+            targets = new ArrayList<>(queues);
+        }
+        if (targets.isEmpty()) return;
+
+        // remove expired bids
+        long now = System.currentTimeMillis();
+        for (RankedAdsQueue queue : targets) {
+            queue.evictExpired(now);
+        }
+        int purged = bidsCache.purgeExpired(now);
+        if (purged > 0) logger.finer("Purged " + purged + " expired bids from the cache: " + bidsCache);
+
+        backfill();
+
+        // load a bunch of new bids
+
+        if (newestBidTime == null) {
+            newestBidTime = Instant.now();
+        }
+        if (oldestBidTime == null) {
+            oldestBidTime = Instant.now();
+        }
+
+        List<NostrFilter> filters = getFilters();
+        int limit = 0;
+        for (NostrFilter filter : filters) {
+            limit += filter.getLimit() != null ? filter.getLimit() : numBidsToLoad;
+        }
+        NostrPoolFetchPolicy policy = NostrWaitForEventFetchPolicy.get(e -> true, limit, true, Duration.ofSeconds(10));
+
+        int rounds = 0;
+        int goodRanks = 0;
+        float goodBaseScore = 1.0f;
+
+        // Load bids in rounds, first newer+older, then only older, until we have enough good ranks or we
+        // reach the maximum number of rounds
+        while (rounds < 3 && goodRanks < numBidsToLoad * 2) {
+            logger.finer("Loading bids (round " + rounds + ") for " + targets.size() + " queues using filters: " + filters);
+            logger.finer("Newest bid time: " + newestBidTime);
+            logger.finer("Oldest bid time: " + oldestBidTime);
+
+            List<NostrFilter> olderFilters = new ArrayList<>();
+            for (NostrFilter filter : filters) {
+                olderFilters.add(filter.clone().until(oldestBidTime.plusMillis(2100)));
+            }
+            AsyncTask<List<RankedAd>> newOlderBids = fetchBids(olderFilters, policy);
+
+            List<List<RankedAd>> newBids;
+            if (rounds == 0) {
+                List<NostrFilter> newerFilters = new ArrayList<>();
+                for (NostrFilter filter : filters) {
+                    newerFilters.add(filter.clone().since(newestBidTime.minusMillis(2100)));
+                }
+                AsyncTask<List<RankedAd>> newNewerBids = fetchBids(newerFilters, policy);
+                newBids = NGEPlatform.get().awaitAll(List.of(newNewerBids, newOlderBids)).await();
+                logger.finer("Loaded " + newBids.get(0).size() + " newer bids and " + newBids.get(1).size() + " older bids");
+            } else { // rounds > 0 only load from the past (it is unlikely that new bids are added in  this small time frame)
+                newBids = NGEPlatform.get().awaitAll(List.of(newOlderBids)).await();
+                logger.finer("Loaded " + newBids.get(0).size() + " older bids");
+            }
+
+            // route the bids and load the penalties of all the routed bids at once
+            List<RankedAd> routed = new ArrayList<>();
+            List<AdBidEvent> routedBids = new ArrayList<>();
+            List<List<RankedAdsQueue>> routes = new ArrayList<>();
+            for (List<RankedAd> batch : newBids) {
+                for (RankedAd r : batch) {
+                    AdBidEvent bid = r.get();
+                    List<RankedAdsQueue> matches = route(bid.getCompiled(), bid.getPubkey());
+                    if (matches.isEmpty()) {
+                        logger.finer("Skipping bid: " + bid.getId() + " not targeting any adspace");
+                        continue; // skip bids not targeting any registered space
+                    }
+                    routed.add(r);
+                    routedBids.add(bid);
+                    routes.add(matches);
+                }
+            }
+            List<Integer> penalties = null;
+            try {
+                penalties = penaltyStorage.get(routedBids).await();
+            } catch (Exception e) {
+                // if we fail to load the penalties, we assume no penalty
+                logger.log(Level.WARNING, "Error loading penalties for " + routedBids.size() + " bids", e);
+            }
+
+            // merge and find olderst and newest bid times
+            for (int i = 0; i < routed.size(); i++) {
+                RankedAd r = routed.get(i);
+                AdBidEvent bid = r.get();
+                try {
+                    r.setPenalty(penalties != null ? penalties.get(i) : 0);
+
+                    // compute rank quality
+                    if ((float) r.getBaseScore() >= goodBaseScore) {
+                        logger.finest("Adding bid: " + bid.getId() + " with score: " + r.getBaseScore());
+                        goodRanks++;
+                    }
+                    if (newestBidTime == null || bid.getCreatedAt().isAfter(newestBidTime)) {
+                        newestBidTime = bid.getCreatedAt();
+                        logger.finest("New newest bid time: " + newestBidTime);
+                    }
+                    if (oldestBidTime == null || bid.getCreatedAt().isBefore(oldestBidTime)) {
+                        oldestBidTime = bid.getCreatedAt();
+                        logger.finest("New oldest bid time: " + oldestBidTime);
+                    }
+                    for (RankedAdsQueue queue : routes.get(i)) {
+                        queue.insert(r);
+                    }
+                } catch (Exception e) {
+                    logger.log(Level.WARNING, "Error processing bid: " + bid.getId(), e);
+                }
+            }
+
+            // increase round counter
+            rounds++;
+        }
+
+        // remove to fit the max number of bids in the queues
+        for (RankedAdsQueue queue : targets) {
+            queue.trim();
+        }
+    }
+
+    /**
+     * Fetch the bids of the queues registered after the first update over the whole window, since the shared
+     * window has already been fetched without them.
+     */
+    private void backfill() throws Exception {
+        List<RankedAdsQueue> backfilled;
+        synchronized (this) {
+            if (pendingBackfill.isEmpty()) return;
+            backfilled = new ArrayList<>(pendingBackfill);
+            pendingBackfill.clear();
+        }
+        List<NostrFilter> filters = new ArrayList<>();
+        int limit = 0;
+        for (RankedAdsQueue queue : backfilled) {
+            NostrFilter filter = queue.getAdspace().toFilter();
+            filters.add(filter);
+            limit += filter.getLimit() != null ? filter.getLimit() : numBidsToLoad;
+        }
+        logger.finer("Backfilling " + backfilled.size() + " queues using filters: " + filters);
+        NostrPoolFetchPolicy policy = NostrWaitForEventFetchPolicy.get(e -> true, limit, true, Duration.ofSeconds(10));
+        List<RankedAd> bids = fetchBids(filters, policy).await();
+
+        List<RankedAd> routed = new ArrayList<>();
+        List<AdBidEvent> routedBids = new ArrayList<>();
+        List<List<RankedAdsQueue>> routes = new ArrayList<>();
+        for (RankedAd r : bids) {
+            List<RankedAdsQueue> matches = route(r.get().getCompiled(), r.get().getPubkey());
+            // the other queues already have the bids of the window
+            matches.retainAll(backfilled);
+            if (matches.isEmpty()) continue;
+            routed.add(r);
+            routedBids.add(r.get());
+            routes.add(matches);
+        }
+        List<Integer> penalties = null;
+        try {
+            penalties = penaltyStorage.get(routedBids).await();
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Error loading penalties for " + routedBids.size() + " bids", e);
+        }
+        for (int i = 0; i < routed.size(); i++) {
+            RankedAd r = routed.get(i);
+            r.setPenalty(penalties != null ? penalties.get(i) : 0);
+            for (RankedAdsQueue queue : routes.get(i)) {
+                queue.insert(r);
+            }
+        }
+    }
+
+    /**
+     * Fetch all bids given a list of filters and a fetch policy.
+     * @param filters the list of filters to use for fetching bids
+     * @param fetchPolicy the fetch policy to use for fetching bids, can be null to use the default
+     * @return an AsyncTask that will complete with a list of RankedAd
+     */
+    AsyncTask<List<RankedAd>> fetchBids(List<NostrFilter> filters, NostrPoolFetchPolicy fetchPolicy) {
+        // we will use the maximum limit from the filter to autogenerate a fetch policy if one is not provided
+        int maxLimit = 0;
+        for (NostrFilter filter : filters) {
+            if (filter.getLimit() != null && filter.getLimit() > maxLimit) {
+                maxLimit = filter.getLimit();
+            }
+        }
+
+        return pool
+            .fetch(
+                filters,
+                fetchPolicy != null
+                    ? fetchPolicy
+                    : NostrWaitForEventFetchPolicy.get(
+                        e -> true,
+                        maxLimit > 0 ? maxLimit : numBidsToLoad,
+                        true,
+                        Duration.ofSeconds(10)
+                    ) // we are going to early stop as soon as we have up to maxLimit events or we receive an eose for every relay
+            )
+            .then(events -> {
+                // turn all the events into bids
+                List<RankedAd> bids = new ArrayList<>();
+                for (SignedNostrEvent event : events) {
+                    try {
+                        RankedAd rbid = toRankedAd(event);
+                        if (rbid != null) bids.add(rbid);
+                    } catch (Exception e) {
+                        logger.log(Level.WARNING, "Error processing event: " + event.getId(), e);
+                    }
+                }
+                return bids;
+            });
+    }
+}
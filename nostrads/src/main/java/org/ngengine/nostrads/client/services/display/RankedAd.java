@@ -32,115 +32,206 @@
 package org.ngengine.nostrads.client.services.display;
 
 import java.time.Duration;
-import java.time.Instant;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
 import org.ngengine.nostrads.protocol.AdBidEvent;
+import org.ngengine.nostrads.protocol.CompiledAdBid;
+import org.ngengine.nostrads.protocol.types.AdAspectRatio;
 import org.ngengine.nostrads.protocol.types.AdSize;
 import org.ngengine.nostrads.protocol.types.AdTaxonomy;
 
 public final class RankedAd {
 
-    private static class DerankEvent {
-
-        final Instant timestamp;
-        final boolean hard;
-
-        DerankEvent(Instant timestamp, boolean hard) {
-            this.timestamp = timestamp;
-            this.hard = hard;
-        }
-    }
-
     private final AdBidEvent bid;
+    private final CompiledAdBid compiled;
     private static final java.util.logging.Logger logger = java.util.logging.Logger.getLogger(RankedAd.class.getName());
 
-    private final List<DerankEvent> derankEvents = new CopyOnWriteArrayList<>();
-    private double penalty = 0;
-
     // Deranking configuration
     private static final double INITIAL_DERANK_IMPACT = 0.02;
     private static final double MINIMUM_DERANK_IMPACT = 0.3;
-    private static final Duration DERANK_DECAY_TIME = Duration.ofSeconds(60);
+    private static final long DERANK_DECAY_TIME_MS = Duration.ofSeconds(60).toMillis();
     private static final double DERANK_ACCUMULATION_FACTOR = 0.9;
     private static final double HARD_DERANK_FACTOR = 0.00001; // Effectively puts ad at the end
+    // Contextual score configuration
+    private static final double MIN_SCALE = 0.8; // allow up to 20% shrink
+    private static final double MAX_SCALE = 1.2; // allow up to 20% enlarge
+    private static final double CATEGORY_BOOST = 1.2;
+    // upper bound of getContextualScore()/getBaseScore(), aspect and size scores are <= 1
+    static final double MAX_CONTEXTUAL_BOOST = CATEGORY_BOOST;
+    // a derank weighs 0.9^j, j being its position from the oldest one, so past this size the newest ones weigh
+    // less than 0.9^63 ~ 0.001; see evictDerank() for what is dropped when the history is full
+    private static final int MAX_DERANK_HISTORY = 64;
+
+    private static volatile long scoreTickMs = 1000;
+
+    // derank history, a ring buffer ordered from the oldest to the newest event
+    private final long[] derankTimes = new long[MAX_DERANK_HISTORY];
+    private final boolean[] derankHard = new boolean[MAX_DERANK_HISTORY];
+    private int derankHead = 0;
+    private int derankCount = 0;
+    // decayed deranks evicted from the front of a full history, they still count in the position of the others
+    private int evictedDecayed = 0;
+    private long evictedDecayedNewest = 0;
+
+    private double penalty = 0;
+
+    // cached base score, invalidated by deranks and penalty changes or when the tick expires
+    private double cachedBaseScore;
+    private long cachedBaseScoreTime = Long.MIN_VALUE;
 
     RankedAd(AdBidEvent bid) {
         this.bid = bid;
+        this.compiled = bid.getCompiled();
+    }
+
+    /**
+     * Set for how long the computed scores are reused before they are recomputed.
+     * Deranks and penalty changes always invalidate the cached score of the affected ad.
+     *
+     * @param tick the duration of a tick, zero to always recompute
+     */
+    public static void setScoreTick(Duration tick) {
+        scoreTickMs = tick.toMillis();
+    }
+
+    public static Duration getScoreTick() {
+        return Duration.ofMillis(scoreTickMs);
+    }
+
+    static long getScoreTickMs() {
+        return scoreTickMs;
+    }
+
+    /**
+     * Check if the ad has deranks that are still affecting its score.
+     */
+    boolean isDeranked() {
+        synchronized (derankTimes) {
+            if (derankCount == 0) return false;
+            long newest = derankTimes[(derankHead + derankCount - 1) % MAX_DERANK_HISTORY];
+            return System.currentTimeMillis() - newest < DERANK_DECAY_TIME_MS;
+        }
     }
 
     public void derank(boolean errored) {
-        Instant currentTime = Instant.now();
-        derankEvents.add(new DerankEvent(currentTime, errored));
-        logger.fine(
-            "Deranking bid: " + bid + " hard=" + errored + " total deranks: " + derankEvents.size() + " at time: " + currentTime
-        );
+        long currentTime = System.currentTimeMillis();
+        int total;
+        synchronized (derankTimes) {
+            if (derankCount == MAX_DERANK_HISTORY) {
+                errored |= evictDerank(currentTime);
+            }
+            int i = (derankHead + derankCount) % MAX_DERANK_HISTORY;
+            derankTimes[i] = currentTime;
+            derankHard[i] = errored;
+            derankCount++;
+            total = derankCount + evictedDecayed;
+            cachedBaseScoreTime = Long.MIN_VALUE;
+        }
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine("Deranking bid: " + bid + " hard=" + errored + " total deranks: " + total + " at time: " + currentTime);
+        }
+    }
+
+    /**
+     * Make room in a full derank history, without changing the score as far as possible.
+     * The oldest derank has the highest weight, so it is evicted only when it has decayed and doesn't affect the
+     * score anymore, it is still counted in the position of the others until the cleanup would have dropped it.
+     * Otherwise the newest derank, that has the lowest weight, is evicted to be replaced by the new one.
+     *
+     * @return true if the evicted derank was a hard one that is still active
+     */
+    private boolean evictDerank(long currentTime) {
+        // must be called while holding the derankTimes lock
+        if (currentTime - derankTimes[derankHead] >= DERANK_DECAY_TIME_MS) {
+            evictedDecayed++;
+            evictedDecayedNewest = derankTimes[derankHead];
+            derankHead = (derankHead + 1) % MAX_DERANK_HISTORY;
+            derankCount--;
+            return false;
+        }
+        derankCount--;
+        return derankHard[(derankHead + derankCount) % MAX_DERANK_HISTORY];
     }
 
     public void setPenalty(int penalty) {
-        this.penalty = penalty;
+        synchronized (derankTimes) {
+            this.penalty = penalty;
+            cachedBaseScoreTime = Long.MIN_VALUE;
+        }
     }
 
     /**
      * Calculate the current derank factor based on timestamps and decay
      */
-    private double calculateDerankFactor() {
-        if (derankEvents.isEmpty()) {
-            return 1.0; // No deranking
-        }
-
-        Instant currentTime = Instant.now();
-        double totalDerankImpact = 0.0;
+    private double calculateDerankFactor(long currentTime) {
+        // must be called while holding the derankTimes lock
 
         // Clean up old deranks that have fully decayed (3x the decay time)
-        Duration cleanupThreshold = DERANK_DECAY_TIME.multipliedBy(3);
-        derankEvents.removeIf(event -> Duration.between(event.timestamp, currentTime).compareTo(cleanupThreshold) > 0);
+        long cleanupThreshold = DERANK_DECAY_TIME_MS * 3;
+        if (evictedDecayed > 0 && currentTime - evictedDecayedNewest > cleanupThreshold) {
+            evictedDecayed = 0; // they are all older than the ones still in the history
+        }
+        while (derankCount > 0 && currentTime - derankTimes[derankHead] > cleanupThreshold) {
+            derankHead = (derankHead + 1) % MAX_DERANK_HISTORY;
+            derankCount--;
+        }
+
+        if (derankCount == 0) {
+            return 1.0; // No deranking
+        }
 
         // If any active "hard" derank, return minimal factor
-        for (DerankEvent event : derankEvents) {
-            if (event.hard && Duration.between(event.timestamp, currentTime).compareTo(DERANK_DECAY_TIME) < 0) {
-                logger.fine("Hard derank active for bid " + bid.getId());
+        for (int j = 0; j < derankCount; j++) {
+            int i = (derankHead + j) % MAX_DERANK_HISTORY;
+            if (derankHard[i] && currentTime - derankTimes[i] < DERANK_DECAY_TIME_MS) {
+                if (logger.isLoggable(Level.FINE)) {
+                    logger.fine("Hard derank active for bid " + bid.getId());
+                }
                 return HARD_DERANK_FACTOR;
             }
         }
 
         // Otherwise, normal derank logic
-        for (int i = 0; i < derankEvents.size(); i++) {
-            DerankEvent event = derankEvents.get(i);
-            if (event.hard) continue; // already handled above
-            Duration timeElapsed = Duration.between(event.timestamp, currentTime);
-
-            if (timeElapsed.compareTo(DERANK_DECAY_TIME) >= 0) {
+        double totalDerankImpact = 0.0;
+        // DERANK_ACCUMULATION_FACTOR^j, counting the evicted deranks that were before the oldest one
+        double accumulationFactor = evictedDecayed > 0 ? Math.pow(DERANK_ACCUMULATION_FACTOR, evictedDecayed) : 1.0;
+        for (int j = 0; j < derankCount; j++, accumulationFactor *= DERANK_ACCUMULATION_FACTOR) {
+            int i = (derankHead + j) % MAX_DERANK_HISTORY;
+            if (derankHard[i]) continue; // already handled above
+            long timeElapsed = currentTime - derankTimes[i];
+
+            if (timeElapsed >= DERANK_DECAY_TIME_MS) {
                 continue;
             }
 
-            double timeDecayFactor = (double) timeElapsed.toMillis() / DERANK_DECAY_TIME.toMillis();
+            double timeDecayFactor = (double) timeElapsed / DERANK_DECAY_TIME_MS;
             double currentImpact =
                 INITIAL_DERANK_IMPACT +
                 (MINIMUM_DERANK_IMPACT - INITIAL_DERANK_IMPACT) *
                 (1.0 - Math.exp(-1.5 * timeDecayFactor));
-            double accumulationFactor = Math.pow(DERANK_ACCUMULATION_FACTOR, i);
             totalDerankImpact += currentImpact * accumulationFactor;
         }
 
         totalDerankImpact = Math.min(totalDerankImpact, 0.99);
         double derankFactor = 1.0 - totalDerankImpact;
 
-        logger.fine(
-            "Derank calculation for bid " +
-            bid.getId() +
-            ": activeDeranks=" +
-            derankEvents.size() +
-            ", totalImpact=" +
-            totalDerankImpact +
-            ", finalFactor=" +
-            derankFactor
-        );
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine(
+                "Derank calculation for bid " +
+                bid.getId() +
+                ": activeDeranks=" +
+                derankCount +
+                ", totalImpact=" +
+                totalDerankImpact +
+                ", finalFactor=" +
+                derankFactor
+            );
+        }
 
         return derankFactor;
     }
 
-    private double aspectRatioRatio(double aspect1, double aspect2) {
+    private static double aspectRatioRatio(double aspect1, double aspect2) {
         // Ensure the ratio is >= 1 by dividing the larger by the smaller
         if (aspect1 > aspect2) {
             return aspect1 / aspect2;
@@ -159,31 +250,42 @@ public final class RankedAd {
      * @return the base score for this bid
      */
     protected double getBaseScore() {
-        // Apply time-based deranking with stronger initial impact
-        double derankFactor = calculateDerankFactor();
-
-        // Price score using logarithmic scale to dampen large variations
-        double priceScore = Math.log(bid.getBidMsats() + 1);
-
-        // Apply penalty factor: higher penalty means lower score
-        double penaltyFactor = 1.0 / (1.0 + penalty / 100.0);
-
-        double finalScore = priceScore * derankFactor * penaltyFactor;
-
-        logger.fine(
-            "Base score calculation for bid " +
-            bid.getId() +
-            ": price=" +
-            priceScore +
-            ", derankFactor=" +
-            derankFactor +
-            ", penaltyFactor=" +
-            penaltyFactor +
-            ", final=" +
-            finalScore
-        );
+        long currentTime = System.currentTimeMillis();
+        synchronized (derankTimes) {
+            if (currentTime - cachedBaseScoreTime < scoreTickMs) {
+                return cachedBaseScore;
+            }
+
+            // Apply time-based deranking with stronger initial impact
+            double derankFactor = calculateDerankFactor(currentTime);
+
+            // Price score using logarithmic scale to dampen large variations
+            double priceScore = Math.log(bid.getBidMsats() + 1);
+
+            // Apply penalty factor: higher penalty means lower score
+            double penaltyFactor = 1.0 / (1.0 + penalty / 100.0);
+
+            double finalScore = priceScore * derankFactor * penaltyFactor;
+
+            if (logger.isLoggable(Level.FINE)) {
+                logger.fine(
+                    "Base score calculation for bid " +
+                    bid.getId() +
+                    ": price=" +
+                    priceScore +
+                    ", derankFactor=" +
+                    derankFactor +
+                    ", penaltyFactor=" +
+                    penaltyFactor +
+                    ", final=" +
+                    finalScore
+                );
+            }
 
-        return finalScore;
+            cachedBaseScore = finalScore;
+            cachedBaseScoreTime = currentTime;
+            return finalScore;
+        }
     }
 
     /**
@@ -246,29 +348,52 @@ public final class RankedAd {
     //     return getBaseScore()*aspectScore*categoryScore*sizeScore;
     // }
 
-    public double getContextualScore(Adspace space, int width, int height) {
-        AdSize size = bid.getDimensions();
-        if (size == null) return -1; // Invalid size
+    /**
+     * Check if a bid of the given size and aspect ratio can be displayed in the given adspace.
+     * Bids that are not compatible always have a negative contextual score.
+     */
+    static boolean isCompatible(AdSize size, AdAspectRatio ratio, Adspace space, int width, int height) {
+        if (!fits(size, width, height)) return false;
+        // 1) Aspect–ratio compatibility
+        return aspectRatioRatio(space.getRatio().getFloatValue(), ratio.getFloatValue()) <= 2.0;
+    }
+
+    /**
+     * Check if a bid of the given size can be scaled to the given dimensions, regardless of its declared
+     * aspect ratio.
+     */
+    static boolean fits(AdSize size, int width, int height) {
         // 0) Compute scaling on each axis (±20% allowed)
+        double scaleX = (double) width / size.getWidth();
+        double scaleY = (double) height / size.getHeight();
+        return !(scaleX < MIN_SCALE || scaleY < MIN_SCALE || scaleX > MAX_SCALE || scaleY > MAX_SCALE);
+    }
+
+    public double getContextualScore(Adspace space, int width, int height) {
+        if (compiled == null) return -1; // Malformed bid
+        AdSize size = compiled.getDimensions();
         int bidW = size.getWidth();
         int bidH = size.getHeight();
-        double scaleX = (double) width / bidW;
-        double scaleY = (double) height / bidH;
 
-        final double MIN_SCALE = 0.8; // allow up to 20% shrink
-        final double MAX_SCALE = 1.2; // allow up to 20% enlarge
-        if (scaleX < MIN_SCALE || scaleY < MIN_SCALE || scaleX > MAX_SCALE || scaleY > MAX_SCALE) {
-            logger.fine(String.format("Bid %s scale out of bounds (%.2fx, %.2fx)", bid.getId(), scaleX, scaleY));
+        if (!isCompatible(size, compiled.getAspectRatio(), space, width, height)) {
+            if (logger.isLoggable(Level.FINE)) {
+                logger.fine(
+                    String.format(
+                        "Bid %s not compatible with %dx%d (bid size %dx%d, aspect %s)",
+                        bid.getId(),
+                        width,
+                        height,
+                        bidW,
+                        bidH,
+                        compiled.getAspectRatio()
+                    )
+                );
+            }
             return -1;
         }
 
-        // 1) Aspect–ratio compatibility
         double spaceAR = space.getRatio().getFloatValue();
-        double bidAR = bid.getAspectRatio().getFloatValue();
-        double arRatio = aspectRatioRatio(spaceAR, bidAR);
-        if (arRatio > 2.0) {
-            return -1;
-        }
+        double bidAR = compiled.getAspectRatio().getFloatValue();
         double aspectDiff = Math.abs(spaceAR - bidAR);
         double aspectScore = 0.7 + 0.3 * Math.exp(-aspectDiff * 2.0);
 
@@ -276,8 +401,8 @@ public final class RankedAd {
         double categoryScore = 1.0;
         List<AdTaxonomy.Term> cats = space.getCategories();
         if (cats != null && !cats.isEmpty()) {
-            boolean match = bid.getCategories() != null && bid.getCategories().stream().anyMatch(cats::contains);
-            categoryScore = match ? 1.2 : 1.0;
+            boolean match = compiled.hasAnyCategory(cats);
+            categoryScore = match ? CATEGORY_BOOST : 1.0;
         }
 
         // 3) Geometric-mean size score (rewards closer fit)
@@ -0,0 +1,389 @@
+/**
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2025, Riccardo Balbo
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.ngengine.nostrads.client.services.display;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.ngengine.nostrads.protocol.AdBidEvent;
+import org.ngengine.nostrads.protocol.types.AdSize;
+
+/**
+ * Candidate index used by {@link RankedAdsQueue}.
+ *
+ * Bids are keyed by their coordinates (kind:pubkey:d), so a bid can only replace a previous version
+ * published by the same author.
+ *
+ * Bids are grouped in buckets by {@link AdSize}, each bucket is a max-heap on the base score.
+ * A request for a given width x height only visits the buckets that are compatible with it and
+ * pops candidates in score order until no remaining candidate can beat the best one found.
+ *
+ * The heap keys are snapshots of {@link RankedAd#getBaseScore()}: they are refreshed when a
+ * candidate is popped and, for deranked ads (whose score recovers over time), once per score tick.
+ *
+ * Not thread safe.
+ */
+final class RankedAdsIndex {
+
+    private static final Logger logger = Logger.getLogger(RankedAdsIndex.class.getName());
+    private static final AdSize[] SIZES = AdSize.values();
+
+    static final class Entry {
+
+        final RankedAd ad;
+        final AdSize size;
+        double key;
+        long keyTime;
+        int heapIndex = -1;
+        boolean recovering;
+
+        Entry(RankedAd ad, AdSize size) {
+            this.ad = ad;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Indexed binary max-heap on {@link Entry#key}.
+     */
+    private static final class Heap {
+
+        private Entry[] entries = new Entry[16];
+        private int size = 0;
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        Entry peek() {
+            return size == 0 ? null : entries[0];
+        }
+
+        void add(Entry e) {
+            if (size == entries.length) {
+                entries = Arrays.copyOf(entries, size * 2);
+            }
+            e.heapIndex = size;
+            entries[size++] = e;
+            siftUp(e.heapIndex);
+        }
+
+        Entry poll() {
+            if (size == 0) return null;
+            Entry top = entries[0];
+            remove(top);
+            return top;
+        }
+
+        void remove(Entry e) {
+            int i = e.heapIndex;
+            if (i < 0) return;
+            size--;
+            Entry last = entries[size];
+            entries[size] = null;
+            e.heapIndex = -1;
+            if (i != size) {
+                entries[i] = last;
+                last.heapIndex = i;
+                siftDown(i);
+                siftUp(last.heapIndex);
+            }
+        }
+
+        void update(Entry e) {
+            if (e.heapIndex < 0) return;
+            siftUp(e.heapIndex);
+            siftDown(e.heapIndex);
+        }
+
+        private void siftUp(int i) {
+            Entry e = entries[i];
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                Entry p = entries[parent];
+                if (p.key >= e.key) break;
+                entries[i] = p;
+                p.heapIndex = i;
+                i = parent;
+            }
+            entries[i] = e;
+            e.heapIndex = i;
+        }
+
+        private void siftDown(int i) {
+            Entry e = entries[i];
+            int half = size >>> 1;
+            while (i < half) {
+                int child = 2 * i + 1;
+                int right = child + 1;
+                if (right < size && entries[right].key > entries[child].key) child = right;
+                Entry c = entries[child];
+                if (e.key >= c.key) break;
+                entries[i] = c;
+                c.heapIndex = i;
+                i = child;
+            }
+            entries[i] = e;
+            e.heapIndex = i;
+        }
+    }
+
+    private final Map<String, Entry> byCoordinates = new HashMap<>();
+    private final Heap[] buckets = new Heap[SIZES.length];
+    private final List<Entry> recovering = new ArrayList<>();
+    private final List<Entry> popped = new ArrayList<>();
+
+    RankedAdsIndex() {
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new Heap();
+        }
+    }
+
+    int size() {
+        return byCoordinates.size();
+    }
+
+    boolean isEmpty() {
+        return byCoordinates.isEmpty();
+    }
+
+    private static String getCoordinates(AdBidEvent bid) {
+        if (bid.getCoordinates() != null) return bid.getCoordinates().coords();
+        return bid.getKind() + ":" + bid.getPubkey().asHex() + ":" + bid.getAdId();
+    }
+
+    boolean contains(String coordinates) {
+        return byCoordinates.containsKey(coordinates);
+    }
+
+    /**
+     * Add a bid to the index.
+     * If there is already a bid with the same coordinates, the newest one is kept.
+     * If the bid is already in the index its key is refreshed.
+     *
+     * @return true if the bid was added
+     */
+    boolean put(RankedAd ad, long now) {
+        AdBidEvent bid = ad.get();
+        AdSize size = bid.getDimensions();
+        if (size == null) return false;
+        String coordinates = getCoordinates(bid);
+        Entry current = byCoordinates.get(coordinates);
+        if (current != null) {
+            if (current.ad == ad) {
+                refresh(current, now);
+                return false;
+            }
+            if (!bid.getCreatedAt().isAfter(current.ad.get().getCreatedAt())) {
+                return false; // keep the newest version of the ad
+            }
+            remove(current);
+        }
+        Entry e = new Entry(ad, size);
+        e.key = ad.getBaseScore();
+        e.keyTime = now;
+        byCoordinates.put(coordinates, e);
+        buckets[size.ordinal()].add(e);
+        return true;
+    }
+
+    private void remove(Entry e) {
+        byCoordinates.remove(getCoordinates(e.ad.get()));
+        buckets[e.size.ordinal()].remove(e);
+        if (e.recovering) {
+            recovering.remove(e);
+            e.recovering = false;
+        }
+    }
+
+    /**
+     * Remove the bid with the given coordinates.
+     * @return true if there was one
+     */
+    boolean remove(String coordinates) {
+        Entry e = byCoordinates.get(coordinates);
+        if (e == null) return false;
+        remove(e);
+        return true;
+    }
+
+    /**
+     * Remove all the bids matching the predicate
+     */
+    int removeIf(Predicate<RankedAd> predicate) {
+        int removed = 0;
+        Iterator<Entry> it = byCoordinates.values().iterator();
+        while (it.hasNext()) {
+            Entry e = it.next();
+            if (predicate.test(e.ad)) {
+                it.remove();
+                buckets[e.size.ordinal()].remove(e);
+                if (e.recovering) {
+                    recovering.remove(e);
+                    e.recovering = false;
+                }
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Keep only the best n bids by base score
+     */
+    void trim(int n) {
+        if (byCoordinates.size() <= n) return;
+        List<Entry> all = new ArrayList<>(byCoordinates.values());
+        all.sort((a, b) -> Double.compare(b.key, a.key));
+        for (int i = n; i < all.size(); i++) {
+            remove(all.get(i));
+        }
+    }
+
+    /**
+     * Refresh the key of an entry after its score changed.
+     */
+    void refresh(RankedAd ad, long now) {
+        Entry e = byCoordinates.get(getCoordinates(ad.get()));
+        if (e != null && e.ad == ad) refresh(e, now);
+    }
+
+    private void refresh(Entry e, long now) {
+        double score = e.ad.getBaseScore();
+        e.keyTime = now;
+        if (score != e.key) {
+            e.key = score;
+            buckets[e.size.ordinal()].update(e);
+        }
+        // deranked ads recover over time, so their key must be periodically refreshed
+        boolean deranked = e.ad.isDeranked();
+        if (deranked && !e.recovering) {
+            e.recovering = true;
+            recovering.add(e);
+        }
+    }
+
+    private void refreshRecovering(long now, long tick) {
+        for (int i = recovering.size() - 1; i >= 0; i--) {
+            Entry e = recovering.get(i);
+            if (now - e.keyTime < tick) continue;
+            refresh(e, now);
+            if (!e.ad.isDeranked()) {
+                e.recovering = false;
+                int last = recovering.size() - 1;
+                recovering.set(i, recovering.get(last));
+                recovering.remove(last);
+            }
+        }
+    }
+
+    /**
+     * Find the best bid for the given adspace and size.
+     *
+     * @param filter an optional filter, bids for which it throws are hard deranked
+     * @return the best bid or null if there is none
+     */
+    RankedAd select(Adspace space, int width, int height, Predicate<AdBidEvent> filter, long now) {
+        refreshRecovering(now, RankedAd.getScoreTickMs());
+
+        Entry best = null;
+        double bestScore = -1;
+        try {
+            for (AdSize size : SIZES) {
+                Heap heap = buckets[size.ordinal()];
+                if (heap.isEmpty()) continue;
+                // the declared aspect ratio can differ from the one of the size, it is checked for each bid
+                if (!RankedAd.fits(size, width, height)) continue;
+
+                while (!heap.isEmpty() && heap.peek().key * RankedAd.MAX_CONTEXTUAL_BOOST > bestScore) {
+                    Entry e = heap.poll();
+                    popped.add(e);
+
+                    // the key can be stale if the ad was deranked by another queue
+                    double base = e.ad.getBaseScore();
+                    if (base != e.key) {
+                        e.key = base;
+                        e.keyTime = now;
+                        if (e.ad.isDeranked() && !e.recovering) {
+                            e.recovering = true;
+                            recovering.add(e);
+                        }
+                        if (base * RankedAd.MAX_CONTEXTUAL_BOOST <= bestScore) continue;
+                    }
+
+                    double score = e.ad.getContextualScore(space, width, height);
+                    if (score < 0 || score <= bestScore) continue;
+
+                    AdBidEvent bid = e.ad.get();
+                    try {
+                        if (filter != null && !filter.test(bid)) {
+                            if (logger.isLoggable(Level.FINER)) {
+                                logger.finer("Skipping bid: " + bid.getId() + " due to filter");
+                            }
+                            continue; // skip bids that do not match the filter
+                        }
+                    } catch (Exception ex) {
+                        logger.log(Level.WARNING, "Error applying filter to bid: " + bid.getId(), ex);
+                        e.ad.derank(true); // derank the bid if the filter throws an exception
+                        e.key = e.ad.getBaseScore();
+                        if (!e.recovering) {
+                            e.recovering = true;
+                            recovering.add(e);
+                        }
+                        continue; // skip bids that throw an exception in the filter
+                    }
+                    best = e;
+                    bestScore = score;
+                }
+            }
+        } finally {
+            // put back everything that was looked at, with the updated keys
+            for (int i = 0; i < popped.size(); i++) {
+                Entry e = popped.get(i);
+                buckets[e.size.ordinal()].add(e);
+            }
+            popped.clear();
+        }
+
+        if (best == null) return null;
+        if (logger.isLoggable(Level.FINER)) {
+            logger.finer("Best bid: " + best.ad.get() + "\n with score: " + bestScore);
+        }
+        return best.ad;
+    }
+}
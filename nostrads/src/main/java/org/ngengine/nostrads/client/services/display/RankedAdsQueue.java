@@ -33,9 +33,6 @@ package org.ngengine.nostrads.client.services.display;
 
 import jakarta.annotation.Nonnull;
 import java.time.Duration;
-import java.time.Instant;
-import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -44,249 +41,296 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.ngengine.nostr4j.NostrFilter;
 import org.ngengine.nostr4j.NostrPool;
-import org.ngengine.nostr4j.event.SignedNostrEvent;
+import org.ngengine.nostr4j.event.NostrEvent.TagValue;
 import org.ngengine.nostr4j.keypair.NostrPublicKey;
 import org.ngengine.nostr4j.pool.fetchpolicy.NostrPoolFetchPolicy;
-import org.ngengine.nostr4j.pool.fetchpolicy.NostrWaitForEventFetchPolicy;
 import org.ngengine.nostrads.client.services.PenaltyStorage;
 import org.ngengine.nostrads.protocol.AdBidEvent;
+import org.ngengine.nostrads.protocol.CompiledAdBid;
 import org.ngengine.nostrads.protocol.types.AdTaxonomy;
+import org.ngengine.platform.AsyncExecutor;
 import org.ngengine.platform.AsyncTask;
 import org.ngengine.platform.NGEPlatform;
 
 public class RankedAdsQueue {
 
     private static final Logger logger = Logger.getLogger(AdsDisplayClient.class.getName());
-    private static final int numBidsToLoad = 10;
-    private static final Duration updateInterval = Duration.ofSeconds(60);
-    private static final double minBaseScore = 0.2; // Set your minimum rank threshold here
-
-    private final List<RankedAd> rankedBids;
-    private final PenaltyStorage penaltyStorage;
-    private final NostrPool pool;
-    private final AdTaxonomy taxonomy;
-    private final Map<String, RankedAd> bidsCache;
+    private static final int maxQueuedBids = 50_000;
+    private static final Duration maxUpdateInterval = Duration.ofSeconds(60);
+    private static final Duration minUpdateInterval = Duration.ofSeconds(5);
+    // refresh early once this fraction of the queue has been served since the last refresh
+    private static final double demandRefreshRatio = 0.5;
+
+    private final RankedAdsIndex rankedBids;
+    private final BidIngestion ingestion;
+    private final boolean ownsIngestion;
     private final Adspace adspace;
     final AtomicInteger refs = new AtomicInteger(1);
 
-    private Instant newestBidTime = null;
-    private Instant oldestBidTime = null;
-    private Instant lastUpdateTime = null;
+    // background refresh, guarded by this
+    private final AsyncExecutor updater;
+    private AsyncTask<Void> currentUpdate = null;
+    private boolean updating = false;
+    private boolean loaded = false;
+    private long lastUpdateTime = Long.MIN_VALUE;
+    private int servedSinceUpdate = 0;
+    private boolean starved = false;
+
+    private volatile boolean closed = false;
+    private long nextExpirationMillis = Long.MAX_VALUE; // guarded by rankedBids
 
     public RankedAdsQueue(
         @Nonnull AdTaxonomy taxonomy,
         @Nonnull NostrPool pool,
         @Nonnull PenaltyStorage penaltyStorage,
-        @Nonnull Map<String, RankedAd> bidsCache,
+        @Nonnull BidCache bidsCache,
         @Nonnull Adspace adspace
     ) {
-        this.taxonomy = taxonomy;
-        this.pool = pool;
-        this.penaltyStorage = penaltyStorage;
-        this.rankedBids = new LinkedList<>();
-        this.bidsCache = bidsCache;
-        this.adspace = adspace;
+        this(taxonomy, pool, penaltyStorage, bidsCache, adspace, false);
     }
 
-    private boolean isTargetingThisSpace(AdBidEvent bidding) {
-        List<NostrPublicKey> tgs = bidding.getTargetedOfferers();
-        // workaround https://github.com/hoytech/strfry/issues/150 with client-side
-        // filtering
-        if (tgs != null && !tgs.contains(adspace.getUserKey())) {
-            logger.finer("Skipping bid not targeted to this offerer: " + bidding.getId());
-            return false; // skip bids not targeted to this offerer
-        }
-        tgs = bidding.getTargetedApps();
-        if (tgs != null && !tgs.contains(adspace.getAppKey())) {
-            logger.finer("Skipping bid not targeted to this app: " + bidding.getId());
-            return false; // skip bids not targeted to this app
-        }
+    /**
+     * @deprecated use {@link #RankedAdsQueue(AdTaxonomy, NostrPool, PenaltyStorage, BidCache, Adspace)}, the map
+     *             is wrapped in a {@link BidCache}
+     */
+    @Deprecated
+    public RankedAdsQueue(
+        @Nonnull AdTaxonomy taxonomy,
+        @Nonnull NostrPool pool,
+        @Nonnull PenaltyStorage penaltyStorage,
+        @Nonnull Map<String, RankedAd> bidsCache,
+        @Nonnull Adspace adspace
+    ) {
+        this(taxonomy, pool, penaltyStorage, BidCache.wrap(bidsCache), adspace);
+    }
 
-        return true;
+    /**
+     * Create a new queue.
+     * In streaming mode the relays are queried only once to backfill the queue, after that
+     * a live subscription keeps it up to date as new bids are published, replaced or deleted.
+     * Otherwise the relays are polled in background, more often when the bids are consumed faster.
+     *
+     * @param streaming true to enable the streaming mode
+     */
+    public RankedAdsQueue(
+        @Nonnull AdTaxonomy taxonomy,
+        @Nonnull NostrPool pool,
+        @Nonnull PenaltyStorage penaltyStorage,
+        @Nonnull BidCache bidsCache,
+        @Nonnull Adspace adspace,
+        boolean streaming
+    ) {
+        this(new BidIngestion(taxonomy, pool, penaltyStorage, bidsCache, streaming), true, adspace);
     }
 
-    private void update() {
-        try {
-            if (lastUpdateTime != null && Instant.now().isBefore(lastUpdateTime.plus(updateInterval))) {
-                return; // skip update if the last update was less than the update interval ago
-            }
-            lastUpdateTime = Instant.now();
+    /**
+     * Create a queue that receives its bids from a shared ingestion.
+     */
+    RankedAdsQueue(@Nonnull BidIngestion ingestion, @Nonnull Adspace adspace) {
+        this(ingestion, false, adspace);
+    }
 
-            Instant now = Instant.now();
+    private RankedAdsQueue(BidIngestion ingestion, boolean ownsIngestion, Adspace adspace) {
+        this.rankedBids = new RankedAdsIndex();
+        this.ingestion = ingestion;
+        this.ownsIngestion = ownsIngestion;
+        this.adspace = adspace;
+        this.updater = NGEPlatform.get().newAsyncExecutor(RankedAdsQueue.class);
+        ingestion.register(this);
+    }
 
-            List<RankedAd> mergedBids = new ArrayList<>();
+    public Adspace getAdspace() {
+        return adspace;
+    }
 
-            // merge bids with the existing ranked bids and remove expired in the same pass
-            synchronized (rankedBids) {
-                for (RankedAd r : rankedBids) {
-                    AdBidEvent bid = r.get();
-                    if (bid.getExpiration() != null && bid.getExpiration().isBefore(now)) {
-                        logger.finer("Removing expired bid: " + bid.getId() + " with expiration: " + bid.getExpiration());
-                        continue; // skip expired bids
-                    }
-                    mergedBids.add(r);
-                }
-            }
+    public boolean isStreaming() {
+        return ingestion.isStreaming();
+    }
 
-            // load a bunch of new bids
+    /**
+     * Stop receiving bids and release the resources of this queue.
+     */
+    public void close() {
+        closed = true;
+        ingestion.unregister(this);
+        if (ownsIngestion) {
+            ingestion.close();
+        }
+        updater.close();
+    }
 
-            if (newestBidTime == null) {
-                newestBidTime = Instant.now();
+    /**
+     * Add a bid routed to this queue by the ingestion.
+     */
+    void insert(RankedAd r) {
+        if (closed) return;
+        synchronized (rankedBids) {
+            if (rankedBids.put(r, System.currentTimeMillis())) {
+                logger.finest("Added bid: " + r.get().getId() + " to the queue, total: " + rankedBids.size());
+                long expiration = r.get().getCompiled().getExpirationMillis();
+                if (expiration < nextExpirationMillis) nextExpirationMillis = expiration;
             }
-            if (oldestBidTime == null) {
-                oldestBidTime = Instant.now();
+            // trim lazily, trimming has to sort the whole queue
+            if (rankedBids.size() > maxQueuedBids + maxQueuedBids / 10) {
+                rankedBids.trim(maxQueuedBids);
             }
+        }
+    }
 
-            NostrFilter filter = adspace.toFilter();
-
-            int rounds = 0;
-            int goodRanks = 0;
-            float goodBaseScore = 1.0f;
-
-            // Load bids in rounds, first newer+older, then only older, until we have enough good ranks or we
-            // reach the maximum number of rounds
-            while (rounds < 3 && goodRanks < numBidsToLoad * 2) {
-                logger.finer("Loading bids (round " + rounds + ") using filter: " + filter);
-                logger.finer("Newest bid time: " + newestBidTime);
-                logger.finer("Oldest bid time: " + oldestBidTime);
-                logger.finer("Currently newly loaded bids: " + rankedBids.size());
-
-                AsyncTask<List<RankedAd>> newOlderBids = fetchBids(
-                    List.of(filter.clone().until(oldestBidTime.plusMillis(2100))),
-                    null
-                );
+    /**
+     * Keep only the best bids, up to the maximum size of the queue.
+     */
+    void trim() {
+        synchronized (rankedBids) {
+            rankedBids.trim(maxQueuedBids);
+            logger.finer("Total bids loaded: " + rankedBids.size());
+        }
+    }
 
-                List<List<RankedAd>> newBids;
-                if (rounds == 0) {
-                    AsyncTask<List<RankedAd>> newNewerBids = fetchBids(
-                        List.of(filter.clone().since(newestBidTime.minusMillis(2100))),
-                        null
-                    );
-                    newBids = NGEPlatform.get().awaitAll(List.of(newNewerBids, newOlderBids)).await();
-                    logger.finer(
-                        "Loaded " + newBids.get(0).size() + " newer bids and " + newBids.get(1).size() + " older bids"
-                    );
-                } else { // rounds > 0 only load from the past (it is unlikely that new bids are added in  this small time frame)
-                    newBids = NGEPlatform.get().awaitAll(List.of(newOlderBids)).await();
-                    logger.finer("Loaded " + newBids.get(0).size() + " older bids");
+    /**
+     * Remove the bids referenced by a deletion event.
+     * Only the author of a bid can delete it.
+     */
+    void removeDeleted(NostrPublicKey author, List<TagValue> ids, List<TagValue> addrs) {
+        int removed = 0;
+        synchronized (rankedBids) {
+            if (ids != null) {
+                for (TagValue id : ids) {
+                    String eventId = id.get(0);
+                    removed += rankedBids.removeIf(r -> r.get().getId().equals(eventId) && r.get().getPubkey().equals(author));
                 }
-
-                // merge and find olderst and newest bid times
-                for (int i = 0; i < 2; i++) {
-                    if (newBids.size() <= i) continue;
-                    for (RankedAd r : newBids.get(i)) {
-                        AdBidEvent bid = r.get();
-
-                        try {
-                            // check if bid is targeting this specific space
-                            if (!isTargetingThisSpace(bid)) {
-                                logger.finer("Skipping bid: " + bid.getId() + " not targeting this space: " + adspace);
-                                continue; // skip bids not targeting this space
-                            }
-
-                            // load penalty for the bid
-                            try {
-                                Number n = penaltyStorage.get(bid).await();
-                                r.setPenalty(n.intValue());
-                            } catch (Exception e) {
-                                logger.log(Level.WARNING, "Error loading penalty for bid: " + bid.getId(), e);
-                                r.setPenalty(0); // if we fail to load the penalty, we assume no penalty
-                            }
-
-                            // compute rank quality
-                            if ((float) r.getBaseScore() >= goodBaseScore) {
-                                logger.finest("Adding bid: " + bid.getId() + " with score: " + r.getBaseScore());
-                                goodRanks++;
-                            }
-                            if (newestBidTime == null || bid.getCreatedAt().isAfter(newestBidTime)) {
-                                newestBidTime = bid.getCreatedAt();
-                                logger.finest("New newest bid time: " + newestBidTime);
-                            }
-                            if (oldestBidTime == null || bid.getCreatedAt().isBefore(oldestBidTime)) {
-                                oldestBidTime = bid.getCreatedAt();
-                                logger.finest("New oldest bid time: " + oldestBidTime);
-                            }
-                            if (!mergedBids.stream().anyMatch(ro -> ro.get().getAdId().equals(bid.getAdId()))) {
-                                mergedBids.add(r);
-                                logger.finest("Added bid: " + bid.getId() + " to merged bids, total: " + mergedBids.size());
-                            }
-                        } catch (Exception e) {
-                            logger.log(Level.WARNING, "Error processing bid: " + bid.getId(), e);
-                        }
-                    }
+            }
+            if (addrs != null) {
+                for (TagValue addr : addrs) {
+                    // the coordinates include the author, so only its own bids can match
+                    String coords = addr.get(0);
+                    String[] parts = coords.split(":", 3);
+                    if (parts.length == 3 && parts[1].equals(author.asHex()) && rankedBids.remove(coords)) removed++;
                 }
-
-                // increase round counter
-                rounds++;
             }
+        }
+        if (removed > 0) logger.finer("Removed " + removed + " deleted bids from adspace: " + adspace);
+    }
 
-            // sort
-            logger.finer("Sort bids by score, total loaded: " + mergedBids.size());
-            mergedBids.sort((a, b) -> {
-                double scoreA = a.getBaseScore();
-                double scoreB = b.getBaseScore();
-                return scoreB > scoreA ? 1 : (scoreB < scoreA ? -1 : 0); // sort by score higher score first
+    /**
+     * Evict the expired bids, if any of them is due.
+     */
+    void evictExpired(long now) {
+        synchronized (rankedBids) {
+            if (now < nextExpirationMillis) return;
+            long[] next = { Long.MAX_VALUE };
+            int removed = rankedBids.removeIf(r -> {
+                CompiledAdBid c = r.get().getCompiled();
+                if (c.isExpired(now)) return true;
+                if (c.getExpirationMillis() < next[0]) next[0] = c.getExpirationMillis();
+                return false;
             });
-
-            // remove to fit the number of bids to load
-            if (mergedBids.size() > numBidsToLoad) {
-                logger.finer("Trimming bids to fit the number of bids to load: " + numBidsToLoad);
-                mergedBids = mergedBids.subList(0, numBidsToLoad);
-            }
-
-            logger.finer("Total bids loaded: " + mergedBids.size());
-            synchronized (rankedBids) {
-                this.rankedBids.clear();
-                this.rankedBids.addAll(mergedBids);
-            }
-        } catch (Exception e) {
-            logger.log(Level.WARNING, "Error updating ads queue", e);
+            nextExpirationMillis = next[0];
+            if (removed > 0) logger.finer("Removed " + removed + " expired bids");
         }
     }
 
-    public RankedAd get(int width, int height, Predicate<AdBidEvent> filter) {
-        update();
-
-        // get best bid
-        if (rankedBids.isEmpty()) {
-            logger.finer("No bids available for adspace: " + adspace);
-            return null;
+    /**
+     * Check if the queue should be refreshed.
+     * The queue is refreshed at least every {@link #maxUpdateInterval}, and up to every
+     * {@link #minUpdateInterval} when the bids are consumed quickly or none of them fits the requests.
+     */
+    private boolean isUpdateDue(long now) {
+        // must be called while holding the lock on this
+        if (!loaded) return true;
+        if (ingestion.isStreaming()) {
+            // already backfilled, the live subscription does the rest once it is open
+            return !ingestion.isLive() || ingestion.needsBackfill(this);
         }
-
+        long elapsed = now - lastUpdateTime;
+        if (elapsed >= maxUpdateInterval.toMillis()) return true;
+        if (elapsed < minUpdateInterval.toMillis()) return false;
+        if (starved) return true;
+        int size;
         synchronized (rankedBids) {
-            // sort
-            logger.finer("Sort bids by score, total loaded: " + rankedBids.size());
-            rankedBids.sort((a, b) -> {
-                double scoreA = a.getContextualScore(adspace, width, height);
-                double scoreB = b.getContextualScore(adspace, width, height);
-                return scoreB > scoreA ? 1 : (scoreB < scoreA ? -1 : 0); // sort by score higher score first
-            });
-            logger.finer("payload Available bids per rank: " + rankedBids.size());
+            size = rankedBids.size();
+        }
+        return servedSinceUpdate >= Math.max(1, (int) (size * demandRefreshRatio));
+    }
 
-            for (RankedAd rbid : rankedBids) {
-                AdBidEvent bid = rbid.get();
+    /**
+     * Start a background refresh if one is due and not already running.
+     * @return the running refresh or null
+     */
+    private synchronized AsyncTask<Void> scheduleUpdate(long now) {
+        if (updating) return currentUpdate;
+        if (closed || !isUpdateDue(now)) return null;
+        updating = true;
+        lastUpdateTime = now;
+        servedSinceUpdate = 0;
+        starved = false;
+        currentUpdate =
+            updater.run(() -> {
                 try {
-                    if (rbid.getBaseScore() < 0) {
-                        logger.finer("Skipping bid: " + bid.getId() + " due unmatchable properties");
-                        continue;
+                    update();
+                } finally {
+                    synchronized (this) {
+                        updating = false;
+                        loaded = true;
                     }
+                }
+                return null;
+            });
+        return currentUpdate;
+    }
 
-                    if (filter != null && !filter.test(bid)) {
-                        logger.finer("Skipping bid: " + bid.getId() + " due to filter");
-                        continue; // skip bids that do not match the filter
-                    }
+    private synchronized void onServed(boolean found) {
+        if (found) {
+            servedSinceUpdate++;
+        } else {
+            starved = true;
+        }
+    }
+
+    private void update() {
+        ingestion.update();
+    }
+
+    /**
+     * Get the best bid for the given size.
+     * The bid is served from the current state of the queue, refreshes run in background.
+     * Only the very first call waits for the queue to be loaded.
+     */
+    public RankedAd get(int width, int height, Predicate<AdBidEvent> filter) {
+        long now = System.currentTimeMillis();
+        evictExpired(now);
+
+        AsyncTask<Void> update = scheduleUpdate(now);
+        if (update != null) {
+            boolean firstLoad;
+            synchronized (this) {
+                firstLoad = !loaded;
+            }
+            if (firstLoad) {
+                try {
+                    update.await(); // nothing to serve yet
                 } catch (Exception e) {
-                    logger.log(Level.WARNING, "Error applying filter to bid: " + bid.getId(), e);
-                    rbid.derank(true); // derank the bid if the filter throws an exception
-                    continue; // skip bids that throw an exception in the filter
+                    logger.log(Level.WARNING, "Error loading ads queue", e);
                 }
-                rbid.derank(false);
-                logger.finer("Best bid: " + bid + "\n with score: " + rbid.getContextualScore(adspace, width, height));
-                return rbid;
             }
         }
 
-        return null; // no bid found that matches the filter
+        RankedAd rbid = null;
+        synchronized (rankedBids) {
+            // get best bid
+            if (rankedBids.isEmpty()) {
+                logger.finer("No bids available for adspace: " + adspace);
+            } else {
+                now = System.currentTimeMillis();
+                rbid = rankedBids.select(adspace, width, height, filter, now);
+                if (rbid != null) {
+                    rbid.derank(false);
+                    rankedBids.refresh(rbid, now);
+                }
+            }
+        }
+        onServed(rbid != null);
+        return rbid; // null if no bid matches the filter
     }
 
     /**
@@ -298,50 +342,6 @@ public class RankedAdsQueue {
      *
      */
     public AsyncTask<List<RankedAd>> fetchBids(List<NostrFilter> filters, NostrPoolFetchPolicy fetchPolicy) {
-        // we will use the maximum limit from the filter to autogenerate a fetch policy if one is not provided
-        int maxLimit = 0;
-        for (NostrFilter filter : filters) {
-            if (filter.getLimit() != null && filter.getLimit() > maxLimit) {
-                maxLimit = filter.getLimit();
-            }
-        }
-
-        AsyncTask<List<RankedAd>> nn = pool
-            .fetch(
-                filters,
-                fetchPolicy != null
-                    ? fetchPolicy
-                    : NostrWaitForEventFetchPolicy.get(
-                        e -> true,
-                        maxLimit > 0 ? maxLimit : numBidsToLoad,
-                        true,
-                        Duration.ofSeconds(10)
-                    ) // we are going to early stop as soon as we have up to maxLimit events or we receive an eose for every relay
-            )
-            .then(events -> {
-                // turn all the events into bids
-                List<RankedAd> bids = new ArrayList<>();
-                for (SignedNostrEvent event : events) {
-                    try {
-                        AdBidEvent bid = new AdBidEvent(taxonomy, event);
-                        if (!bid.isValid()) {
-                            logger.fine("Invalid bidding event: " + bid.getId());
-                            continue; // skip invalid bids
-                        }
-                        String id = bid.getId();
-                        RankedAd rbid;
-                        synchronized (bidsCache) {
-                            rbid = bidsCache.computeIfAbsent(id, k -> new RankedAd(bid));
-                        }
-                        if (bids != null) {
-                            bids.add(rbid);
-                        }
-                    } catch (Exception e) {
-                        logger.log(Level.WARNING, "Error processing event: " + event.getId(), e);
-                    }
-                }
-                return bids;
-            });
-        return nn;
+        return ingestion.fetchBids(filters, fetchPolicy);
     }
 }
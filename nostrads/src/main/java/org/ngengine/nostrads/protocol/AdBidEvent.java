@@ -60,11 +60,32 @@ public class AdBidEvent extends AdEvent {
 
     public static final int KIND = 30100; // Ad Bid kind
     private final AdTaxonomy taxonomy;
+    private final CompiledAdBid compiled;
+    private final Exception malformed;
     private transient AdOfferEvent linkedOffer = null;
 
     public AdBidEvent(AdTaxonomy taxonomy, SignedNostrEvent event) {
         super(event.toMap(), null);
         this.taxonomy = taxonomy;
+        CompiledAdBid compiled = null;
+        Exception malformed = null;
+        try {
+            compiled = new CompiledAdBid(taxonomy, this);
+        } catch (Exception e) {
+            malformed = e;
+        }
+        this.compiled = compiled;
+        this.malformed = malformed;
+    }
+
+    /**
+     * Get the parsed view of this bid.
+     *
+     * @return the compiled bid or null if the bid is malformed
+     */
+    @Nullable
+    public CompiledAdBid getCompiled() {
+        return compiled;
     }
 
     @Override
@@ -79,6 +100,10 @@ public class AdBidEvent extends AdEvent {
     }
 
     public String getDescription() {
+        return parseDescription();
+    }
+
+    String parseDescription() {
         return NGEUtils.safeString(getData("description", true));
     }
 
@@ -89,24 +114,42 @@ public class AdBidEvent extends AdEvent {
     }
 
     public String getPayload() {
+        return parsePayload();
+    }
+
+    String parsePayload() {
         return NGEUtils.safeString(getData("payload", true));
     }
 
     public String getLink() {
-        String link = NGEUtils.safeString(getData("link", true));
+        String link = parseLink();
         if (linkedOffer != null) {
             link = link.replace("$OFFER_ID", linkedOffer.getId());
         }
         return link;
     }
 
+    String parseLink() {
+        return NGEUtils.safeString(getData("link", true));
+    }
+
     public int getMaxPayouts() {
+        if (compiled != null && compiled.getMaxPayouts() >= 0) return compiled.getMaxPayouts();
+        return parseMaxPayouts();
+    }
+
+    int parseMaxPayouts() {
         Object maxPayouts = getData("max_payouts", true);
         return NGEUtils.safeInt(maxPayouts); // Default to 3 if not set
     }
 
     @Nonnull
     public Duration getPayoutResetInterval() {
+        if (compiled != null && compiled.getPayoutResetInterval() != null) return compiled.getPayoutResetInterval();
+        return parsePayoutResetInterval();
+    }
+
+    Duration parsePayoutResetInterval() {
         Object resetInterval = getData("payout_reset_interval", true);
         return NGEUtils.safeDurationInSeconds(resetInterval); // Default to 5 minutes if not set
     }
@@ -118,24 +161,49 @@ public class AdBidEvent extends AdEvent {
     }
 
     public long getBidMsats() {
+        if (compiled != null) return compiled.getBidMsats();
+        return parseBidMsats();
+    }
+
+    long parseBidMsats() {
         Object bid = getData("bid", true);
         return NGEUtils.safeLong(bid);
     }
 
     public Duration getHoldTime() {
+        if (compiled != null) return compiled.getHoldTime();
+        return parseHoldTime();
+    }
+
+    Duration parseHoldTime() {
         return NGEUtils.safeDurationInSeconds(getData("hold_time", true));
     }
 
     public AdActionType getActionType() {
+        if (compiled != null) return compiled.getActionType();
+        return parseActionType();
+    }
+
+    AdActionType parseActionType() {
         return AdActionType.fromValue(getTagData("k", true));
     }
 
     public AdMimeType getMIMEType() {
+        if (compiled != null) return compiled.getMIMEType();
+        return parseMIMEType();
+    }
+
+    AdMimeType parseMIMEType() {
         return AdMimeType.fromString(getTagData("m", true));
     }
 
     @Nullable
     public List<AdTaxonomy.Term> getCategories() {
+        if (compiled != null) return compiled.getCategories();
+        return parseCategories();
+    }
+
+    List<AdTaxonomy.Term> parseCategories() {
         ArrayList<AdTaxonomy.Term> categories = null;
         for (NostrEvent.TagValue tt : getTag("t")) {
             String t = tt.get(0);
@@ -154,6 +222,11 @@ public class AdBidEvent extends AdEvent {
 
     @Nullable
     public List<String> getLanguages() {
+        if (compiled != null) return compiled.getLanguages();
+        return parseLanguages();
+    }
+
+    List<String> parseLanguages() {
         List<String> langs = null;
         for (NostrEvent.TagValue tt : getTag("l")) {
             String l = tt.get(0);
@@ -169,6 +242,11 @@ public class AdBidEvent extends AdEvent {
 
     @Nullable
     public List<NostrPublicKey> getTargetedApps() {
+        if (compiled != null) return compiled.getTargetedApps();
+        return parseTargetedApps();
+    }
+
+    List<NostrPublicKey> parseTargetedApps() {
         List<TagValue> values = getTag("y");
         if (values == null) return null;
         List<NostrPublicKey> targets = null;
@@ -186,6 +264,11 @@ public class AdBidEvent extends AdEvent {
 
     @Nullable
     public List<NostrPublicKey> getTargetedOfferers() {
+        if (compiled != null) return compiled.getTargetedOfferers();
+        return parseTargetedOfferers();
+    }
+
+    List<NostrPublicKey> parseTargetedOfferers() {
         List<TagValue> values = getTag("p");
         if (values == null) return null;
         List<NostrPublicKey> targets = null;
@@ -202,6 +285,11 @@ public class AdBidEvent extends AdEvent {
     }
 
     public String getAdId() {
+        if (compiled != null) return compiled.getAdId();
+        return parseAdId();
+    }
+
+    String parseAdId() {
         return NGEUtils.safeString(getTagData("d", true));
     }
 
@@ -211,6 +299,11 @@ public class AdBidEvent extends AdEvent {
      * @return a {@link NostrPublicKey} to which send the negotiations
      */
     public NostrPublicKey getDelegate() {
+        if (compiled != null) return compiled.getDelegate();
+        return parseDelegate();
+    }
+
+    NostrPublicKey parseDelegate() {
         String delegation = getTagData("D", true);
         return NostrPublicKey.fromHex(delegation);
     }
@@ -218,51 +311,49 @@ public class AdBidEvent extends AdEvent {
     public AsyncTask<Map<String, Object>> getDecryptedDelegatePayload(NostrSigner signer) {
         TagValue data = getFirstTag("D");
         String encryptedPayload = Objects.requireNonNull(Objects.requireNonNull(data).get(1));
-        return signer
-            .decrypt(encryptedPayload, getPubkey())
+        return ConversationKeyCache
+            .get()
+            .decrypt(signer, encryptedPayload, getPubkey())
             .then(decrypted -> NGEPlatform.get().fromJSON(decrypted, Map.class));
     }
 
     public AdPriceSlot getPriceSlot() {
+        if (compiled != null) return compiled.getPriceSlot();
+        return parsePriceSlot();
+    }
+
+    AdPriceSlot parsePriceSlot() {
         return AdPriceSlot.fromString(getTagData("f", true));
     }
 
     public AdAspectRatio getAspectRatio() {
+        if (compiled != null) return compiled.getAspectRatio();
+        return parseAspectRatio();
+    }
+
+    AdAspectRatio parseAspectRatio() {
         return AdAspectRatio.fromString(getTagData("S", true));
     }
 
     public AdSize getDimensions() {
+        if (compiled != null) return compiled.getDimensions();
+        return parseDimensions();
+    }
+
+    AdSize parseDimensions() {
         return AdSize.fromString(getTagData("s", true));
     }
 
     @Override
     public void checkValid() throws Exception {
         super.checkValid();
-        getDescription();
-        getPayload();
-        getLink();
-        getBidMsats();
-        getHoldTime();
-        getActionType();
-        getMIMEType();
-
-        AdAspectRatio aspectRatio = getAspectRatio();
-        if (aspectRatio == null) {
-            throw new Exception("Unsupported aspect ratio: " + getTagData("S", true));
-        }
-        AdSize dimensions = getDimensions();
-        if (dimensions == null) {
-            throw new Exception("Unsupported dimensions: " + getTagData("s", true));
-        }
-        getAdId();
-        getDelegate();
-        AdPriceSlot slot = getPriceSlot();
-        if (slot == null) {
-            throw new Exception("Unsupported price slot: " + getTagData("f", true));
-        }
-        if (slot.getValueMsats() > this.getBidMsats()) {
-            throw new Exception("Invalid bid slot " + slot + " for amount " + this.getBidMsats() + " msats");
-        }
+        if (malformed != null) throw malformed;
+    }
+
+    @Override
+    public boolean isValid() {
+        // the structure is checked once at construction, only the expiration can change
+        return compiled != null && !compiled.isExpired(System.currentTimeMillis());
     }
 
     public static class BidBuilder {
@@ -396,8 +487,9 @@ public class AdBidEvent extends AdEvent {
                         res.accept(event);
                     } else {
                         String strDelegatePayload = NGEPlatform.get().toJSON(delegatePayload);
-                        signer
-                            .encrypt(strDelegatePayload, delegate)
+                        ConversationKeyCache
+                            .get()
+                            .encrypt(signer, strDelegatePayload, delegate)
                             .then(encrypted -> {
                                 event.withTag("D", delegate.asHex(), encrypted);
                                 res.accept(event);
@@ -0,0 +1,270 @@
+/**
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2025, Riccardo Balbo
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.ngengine.nostrads.protocol;
+
+import jakarta.annotation.Nullable;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.ngengine.nostr4j.keypair.NostrPublicKey;
+import org.ngengine.nostrads.protocol.types.AdActionType;
+import org.ngengine.nostrads.protocol.types.AdAspectRatio;
+import org.ngengine.nostrads.protocol.types.AdMimeType;
+import org.ngengine.nostrads.protocol.types.AdPriceSlot;
+import org.ngengine.nostrads.protocol.types.AdSize;
+import org.ngengine.nostrads.protocol.types.AdTaxonomy;
+
+/**
+ * An immutable, parsed once, view of a bid.
+ *
+ * It is built when the {@link AdBidEvent} is created and holds everything that is needed
+ * by the hot paths (targeting checks, scoring, payout checks) in an already decoded form,
+ * so that they don't have to go back to the tags and the json content of the event.
+ *
+ * Only well formed bids have a compiled view, see {@link AdBidEvent#getCompiled()}.
+ */
+public final class CompiledAdBid {
+
+    private final AdTaxonomy taxonomy;
+    private final String adId;
+    private final long bidMsats;
+    private final Duration holdTime;
+    private final int maxPayouts;
+    private final Duration payoutResetInterval;
+    private final AdActionType actionType;
+    private final AdMimeType mimeType;
+    private final AdSize dimensions;
+    private final AdAspectRatio aspectRatio;
+    private final AdPriceSlot priceSlot;
+    private final NostrPublicKey delegate;
+    private final List<AdTaxonomy.Term> categories;
+    private final BitSet categoryBits;
+    private final List<String> languages;
+    private final List<NostrPublicKey> targetedOfferers;
+    private final List<NostrPublicKey> targetedApps;
+    private final Set<NostrPublicKey> targetedOfferersSet;
+    private final Set<NostrPublicKey> targetedAppsSet;
+    private final Instant expiration;
+    private final long expirationMillis;
+
+    /**
+     * Compile the given bid.
+     *
+     * @throws Exception if the bid is malformed, with the same message {@link AdBidEvent#checkValid()} would report
+     */
+    CompiledAdBid(AdTaxonomy taxonomy, AdBidEvent bid) throws Exception {
+        this.taxonomy = taxonomy;
+
+        // required content, these throw if missing
+        bid.parseDescription();
+        bid.parsePayload();
+        bid.parseLink();
+        this.bidMsats = bid.parseBidMsats();
+        this.holdTime = bid.parseHoldTime();
+        // payout limits are not part of the validity check
+        this.maxPayouts = bid.getData("max_payouts", false) != null ? bid.parseMaxPayouts() : -1;
+        this.payoutResetInterval = bid.getData("payout_reset_interval", false) != null
+            ? bid.parsePayoutResetInterval()
+            : null;
+        this.actionType = bid.parseActionType();
+        this.mimeType = bid.parseMIMEType();
+
+        this.aspectRatio = bid.parseAspectRatio();
+        if (aspectRatio == null) {
+            throw new Exception("Unsupported aspect ratio: " + bid.getTagData("S", true));
+        }
+        this.dimensions = bid.parseDimensions();
+        if (dimensions == null) {
+            throw new Exception("Unsupported dimensions: " + bid.getTagData("s", true));
+        }
+        this.adId = bid.parseAdId();
+        this.delegate = bid.parseDelegate();
+        this.priceSlot = bid.parsePriceSlot();
+        if (priceSlot == null) {
+            throw new Exception("Unsupported price slot: " + bid.getTagData("f", true));
+        }
+        if (priceSlot.getValueMsats() > bidMsats) {
+            throw new Exception("Invalid bid slot " + priceSlot + " for amount " + bidMsats + " msats");
+        }
+
+        List<AdTaxonomy.Term> categories = bid.parseCategories();
+        if (categories != null) {
+            BitSet bits = new BitSet();
+            for (AdTaxonomy.Term term : categories) {
+                bits.set(taxonomy.getIndex(term));
+            }
+            this.categories = Collections.unmodifiableList(categories);
+            this.categoryBits = bits;
+        } else {
+            this.categories = null;
+            this.categoryBits = null;
+        }
+
+        List<String> languages = bid.parseLanguages();
+        this.languages = languages != null ? Collections.unmodifiableList(languages) : null;
+
+        List<NostrPublicKey> offerers = bid.parseTargetedOfferers();
+        this.targetedOfferers = offerers != null ? Collections.unmodifiableList(offerers) : null;
+        this.targetedOfferersSet = offerers != null ? new HashSet<>(offerers) : null;
+
+        List<NostrPublicKey> apps = bid.parseTargetedApps();
+        this.targetedApps = apps != null ? Collections.unmodifiableList(apps) : null;
+        this.targetedAppsSet = apps != null ? new HashSet<>(apps) : null;
+
+        this.expiration = bid.getExpiration();
+        this.expirationMillis = expiration != null ? expiration.toEpochMilli() : Long.MAX_VALUE;
+    }
+
+    public String getAdId() {
+        return adId;
+    }
+
+    public long getBidMsats() {
+        return bidMsats;
+    }
+
+    public Duration getHoldTime() {
+        return holdTime;
+    }
+
+    /**
+     * @return the max payouts or -1 if not set
+     */
+    public int getMaxPayouts() {
+        return maxPayouts;
+    }
+
+    @Nullable
+    public Duration getPayoutResetInterval() {
+        return payoutResetInterval;
+    }
+
+    public AdActionType getActionType() {
+        return actionType;
+    }
+
+    public AdMimeType getMIMEType() {
+        return mimeType;
+    }
+
+    public AdSize getDimensions() {
+        return dimensions;
+    }
+
+    public AdAspectRatio getAspectRatio() {
+        return aspectRatio;
+    }
+
+    public AdPriceSlot getPriceSlot() {
+        return priceSlot;
+    }
+
+    public NostrPublicKey getDelegate() {
+        return delegate;
+    }
+
+    @Nullable
+    public List<AdTaxonomy.Term> getCategories() {
+        return categories;
+    }
+
+    @Nullable
+    public List<String> getLanguages() {
+        return languages;
+    }
+
+    @Nullable
+    public List<NostrPublicKey> getTargetedOfferers() {
+        return targetedOfferers;
+    }
+
+    @Nullable
+    public List<NostrPublicKey> getTargetedApps() {
+        return targetedApps;
+    }
+
+    @Nullable
+    public Instant getExpiration() {
+        return expiration;
+    }
+
+    /**
+     * Get the expiration time in milliseconds since epoch, or Long.MAX_VALUE if the bid does not expire
+     */
+    public long getExpirationMillis() {
+        return expirationMillis;
+    }
+
+    /**
+     * Check if the bid is expired at the given time
+     * @param nowMillis the current time in milliseconds since epoch
+     * @return true if expired
+     */
+    public boolean isExpired(long nowMillis) {
+        return expirationMillis < nowMillis;
+    }
+
+    /**
+     * Check if the given offerer is allowed to offer to this bid
+     * @param offerer the offerer pubkey
+     * @return true if the bid has no offerer whitelist or if the offerer is in it
+     */
+    public boolean isOffererAllowed(NostrPublicKey offerer) {
+        return targetedOfferersSet == null || targetedOfferersSet.contains(offerer);
+    }
+
+    /**
+     * Check if the given app is allowed to display this bid
+     * @param app the app pubkey
+     * @return true if the bid has no app whitelist or if the app is in it
+     */
+    public boolean isAppAllowed(NostrPublicKey app) {
+        return targetedAppsSet == null || targetedAppsSet.contains(app);
+    }
+
+    /**
+     * Check if the bid is in at least one of the given categories
+     * @param terms the categories to check
+     * @return true if there is at least one category in common
+     */
+    public boolean hasAnyCategory(List<AdTaxonomy.Term> terms) {
+        if (categoryBits == null || terms == null) return false;
+        for (int i = 0; i < terms.size(); i++) {
+            if (categoryBits.get(taxonomy.getIndex(terms.get(i)))) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,221 @@
+/**
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2025, Riccardo Balbo
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.ngengine.nostrads.protocol;
+
+import jakarta.annotation.Nonnull;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import org.ngengine.nostr4j.keypair.NostrKeyPair;
+import org.ngengine.nostr4j.keypair.NostrPublicKey;
+import org.ngengine.nostr4j.nip44.Nip44;
+import org.ngengine.nostr4j.signer.NostrKeyPairSigner;
+import org.ngengine.nostr4j.signer.NostrSigner;
+import org.ngengine.platform.AsyncTask;
+import org.ngengine.platform.NGEPlatform;
+
+/**
+ * Encrypts and decrypts with NIP-44 on behalf of a {@link NostrSigner}, caching the conversation key of each
+ * pair of parties, so that the ECDH and HKDF steps are paid once per pair instead of once per message.
+ *
+ * Only {@link NostrKeyPairSigner}s can be cached, since the conversation key needs the private key, every
+ * other signer is called directly. The cache is bounded and the least recently used keys are evicted first;
+ * evicted keys are wiped from memory.
+ */
+public final class ConversationKeyCache {
+
+    public static final int DEFAULT_MAX_SIZE = 1024;
+
+    private static volatile ConversationKeyCache instance = new ConversationKeyCache(DEFAULT_MAX_SIZE);
+
+    private final Map<String, byte[]> keys; // guarded by itself
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Create a new cache
+     * @param maxSize the maximum number of conversation keys to keep
+     */
+    public ConversationKeyCache(int maxSize) {
+        this.keys =
+            new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+                    if (size() <= maxSize) return false;
+                    wipe(eldest.getValue());
+                    return true;
+                }
+            };
+    }
+
+    /**
+     * Get the cache used by the ad events.
+     */
+    public static @Nonnull ConversationKeyCache get() {
+        return instance;
+    }
+
+    /**
+     * Set the cache used by the ad events. The previous cache is cleared.
+     */
+    public static void set(@Nonnull ConversationKeyCache cache) {
+        ConversationKeyCache previous = instance;
+        instance = cache;
+        if (previous != cache) previous.clear();
+    }
+
+    /**
+     * Encrypt a message for a counterparty, like {@link NostrSigner#encrypt(String, NostrPublicKey)}.
+     */
+    public AsyncTask<String> encrypt(
+        @Nonnull NostrSigner signer,
+        @Nonnull String message,
+        @Nonnull NostrPublicKey counterparty
+    ) {
+        if (!(signer instanceof NostrKeyPairSigner)) {
+            return signer.encrypt(message, counterparty);
+        }
+        return getConversationKey((NostrKeyPairSigner) signer, counterparty)
+            .compose(key -> withKey(key, k -> Nip44.encrypt(message, k)));
+    }
+
+    /**
+     * Decrypt a message from a counterparty, like {@link NostrSigner#decrypt(String, NostrPublicKey)}.
+     */
+    public AsyncTask<String> decrypt(
+        @Nonnull NostrSigner signer,
+        @Nonnull String message,
+        @Nonnull NostrPublicKey counterparty
+    ) {
+        if (!(signer instanceof NostrKeyPairSigner)) {
+            return signer.decrypt(message, counterparty);
+        }
+        return getConversationKey((NostrKeyPairSigner) signer, counterparty)
+            .compose(key -> withKey(key, k -> Nip44.decrypt(message, k)));
+    }
+
+    /**
+     * Run a NIP-44 operation with a copy of the conversation key, the copy is wiped whether it succeeds or not.
+     */
+    private static AsyncTask<String> withKey(byte[] key, Function<byte[], AsyncTask<String>> op) {
+        return NGEPlatform
+            .get()
+            .wrapPromise((res, rej) -> {
+                try {
+                    op
+                        .apply(key)
+                        .then(r -> {
+                            wipe(key);
+                            res.accept(r);
+                            return null;
+                        })
+                        .catchException(ex -> {
+                            wipe(key);
+                            rej.accept(ex);
+                        });
+                } catch (Exception e) {
+                    wipe(key);
+                    rej.accept(e);
+                }
+            });
+    }
+
+    /**
+     * Get a copy of the conversation key, that the caller can wipe once done with it.
+     */
+    private AsyncTask<byte[]> getConversationKey(NostrKeyPairSigner signer, NostrPublicKey counterparty) {
+        NostrKeyPair keyPair = signer.getKeyPair();
+        String id = keyPair.getPublicKey().asHex() + counterparty.asHex();
+        byte[] cached;
+        synchronized (keys) {
+            cached = keys.get(id);
+            if (cached != null) cached = cached.clone();
+        }
+        if (cached != null) {
+            hits.incrementAndGet();
+            byte[] key = cached;
+            return NGEPlatform.get().wrapPromise((res, rej) -> res.accept(key));
+        }
+        misses.incrementAndGet();
+        return Nip44
+            .getConversationKey(keyPair.getPrivateKey(), counterparty)
+            .then(key -> {
+                synchronized (keys) {
+                    byte[] current = keys.get(id);
+                    if (current != null) {
+                        // computed concurrently, keep the one already in the cache
+                        wipe(key);
+                        return current.clone();
+                    }
+                    keys.put(id, key);
+                    return key.clone();
+                }
+            });
+    }
+
+    private static void wipe(byte[] key) {
+        Arrays.fill(key, (byte) 0);
+    }
+
+    /**
+     * Wipe and remove all the cached keys.
+     */
+    public void clear() {
+        synchronized (keys) {
+            for (byte[] key : keys.values()) {
+                wipe(key);
+            }
+            keys.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (keys) {
+            return keys.size();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ConversationKeyCache{size=" + size() + ", hits=" + getHits() + ", misses=" + getMisses() + "}";
+    }
+}
@@ -41,6 +41,7 @@ import org.ngengine.nostr4j.keypair.NostrPublicKey;
 import org.ngengine.nostr4j.signer.NostrSigner;
 import org.ngengine.nostrads.protocol.AdBidEvent;
 import org.ngengine.nostrads.protocol.AdEvent;
+import org.ngengine.nostrads.protocol.ConversationKeyCache;
 import org.ngengine.platform.AsyncTask;
 import org.ngengine.platform.NGEPlatform;
 import org.ngengine.platform.NGEUtils;
@@ -140,11 +141,14 @@ public abstract class AdNegotiationEvent extends AdEvent {
                     }
 
                     this.event.withTag("p", counterparty.asHex());
-                    return signer
-                        .encrypt(NGEPlatform.get().toJSON(content), counterparty)
+                    return CryptoOffload
+                        .get()
+                        .submit(() ->
+                            ConversationKeyCache.get().encrypt(signer, NGEPlatform.get().toJSON(content), counterparty)
+                        )
                         .compose(encrypted -> {
                             event.withContent(encrypted);
-                            return signer.sign(event);
+                            return CryptoOffload.get().submit(() -> signer.sign(event));
                         })
                         .then(signed -> {
                             return this.factory.create(
@@ -163,8 +167,9 @@ public abstract class AdNegotiationEvent extends AdEvent {
 
     @SuppressWarnings("unchecked")
     public static <T extends AdNegotiationEvent> AsyncTask<T> cast(NostrSigner signer, SignedNostrEvent e, AdOfferEvent offer) {
-        return (AsyncTask<T>) signer
-            .decrypt(e.getContent(), e.getPubkey())
+        return (AsyncTask<T>) CryptoOffload
+            .get()
+            .submit(() -> ConversationKeyCache.get().decrypt(signer, e.getContent(), e.getPubkey()))
             .then(decrypted -> {
                 Map<String, Object> content = NGEPlatform.get().fromJSON(decrypted, Map.class);
                 String type = (String) content.get("type");
@@ -37,6 +37,7 @@ import org.ngengine.nostr4j.event.SignedNostrEvent;
 import org.ngengine.nostr4j.keypair.NostrPublicKey;
 import org.ngengine.nostr4j.signer.NostrSigner;
 import org.ngengine.nostrads.protocol.AdBidEvent;
+import org.ngengine.nostrads.protocol.ConversationKeyCache;
 import org.ngengine.platform.AsyncTask;
 import org.ngengine.platform.NGEPlatform;
 import org.ngengine.platform.NGEUtils;
@@ -100,11 +101,14 @@ public class AdPowNegotiationEvent extends AdNegotiationEvent {
 
                     this.event.withTag("p", counterparty.asHex());
 
-                    return signer
-                        .encrypt(NGEPlatform.get().toJSON(content), counterparty)
+                    return CryptoOffload
+                        .get()
+                        .submit(() ->
+                            ConversationKeyCache.get().encrypt(signer, NGEPlatform.get().toJSON(content), counterparty)
+                        )
                         .compose(encrypted -> {
                             event.withContent(encrypted);
-                            return signer.powSign(event, minePow);
+                            return CryptoOffload.get().getPow().submit(() -> signer.powSign(event, minePow));
                         })
                         .then(signed -> {
                             return this.factory.create(
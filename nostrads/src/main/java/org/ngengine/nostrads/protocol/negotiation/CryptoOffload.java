@@ -0,0 +1,282 @@
+/**
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2025, Riccardo Balbo
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.ngengine.nostrads.protocol.negotiation;
+
+import jakarta.annotation.Nonnull;
+import jakarta.annotation.Nullable;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.ngengine.platform.AsyncTask;
+import org.ngengine.platform.NGEPlatform;
+
+/**
+ * Runs the signer operations of the negotiation events (NIP-44 encryption and decryption, signing) on a
+ * dedicated executor, so that they don't compete with the thread that delivers the relay messages.
+ *
+ * By default there is no executor and the operations are called inline, on the calling thread.
+ * Servers can install an instance backed by a worker pool with {@link #set(CryptoOffload)}.
+ *
+ * The proof of work mined when signing is much slower than the other operations, so it runs on its own
+ * offload ({@link #getPow()}), and doesn't hold the workers that encrypt and decrypt the messages.
+ *
+ * The installed offload is process-wide: it is shared by every service and client running in the same
+ * JVM, including tests.
+ */
+public final class CryptoOffload {
+
+    private static final Logger logger = Logger.getLogger(CryptoOffload.class.getName());
+    private static volatile CryptoOffload instance = new CryptoOffload(null);
+
+    private final Executor executor;
+    private final CryptoOffload pow;
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong maxQueued = new AtomicLong();
+    private final AtomicLong inFlight = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong queueNanos = new AtomicLong();
+    private final AtomicLong runNanos = new AtomicLong();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+    /**
+     * Create a new offload, that mines the proof of work inline
+     * @param executor the executor running the operations, or null to run them inline
+     */
+    public CryptoOffload(@Nullable Executor executor) {
+        this(executor, null, false);
+    }
+
+    /**
+     * Create a new offload
+     * @param executor the executor running the operations, or null to run them inline
+     * @param powExecutor the executor mining the proof of work, or null to run it inline
+     */
+    public CryptoOffload(@Nullable Executor executor, @Nullable Executor powExecutor) {
+        this(executor, powExecutor, false);
+    }
+
+    private CryptoOffload(@Nullable Executor executor, @Nullable Executor powExecutor, boolean mining) {
+        this.executor = executor;
+        this.pow = mining ? this : new CryptoOffload(powExecutor, null, true);
+    }
+
+    /**
+     * Get the offload used by the negotiation events.
+     */
+    public static @Nonnull CryptoOffload get() {
+        return instance;
+    }
+
+    /**
+     * Set the offload used by the negotiation events.
+     * This replaces the offload for the whole process, every service and client in the JVM will use it.
+     */
+    public static void set(@Nonnull CryptoOffload offload) {
+        instance = offload;
+    }
+
+    /**
+     * Get the offload mining the proof of work, that has its own executor and statistics.
+     */
+    public @Nonnull CryptoOffload getPow() {
+        return pow;
+    }
+
+    /**
+     * Run a signer operation on the executor.
+     * @param op the operation, called on a worker thread
+     * @return the result of the operation
+     */
+    public <T> AsyncTask<T> submit(@Nonnull Callable<AsyncTask<T>> op) {
+        long submittedAt = System.nanoTime();
+        if (executor == null) {
+            inFlight.incrementAndGet();
+            return NGEPlatform
+                .get()
+                .wrapPromise((res, rej) -> {
+                    AsyncTask<T> task;
+                    try {
+                        task = op.call();
+                    } catch (Throwable e) {
+                        onDone(submittedAt, submittedAt, false);
+                        rej.accept(e);
+                        return;
+                    }
+                    task
+                        .then(r -> {
+                            onDone(submittedAt, submittedAt, true);
+                            res.accept(r);
+                            return null;
+                        })
+                        .catchException(ex -> {
+                            onDone(submittedAt, submittedAt, false);
+                            rej.accept(ex);
+                        });
+                });
+        }
+
+        updateMax(maxQueued, queued.incrementAndGet());
+        return NGEPlatform
+            .get()
+            .wrapPromise((res, rej) -> {
+                try {
+                    executor.execute(() -> {
+                        queued.decrementAndGet();
+                        inFlight.incrementAndGet();
+                        long startedAt = System.nanoTime();
+                        AsyncTask<T> task;
+                        try {
+                            task = op.call();
+                        } catch (Throwable e) {
+                            onDone(submittedAt, startedAt, false);
+                            rej.accept(e);
+                            return;
+                        }
+                        // the worker is released as soon as the operation is started
+                        task
+                            .then(r -> {
+                                onDone(submittedAt, startedAt, true);
+                                res.accept(r);
+                                return null;
+                            })
+                            .catchException(ex -> {
+                                onDone(submittedAt, startedAt, false);
+                                rej.accept(ex);
+                            });
+                    });
+                } catch (Throwable e) {
+                    // rejected by the executor, eg. because it was shut down
+                    queued.decrementAndGet();
+                    failed.incrementAndGet();
+                    logger.log(Level.WARNING, "Crypto operation rejected", e);
+                    rej.accept(e);
+                }
+            });
+    }
+
+    private void onDone(long submittedAt, long startedAt, boolean success) {
+        long now = System.nanoTime();
+        inFlight.decrementAndGet();
+        queueNanos.addAndGet(startedAt - submittedAt);
+        runNanos.addAndGet(now - startedAt);
+        updateMax(maxLatencyNanos, now - submittedAt);
+        if (success) {
+            completed.incrementAndGet();
+        } else {
+            failed.incrementAndGet();
+        }
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {}
+    }
+
+    /**
+     * Get the number of operations waiting for a worker.
+     */
+    public long getQueueDepth() {
+        return queued.get();
+    }
+
+    /**
+     * Get the highest number of operations that were waiting for a worker at the same time.
+     */
+    public long getMaxQueueDepth() {
+        return maxQueued.get();
+    }
+
+    /**
+     * Get the number of operations that are running.
+     */
+    public long getInFlight() {
+        return inFlight.get();
+    }
+
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * Get the average time an operation waited for a worker, in nanoseconds.
+     */
+    public long getAverageQueueNanos() {
+        long n = completed.get() + failed.get();
+        return n == 0 ? 0 : queueNanos.get() / n;
+    }
+
+    /**
+     * Get the average time an operation took to run once it got a worker, in nanoseconds.
+     */
+    public long getAverageRunNanos() {
+        long n = completed.get() + failed.get();
+        return n == 0 ? 0 : runNanos.get() / n;
+    }
+
+    /**
+     * Get the longest time an operation took from submission to completion, in nanoseconds.
+     */
+    public long getMaxLatencyNanos() {
+        return maxLatencyNanos.get();
+    }
+
+    @Override
+    public String toString() {
+        return (
+            "CryptoOffload{" +
+            "queueDepth=" +
+            getQueueDepth() +
+            ", maxQueueDepth=" +
+            getMaxQueueDepth() +
+            ", inFlight=" +
+            getInFlight() +
+            ", completed=" +
+            getCompleted() +
+            ", failed=" +
+            getFailed() +
+            ", avgQueueMicros=" +
+            (getAverageQueueNanos() / 1000) +
+            ", avgRunMicros=" +
+            (getAverageRunNanos() / 1000) +
+            ", maxLatencyMicros=" +
+            (getMaxLatencyNanos() / 1000) +
+            '}'
+        );
+    }
+}
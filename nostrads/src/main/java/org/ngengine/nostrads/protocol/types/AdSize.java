@@ -50,10 +50,15 @@ public enum AdSize {
 
     private final String dimensions;
     private final AdAspectRatio aspectRatio;
+    private final int width;
+    private final int height;
 
     AdSize(String dimensions, AdAspectRatio aspectRatio) {
         this.dimensions = dimensions;
         this.aspectRatio = aspectRatio;
+        String[] parts = dimensions.split("x");
+        this.width = Integer.parseInt(parts[0]);
+        this.height = Integer.parseInt(parts[1]);
     }
 
     /**
@@ -81,16 +86,14 @@ public enum AdSize {
      * Get width from dimensions
      */
     public int getWidth() {
-        String[] parts = dimensions.split("x");
-        return Integer.parseInt(parts[0]);
+        return width;
     }
 
     /**
      * Get height from dimensions
      */
     public int getHeight() {
-        String[] parts = dimensions.split("x");
-        return Integer.parseInt(parts[1]);
+        return height;
     }
 
     /**
@@ -40,6 +40,7 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.Objects;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
@@ -211,6 +212,7 @@ public final class AdTaxonomy implements Serializable {
 
     private final Map<String, TreeNode> taxonomyFlat = new HashMap<>();
     private final TreeNode taxonomyTree = new TreeNode(null, new HashMap<>());
+    private final Map<String, Integer> termIndex = new ConcurrentHashMap<>();
 
     private boolean withCsv = false;
 
@@ -293,6 +295,7 @@ public final class AdTaxonomy implements Serializable {
             TreeNode node = new TreeNode(taxonomy, new HashMap<>());
             taxonomyFlat.put(id, node);
             parentNode.children.put(id, node);
+            termIndex.put(id, termIndex.size());
         }
     }
 
@@ -329,6 +332,23 @@ public final class AdTaxonomy implements Serializable {
         return null;
     }
 
+    /**
+     * Get a dense numeric index for the given term.
+     * Terms loaded from the CSV are indexed in load order, unknown terms get the next free index
+     * the first time they are seen. The index is stable for the lifetime of this instance, so it
+     * can be used to represent sets of terms as bitsets.
+     *
+     * @param term the term
+     * @return the index of the term
+     */
+    public int getIndex(Term term) {
+        Integer index = termIndex.get(term.id());
+        if (index != null) return index;
+        synchronized (termIndex) {
+            return termIndex.computeIfAbsent(term.id(), k -> termIndex.size());
+        }
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -0,0 +1,294 @@
+/**
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2025, Riccardo Balbo
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.ngengine.nostrads;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import org.junit.Test;
+import org.ngengine.nostrads.client.services.delegate.FeeLedger;
+import org.ngengine.platform.AsyncTask;
+import org.ngengine.platform.NGEPlatform;
+import org.ngengine.platform.VStore;
+
+public class TestFeeLedger {
+
+    private static final String WALLET = "nostr+walletconnect://wallet-a";
+    private static final String OTHER_WALLET = "nostr+walletconnect://wallet-b";
+
+    /**
+     * A settler that pays invoices to itself, its payments can be made to fail before or after they go through.
+     */
+    private static final class TestSettler implements FeeLedger.Settler {
+
+        private final VStore store;
+        final Map<String, Long> invoices = new ConcurrentHashMap<>();
+        final Set<String> paid = ConcurrentHashMap.newKeySet();
+        final AtomicInteger payments = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+        volatile boolean failBeforePayment = false;
+        volatile boolean failAfterPayment = false;
+        volatile boolean storedBeforePayment = true;
+        // if set, the invoices are bolt11 encoded with this timestamp and a 60 seconds expiry
+        volatile long invoiceTimestamp = -1;
+
+        TestSettler(VStore store) {
+            this.store = store;
+        }
+
+        @Override
+        public AsyncTask<String> requestInvoice(String nwcUri, long amountMsats) {
+            String invoice = invoiceTimestamp >= 0
+                ? encodeInvoice(invoiceTimestamp, 60, invoices.size())
+                : "lnbc" + amountMsats + "-" + invoices.size();
+            invoices.put(invoice, amountMsats);
+            return NGEPlatform.get().wrapPromise((res, rej) -> res.accept(invoice));
+        }
+
+        @Override
+        public AsyncTask<Void> payInvoice(String nwcUri, String invoice, long amountMsats) {
+            return NGEPlatform
+                .get()
+                .wrapPromise((res, rej) -> {
+                    payments.incrementAndGet();
+                    if (!isStored(invoice)) storedBeforePayment = false;
+                    if (failBeforePayment) {
+                        failures.incrementAndGet();
+                        rej.accept(new Exception("Payment failed"));
+                        return;
+                    }
+                    paid.add(invoice);
+                    if (failAfterPayment) {
+                        failures.incrementAndGet();
+                        rej.accept(new Exception("Payment timed out"));
+                        return;
+                    }
+                    res.accept(null);
+                });
+        }
+
+        @Override
+        public AsyncTask<Boolean> isPaid(String nwcUri, String invoice) {
+            return NGEPlatform.get().wrapPromise((res, rej) -> res.accept(paid.contains(invoice)));
+        }
+
+        private boolean isStored(String invoice) {
+            try {
+                for (String path : store.listAll().await()) {
+                    if (new String(store.readFully(path).await(), StandardCharsets.UTF_8).contains(invoice)) return true;
+                }
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * A bolt11 invoice with the given timestamp, expiry and a description to tell it apart, the signature and
+     * checksum are not valid.
+     */
+    private static String encodeInvoice(long timestamp, long expiry, int id) {
+        String charset = "qpzry9x8gf2tvdw0s3jn54khce6mua7l";
+        StringBuilder sb = new StringBuilder("lnbc1");
+        for (int i = 6; i >= 0; i--) sb.append(charset.charAt((int) (timestamp >> (i * 5)) & 31));
+        // x field, 2 words
+        sb.append('x').append('q').append('z');
+        sb.append(charset.charAt((int) (expiry >> 5) & 31)).append(charset.charAt((int) expiry & 31));
+        // d field, 2 words
+        sb.append('d').append('q').append('z');
+        sb.append(charset.charAt((id >> 5) & 31)).append(charset.charAt(id & 31));
+        sb.append("q".repeat(104)); // signature
+        sb.append("qqqqqq"); // checksum
+        return sb.toString();
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+
+    private static VStore newStore() {
+        return NGEPlatform.get().getDataStore("unit-tests-Ad" + Math.random(), "fees");
+    }
+
+    @Test
+    public void testSettleAtThreshold() throws Exception {
+        VStore store = newStore();
+        TestSettler settler = new TestSettler(store);
+        FeeLedger ledger = new FeeLedger(store, 1000, Duration.ofHours(1));
+        ledger.setSettler(settler);
+
+        ledger.accrue(WALLET, 400);
+        ledger.accrue(OTHER_WALLET, 300);
+        assertEquals(400, ledger.getAccrued(WALLET));
+        assertEquals(700, ledger.getTotalAccrued());
+        assertEquals(0, settler.invoices.size());
+
+        ledger.accrue(WALLET, 700);
+        waitFor(() -> ledger.getAccrued(WALLET) == 0);
+        assertEquals(1, settler.payments.get());
+        assertEquals(1100L, (long) settler.invoices.values().iterator().next());
+        assertTrue(settler.storedBeforePayment);
+        assertNull(ledger.getPendingInvoice(WALLET));
+        assertEquals(300, ledger.getAccrued(OTHER_WALLET));
+        ledger.close();
+
+        FeeLedger reloaded = new FeeLedger(store, 1000, Duration.ofHours(1));
+        assertEquals(0, reloaded.getAccrued(WALLET));
+        assertEquals(300, reloaded.getAccrued(OTHER_WALLET));
+        reloaded.close();
+    }
+
+    @Test
+    public void testRetryAfterUnknownOutcome() throws Exception {
+        VStore store = newStore();
+        TestSettler settler = new TestSettler(store);
+        FeeLedger ledger = new FeeLedger(store, 1000, Duration.ofHours(1));
+        ledger.setSettler(settler);
+
+        // the payment goes through, but the delegate doesn't know
+        settler.failAfterPayment = true;
+        ledger.accrue(WALLET, 1500);
+        waitFor(() -> settler.failures.get() == 1);
+        assertEquals(1, settler.paid.size());
+        assertEquals(1500, ledger.getAccrued(WALLET));
+        String invoice = ledger.getPendingInvoice(WALLET);
+        assertNotNull(invoice);
+        ledger.close();
+
+        // after a restart the invoice is found paid and it is not paid again
+        settler.failAfterPayment = false;
+        FeeLedger reloaded = new FeeLedger(store, 1000, Duration.ofHours(1));
+        assertEquals(1500, reloaded.getAccrued(WALLET));
+        assertEquals(invoice, reloaded.getPendingInvoice(WALLET));
+        reloaded.setSettler(settler);
+        waitFor(() -> reloaded.getAccrued(WALLET) == 0);
+        assertNull(reloaded.getPendingInvoice(WALLET));
+        assertEquals(1, settler.payments.get());
+        assertEquals(1, settler.invoices.size());
+
+        // the settlement is stored as soon as it completes
+        waitFor(() -> {
+            FeeLedger l = new FeeLedger(store, 1000, Duration.ofHours(1));
+            boolean settled = l.getAccrued(WALLET) == 0 && l.getPendingInvoice(WALLET) == null;
+            l.close();
+            return settled;
+        });
+
+        // a payment that didn't go through is retried with the same invoice
+        settler.failBeforePayment = true;
+        reloaded.accrue(OTHER_WALLET, 2000);
+        waitFor(() -> settler.failures.get() == 2);
+        String otherInvoice = reloaded.getPendingInvoice(OTHER_WALLET);
+        assertNotNull(otherInvoice);
+        assertEquals(2000, reloaded.getAccrued(OTHER_WALLET));
+
+        settler.failBeforePayment = false;
+        waitFor(() -> {
+            reloaded.settleAll();
+            return reloaded.getAccrued(OTHER_WALLET) == 0;
+        });
+        assertEquals(3, settler.payments.get());
+        assertEquals(2, settler.invoices.size());
+        assertTrue(settler.paid.contains(otherInvoice));
+        assertTrue(settler.storedBeforePayment);
+        reloaded.close();
+    }
+
+    @Test
+    public void testExpiredInvoiceIsReplaced() throws Exception {
+        VStore store = newStore();
+        TestSettler settler = new TestSettler(store);
+        FeeLedger ledger = new FeeLedger(store, 1000, Duration.ofHours(1));
+        ledger.setSettler(settler);
+
+        // the invoice expired a minute after it was issued, an hour ago
+        settler.invoiceTimestamp = System.currentTimeMillis() / 1000 - 3600;
+        settler.failBeforePayment = true;
+        ledger.accrue(WALLET, 1500);
+        waitFor(() -> settler.failures.get() == 1);
+        String expired = ledger.getPendingInvoice(WALLET);
+        assertNotNull(expired);
+
+        // the retry gets a new invoice instead of paying the expired one again
+        settler.invoiceTimestamp = System.currentTimeMillis() / 1000;
+        settler.failBeforePayment = false;
+        ledger.settleAll();
+        waitFor(() -> ledger.getAccrued(WALLET) == 0);
+        assertEquals(2, settler.invoices.size());
+        assertEquals(2, settler.payments.get());
+        assertFalse(settler.paid.contains(expired));
+        assertNull(ledger.getPendingInvoice(WALLET));
+        ledger.close();
+    }
+
+    @Test
+    public void testBackoffAfterFailure() throws Exception {
+        VStore store = newStore();
+        TestSettler settler = new TestSettler(store);
+        FeeLedger ledger = new FeeLedger(store, 1000, Duration.ofHours(1));
+        ledger.setSettler(settler);
+
+        settler.failBeforePayment = true;
+        ledger.accrue(WALLET, 1500);
+        waitFor(() -> settler.failures.get() == 1);
+
+        // new fees don't retry the failed settlement until the backoff is over
+        for (int i = 0; i < 10; i++) {
+            ledger.accrue(WALLET, 100);
+        }
+        Thread.sleep(200);
+        assertEquals(1, settler.payments.get());
+        assertEquals(2500, ledger.getAccrued(WALLET));
+
+        // the settled amount is the one of the pending invoice, the rest stays accrued
+        settler.failBeforePayment = false;
+        ledger.settleAll();
+        waitFor(() -> ledger.getPendingInvoice(WALLET) == null && ledger.getAccrued(WALLET) == 0);
+        assertEquals(2, settler.invoices.size());
+        ledger.close();
+    }
+}
@@ -0,0 +1,598 @@
+/**
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2025, Riccardo Balbo
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.ngengine.nostrads;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.junit.After;
+import org.junit.Test;
+import org.ngengine.nostr4j.NostrFilter;
+import org.ngengine.nostr4j.NostrPool;
+import org.ngengine.nostr4j.NostrRelay;
+import org.ngengine.nostr4j.event.SignedNostrEvent;
+import org.ngengine.nostr4j.keypair.NostrKeyPair;
+import org.ngengine.nostr4j.keypair.NostrPrivateKey;
+import org.ngengine.nostr4j.keypair.NostrPublicKey;
+import org.ngengine.nostr4j.nip01.Nip01;
+import org.ngengine.nostr4j.nip01.Nip01UserMetadata;
+import org.ngengine.nostr4j.signer.NostrKeyPairSigner;
+import org.ngengine.nostrads.client.advertiser.AdvertiserClient;
+import org.ngengine.nostrads.client.services.PenaltyStorage;
+import org.ngengine.nostrads.client.services.delegate.DelegateService;
+import org.ngengine.nostrads.client.services.delegate.Tracker;
+import org.ngengine.nostrads.client.services.display.AdsDisplayClient;
+import org.ngengine.nostrads.client.services.display.Adspace;
+import org.ngengine.nostrads.client.services.display.BidCache;
+import org.ngengine.nostrads.client.services.display.RankedAd;
+import org.ngengine.nostrads.client.services.display.RankedAdsQueue;
+import org.ngengine.nostrads.protocol.AdBidEvent;
+import org.ngengine.nostrads.protocol.AdBidFilter;
+import org.ngengine.nostrads.protocol.CompiledAdBid;
+import org.ngengine.nostrads.protocol.types.AdActionType;
+import org.ngengine.nostrads.protocol.types.AdAspectRatio;
+import org.ngengine.nostrads.protocol.types.AdMimeType;
+import org.ngengine.nostrads.protocol.types.AdPriceSlot;
+import org.ngengine.nostrads.protocol.types.AdSize;
+import org.ngengine.nostrads.protocol.types.AdTaxonomy;
+import org.ngengine.platform.NGEPlatform;
+import org.ngengine.platform.NGEUtils;
+
+/**
+ * Same flows as {@link TestAds}, but against an in-process {@link TestRelay}, so they can run
+ * without network access.
+ */
+public class TestOfflineAds {
+
+    private static final Logger logger = TestLogger.getRoot(Level.WARNING);
+
+    private final TestRelay relay;
+    private final NostrPool pool;
+    private final AdTaxonomy taxonomy = new AdTaxonomy();
+
+    public TestOfflineAds() throws Exception {
+        relay = new TestRelay();
+        pool = new NostrPool();
+        pool.connectRelay(new NostrRelay(relay.getUrl())).await();
+    }
+
+    @After
+    public void tearDown() {
+        pool.close();
+        relay.close();
+    }
+
+    private AdBidEvent newBid(
+        AdvertiserClient client,
+        String id,
+        String description,
+        long bidMsats,
+        AdMimeType mimeType,
+        List<String> languages,
+        List<NostrPublicKey> offerers,
+        NostrPublicKey delegate,
+        Map<String, Object> delegatePayload
+    ) throws Exception {
+        return client
+            .newBid(
+                id,
+                description,
+                null,
+                List.of(taxonomy.getByPath("Technology & Computing/Virtual Reality")),
+                languages,
+                offerers,
+                null,
+                mimeType,
+                "This is a test bid",
+                AdSize.HORIZONTAL_480x60,
+                "https://ngengine.org",
+                "Click here!",
+                AdActionType.VIEW,
+                bidMsats,
+                Duration.ofSeconds(60 * 5),
+                delegate != null ? delegate : NostrPrivateKey.generate().getPublicKey(),
+                delegatePayload,
+                Instant.now().plusSeconds(60 * 5),
+                21,
+                Duration.ofSeconds(1)
+            )
+            .await();
+    }
+
+    private List<SignedNostrEvent> fetch(NostrFilter filter) throws Exception {
+        return pool.fetch(filter, -1, true, Duration.ofSeconds(5)).await();
+    }
+
+    @Test
+    public void testBidFilters() throws Exception {
+        NostrKeyPair advertiserKeyPair = new NostrKeyPair(NostrPrivateKey.generate());
+        AdvertiserClient client = new AdvertiserClient(pool, new NostrKeyPairSigner(advertiserKeyPair), taxonomy);
+        NostrPublicKey offerer = NostrPrivateKey.generate().getPublicKey();
+        NostrPublicKey advertiser = advertiserKeyPair.getPublicKey();
+
+        client.publishBid(newBid(client, null, "cheap", 1000, AdMimeType.TEXT_PLAIN, List.of("en"), null, null, null)).await();
+        client
+            .publishBid(newBid(client, null, "mid", 2000, AdMimeType.IMAGE_PNG, List.of("it"), List.of(offerer), null, null))
+            .await();
+        client
+            .publishBid(newBid(client, null, "rich", 100_000, AdMimeType.TEXT_PLAIN, List.of("en"), null, null, null))
+            .await();
+        assertEquals(3, fetch(new AdBidFilter().withAuthor(advertiser)).size());
+
+        // #f
+        assertEquals(2, fetch(new AdBidFilter().withPriceSlot(AdPriceSlot.BTC2_000).withAuthor(advertiser)).size());
+        assertEquals(1, fetch(new AdBidFilter().withPriceSlot(AdPriceSlot.BTC10_000).withAuthor(advertiser)).size());
+        // #m
+        assertEquals(1, fetch(new AdBidFilter().withMimeTypes(AdMimeType.IMAGE_PNG).withAuthor(advertiser)).size());
+        // #l
+        assertEquals(2, fetch(new AdBidFilter().withLanguages("en").withAuthor(advertiser)).size());
+        // #p
+        assertEquals(1, fetch(new AdBidFilter().onlyForOfferers(offerer).withAuthor(advertiser)).size());
+        // limit and ordering
+        List<SignedNostrEvent> limited = fetch(new AdBidFilter().withAuthor(advertiser).limit(1));
+        assertEquals(1, limited.size());
+        // since/until
+        assertEquals(0, fetch(new AdBidFilter().withAuthor(advertiser).until(Instant.now().minusSeconds(60))).size());
+        assertEquals(0, fetch(new AdBidFilter().withAuthor(advertiser).since(Instant.now().plusSeconds(60))).size());
+    }
+
+    @Test
+    public void testCompiledBid() throws Exception {
+        NostrKeyPairSigner signer = new NostrKeyPairSigner(new NostrKeyPair(NostrPrivateKey.generate()));
+        AdvertiserClient client = new AdvertiserClient(pool, signer, taxonomy);
+        NostrPublicKey offerer = NostrPrivateKey.generate().getPublicKey();
+        NostrPublicKey other = NostrPrivateKey.generate().getPublicKey();
+        AdBidEvent bid = newBid(
+            client,
+            null,
+            "compiled",
+            2500,
+            AdMimeType.IMAGE_PNG,
+            List.of("en"),
+            List.of(offerer),
+            null,
+            null
+        );
+
+        // parse it again from the raw event, as a client would
+        AdBidEvent parsed = new AdBidEvent(taxonomy, bid);
+        CompiledAdBid compiled = parsed.getCompiled();
+        assertNotNull(compiled);
+        assertTrue(parsed.isValid());
+        assertEquals(2500, compiled.getBidMsats());
+        assertEquals(AdMimeType.IMAGE_PNG, compiled.getMIMEType());
+        assertEquals(AdSize.HORIZONTAL_480x60, compiled.getDimensions());
+        assertEquals(AdPriceSlot.BTC2_000, compiled.getPriceSlot());
+        assertEquals(Duration.ofSeconds(60 * 5), compiled.getHoldTime());
+        assertEquals(21, compiled.getMaxPayouts());
+        assertTrue(compiled.isOffererAllowed(offerer));
+        assertFalse(compiled.isOffererAllowed(other));
+        assertTrue(compiled.isAppAllowed(other));
+        assertTrue(compiled.hasAnyCategory(List.of(taxonomy.getByPath("Technology & Computing/Virtual Reality"))));
+        assertFalse(compiled.hasAnyCategory(List.of(taxonomy.getByPath("Food & Drink/Barbecues and Grilling"))));
+
+        // getters are served from the compiled view
+        assertEquals(parsed.getTargetedOfferers(), compiled.getTargetedOfferers());
+        assertEquals(parsed.getCategories(), compiled.getCategories());
+
+        // malformed bids have no compiled view and are never valid
+        Map<String, Object> raw = new HashMap<>(bid.toMap());
+        raw.put("content", "{}");
+        AdBidEvent malformed = new AdBidEvent(taxonomy, new SignedNostrEvent(raw));
+        assertNull(malformed.getCompiled());
+        assertFalse(malformed.isValid());
+    }
+
+    @Test
+    public void testAddressableReplacementAndDeletion() throws Exception {
+        NostrKeyPair advertiserKeyPair = new NostrKeyPair(NostrPrivateKey.generate());
+        AdvertiserClient client = new AdvertiserClient(pool, new NostrKeyPairSigner(advertiserKeyPair), taxonomy);
+        NostrPublicKey advertiser = advertiserKeyPair.getPublicKey();
+
+        AdBidEvent first = newBid(client, "replaced-ad", "first", 1000, AdMimeType.TEXT_PLAIN, null, null, null, null);
+        client.publishBid(first).await();
+        // created_at has a resolution of one second
+        Thread.sleep(1100);
+        AdBidEvent second = newBid(client, "replaced-ad", "second", 1000, AdMimeType.TEXT_PLAIN, null, null, null, null);
+        client.publishBid(second).await();
+
+        List<SignedNostrEvent> bids = fetch(new AdBidFilter().withAuthor(advertiser));
+        assertEquals(1, bids.size());
+        assertEquals(second.getId(), bids.get(0).getId());
+
+        client.cancelBid(second, "cancelled").await();
+        assertEquals(0, fetch(new AdBidFilter().withAuthor(advertiser)).size());
+        assertEquals(
+            1,
+            fetch(new NostrFilter().withKind(5).withAuthor(advertiser).withTag("k", String.valueOf(AdBidEvent.KIND))).size()
+        );
+    }
+
+    private RankedAd pollQueue(RankedAdsQueue queue, boolean expectAd) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        RankedAd ad = queue.get(480, 60, null);
+        while ((ad != null) != expectAd && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+            ad = queue.get(480, 60, null);
+        }
+        return ad;
+    }
+
+    @Test
+    public void testStreamingQueue() throws Exception {
+        NostrKeyPair advertiserKeyPair = new NostrKeyPair(NostrPrivateKey.generate());
+        AdvertiserClient client = new AdvertiserClient(pool, new NostrKeyPairSigner(advertiserKeyPair), taxonomy);
+        Adspace adspace = new Adspace(
+            NostrPrivateKey.generate().getPublicKey(),
+            NostrPrivateKey.generate().getPublicKey(),
+            AdAspectRatio.fromDimensions(480, 60),
+            AdPriceSlot.BTC2_000,
+            List.of(AdMimeType.TEXT_PLAIN)
+        );
+        RankedAdsQueue queue = new RankedAdsQueue(
+            taxonomy,
+            pool,
+            new PenaltyStorage(NGEUtils.getPlatform().getDataStore("unit-tests-Ad" + Math.random(), "penalty")),
+            new BidCache(),
+            adspace,
+            true
+        );
+        assertTrue(queue.isStreaming());
+
+        // backfill an empty relay
+        assertNull(queue.get(480, 60, null));
+
+        // bids published after the backfill are streamed in
+        AdBidEvent bid = newBid(client, "streamed-ad", "streamed", 3000, AdMimeType.TEXT_PLAIN, null, null, null, null);
+        client.publishBid(bid).await();
+        RankedAd ad = pollQueue(queue, true);
+        assertNotNull(ad);
+        assertEquals(bid.getId(), ad.get().getId());
+
+        // and evicted when deleted
+        client.cancelBid(bid, "cancelled").await();
+        assertNull(pollQueue(queue, false));
+
+        queue.close();
+    }
+
+    @Test
+    public void testStreamingQueueKeysByCoordinates() throws Exception {
+        NostrKeyPair advertiserKeyPair = new NostrKeyPair(NostrPrivateKey.generate());
+        AdvertiserClient client = new AdvertiserClient(pool, new NostrKeyPairSigner(advertiserKeyPair), taxonomy);
+        AdvertiserClient other = new AdvertiserClient(
+            pool,
+            new NostrKeyPairSigner(new NostrKeyPair(NostrPrivateKey.generate())),
+            taxonomy
+        );
+        Adspace adspace = new Adspace(
+            NostrPrivateKey.generate().getPublicKey(),
+            NostrPrivateKey.generate().getPublicKey(),
+            AdAspectRatio.fromDimensions(480, 60),
+            AdPriceSlot.BTC2_000,
+            List.of(AdMimeType.TEXT_PLAIN)
+        );
+        RankedAdsQueue queue = new RankedAdsQueue(
+            taxonomy,
+            pool,
+            new PenaltyStorage(NGEUtils.getPlatform().getDataStore("unit-tests-Ad" + Math.random(), "penalty")),
+            new BidCache(),
+            adspace,
+            true
+        );
+        assertNull(queue.get(480, 60, null));
+
+        AdBidEvent bid = newBid(client, "shared-ad", "original", 3000, AdMimeType.TEXT_PLAIN, null, null, null, null);
+        client.publishBid(bid).await();
+        assertEquals(bid.getId(), pollQueue(queue, true).get().getId());
+
+        // a newer bid with the same d tag from another author doesn't replace it
+        Thread.sleep(1100);
+        AdBidEvent copy = newBid(other, "shared-ad", "copy", 2000, AdMimeType.TEXT_PLAIN, null, null, null, null);
+        other.publishBid(copy).await();
+        Thread.sleep(500);
+        assertEquals(bid.getId(), queue.get(480, 60, null).get().getId());
+
+        // both are in the queue
+        client.cancelBid(bid, "cancelled").await();
+        long deadline = System.currentTimeMillis() + 5000;
+        RankedAd ad = queue.get(480, 60, null);
+        while ((ad == null || !ad.get().getId().equals(copy.getId())) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+            ad = queue.get(480, 60, null);
+        }
+        assertNotNull(ad);
+        assertEquals(copy.getId(), ad.get().getId());
+
+        queue.close();
+    }
+
+    @Test
+    public void testSharedIngestionRouting() throws Exception {
+        NostrKeyPair advertiserKeyPair = new NostrKeyPair(NostrPrivateKey.generate());
+        AdvertiserClient client = new AdvertiserClient(pool, new NostrKeyPairSigner(advertiserKeyPair), taxonomy);
+        NostrPublicKey app = NostrPrivateKey.generate().getPublicKey();
+        NostrPublicKey offerer = NostrPrivateKey.generate().getPublicKey();
+        NostrPublicKey otherOfferer = NostrPrivateKey.generate().getPublicKey();
+
+        AdBidEvent text = newBid(client, null, "text", 3000, AdMimeType.TEXT_PLAIN, null, null, null, null);
+        AdBidEvent png = newBid(client, null, "png", 3000, AdMimeType.IMAGE_PNG, null, null, null, null);
+        AdBidEvent targeted = newBid(
+            client,
+            null,
+            "targeted",
+            3000,
+            AdMimeType.TEXT_PLAIN,
+            null,
+            List.of(otherOfferer),
+            null,
+            null
+        );
+        client.publishBid(text).await();
+        client.publishBid(png).await();
+        client.publishBid(targeted).await();
+
+        AdsDisplayClient display = new AdsDisplayClient(
+            pool,
+            new NostrKeyPairSigner(new NostrKeyPair(NostrPrivateKey.generate())),
+            taxonomy,
+            new PenaltyStorage(NGEUtils.getPlatform().getDataStore("unit-tests-Ad" + Math.random(), "penalty")),
+            (neg, offer, reason) -> {}
+        );
+        RankedAdsQueue textQueue = display.registerAdspace(
+            new Adspace(
+                app,
+                offerer,
+                AdAspectRatio.fromDimensions(480, 60),
+                AdPriceSlot.BTC2_000,
+                List.of(AdMimeType.TEXT_PLAIN)
+            )
+        );
+        RankedAdsQueue pngQueue = display.registerAdspace(
+            new Adspace(
+                app,
+                offerer,
+                AdAspectRatio.fromDimensions(480, 60),
+                AdPriceSlot.BTC2_000,
+                List.of(AdMimeType.IMAGE_PNG)
+            )
+        );
+
+        // each bid is routed only to the queues whose adspace it matches
+        RankedAd ad = textQueue.get(480, 60, null);
+        assertNotNull(ad);
+        assertEquals(text.getId(), ad.get().getId());
+        assertNull(textQueue.get(480, 60, bid -> !bid.getId().equals(text.getId())));
+        ad = pngQueue.get(480, 60, null);
+        assertNotNull(ad);
+        assertEquals(png.getId(), ad.get().getId());
+
+        // the second load found the bids already parsed
+        BidCache cache = display.getBidCache();
+        assertEquals(3, cache.size());
+        assertTrue(cache.getHits() > 0);
+
+        display.close();
+    }
+
+    @Test
+    public void testLateAdspaceRegistration() throws Exception {
+        NostrKeyPair advertiserKeyPair = new NostrKeyPair(NostrPrivateKey.generate());
+        AdvertiserClient client = new AdvertiserClient(pool, new NostrKeyPairSigner(advertiserKeyPair), taxonomy);
+        NostrPublicKey app = NostrPrivateKey.generate().getPublicKey();
+
+        AdBidEvent bid = newBid(client, null, "late", 3000, AdMimeType.TEXT_PLAIN, null, null, null, null);
+        client.publishBid(bid).await();
+
+        AdsDisplayClient display = new AdsDisplayClient(
+            pool,
+            new NostrKeyPairSigner(new NostrKeyPair(NostrPrivateKey.generate())),
+            taxonomy,
+            new PenaltyStorage(NGEUtils.getPlatform().getDataStore("unit-tests-Ad" + Math.random(), "penalty")),
+            (neg, offer, reason) -> {}
+        );
+        display.setStreaming(true);
+        RankedAdsQueue first = display.registerAdspace(
+            new Adspace(
+                app,
+                NostrPrivateKey.generate().getPublicKey(),
+                AdAspectRatio.fromDimensions(480, 60),
+                AdPriceSlot.BTC2_000,
+                List.of(AdMimeType.TEXT_PLAIN)
+            )
+        );
+        RankedAd ad = first.get(480, 60, null);
+        assertNotNull(ad);
+        assertEquals(bid.getId(), ad.get().getId());
+
+        // registered after the shared window already covers the bid
+        RankedAdsQueue second = display.registerAdspace(
+            new Adspace(
+                app,
+                NostrPrivateKey.generate().getPublicKey(),
+                AdAspectRatio.fromDimensions(480, 60),
+                AdPriceSlot.BTC2_000,
+                List.of(AdMimeType.TEXT_PLAIN)
+            )
+        );
+        ad = second.get(480, 60, null);
+        assertNotNull(ad);
+        assertEquals(bid.getId(), ad.get().getId());
+
+        display.close();
+    }
+
+    @Test
+    public void testStreamingDisplayClientDeletion() throws Exception {
+        NostrKeyPair advertiserKeyPair = new NostrKeyPair(NostrPrivateKey.generate());
+        AdvertiserClient client = new AdvertiserClient(pool, new NostrKeyPairSigner(advertiserKeyPair), taxonomy);
+
+        AdsDisplayClient display = new AdsDisplayClient(
+            pool,
+            new NostrKeyPairSigner(new NostrKeyPair(NostrPrivateKey.generate())),
+            taxonomy,
+            new PenaltyStorage(NGEUtils.getPlatform().getDataStore("unit-tests-Ad" + Math.random(), "penalty")),
+            (neg, offer, reason) -> {}
+        );
+        display.setStreaming(true);
+        RankedAdsQueue queue = display.registerAdspace(
+            new Adspace(
+                NostrPrivateKey.generate().getPublicKey(),
+                NostrPrivateKey.generate().getPublicKey(),
+                AdAspectRatio.fromDimensions(480, 60),
+                AdPriceSlot.BTC2_000,
+                List.of(AdMimeType.TEXT_PLAIN)
+            )
+        );
+        assertNull(queue.get(480, 60, null));
+
+        AdBidEvent bid = newBid(client, "streamed-display-ad", "streamed", 3000, AdMimeType.TEXT_PLAIN, null, null, null, null);
+        client.publishBid(bid).await();
+        RankedAd ad = pollQueue(queue, true);
+        assertNotNull(ad);
+        assertEquals(bid.getId(), ad.get().getId());
+
+        // the deletion is received both by the cancellation subscription of the client and by the live
+        // subscription of the queues, both must act on it
+        client.cancelBid(bid, "cancelled").await();
+        assertNull(pollQueue(queue, false));
+
+        display.close();
+    }
+
+    @Test
+    public void testOfferAcceptCycle() throws Exception {
+        int rounds = 20;
+
+        NostrKeyPair advertiserKeyPair = new NostrKeyPair(NostrPrivateKey.generate());
+        NostrKeyPair delegateKeyPair = new NostrKeyPair(NostrPrivateKey.generate());
+        NostrKeyPair offererKeyPair = new NostrKeyPair(NostrPrivateKey.generate());
+        NostrKeyPair appKeyPair = new NostrKeyPair(NostrPrivateKey.generate());
+
+        // the delegate resolves the app metadata before accepting an offer
+        Nip01UserMetadata appMetadata = new Nip01UserMetadata();
+        appMetadata.setName("offline-test-app");
+        appMetadata.metadata.put("lud16", "offline@127.0.0.1");
+        Nip01.update(pool, new NostrKeyPairSigner(appKeyPair), appMetadata).await();
+
+        // the wallet is never reached in this cycle, keep it on the local relay anyway
+        String nwc =
+            "nostr+walletconnect://" +
+            NostrPrivateKey.generate().getPublicKey().asHex() +
+            "?relay=" +
+            relay.getUrl() +
+            "&secret=" +
+            NostrPrivateKey.generate().asHex();
+
+        AdvertiserClient advClient = new AdvertiserClient(pool, new NostrKeyPairSigner(advertiserKeyPair), taxonomy);
+        List<String> published = new ArrayList<>();
+        for (int i = 0; i < rounds; i++) {
+            AdBidEvent bid = newBid(
+                advClient,
+                null,
+                "Offline bid " + i,
+                3000 + i,
+                AdMimeType.TEXT_PLAIN,
+                null,
+                null,
+                delegateKeyPair.getPublicKey(),
+                Map.of("nwc", nwc, "dailyBudget", 1_000_000)
+            );
+            advClient.publishBid(bid).await();
+            published.add(bid.getId());
+        }
+
+        DelegateService delegate = new DelegateService(
+            pool,
+            new NostrKeyPairSigner(delegateKeyPair),
+            taxonomy,
+            null,
+            null,
+            new PenaltyStorage(NGEUtils.getPlatform().getDataStore("unit-tests-Ad" + Math.random(), "penalty")),
+            new Tracker(NGEPlatform.get().getDataStore("unit-tests-Ad" + Math.random(), "tracker"))
+        );
+        delegate.listen(Instant.now().minusSeconds(60));
+
+        AdsDisplayClient display = new AdsDisplayClient(
+            pool,
+            new NostrKeyPairSigner(offererKeyPair),
+            taxonomy,
+            new PenaltyStorage(NGEUtils.getPlatform().getDataStore("unit-tests-Ad" + Math.random(), "penalty")),
+            (neg, offer, reason) -> {}
+        );
+        Adspace adspace = new Adspace(
+            appKeyPair.getPublicKey(),
+            offererKeyPair.getPublicKey(),
+            AdAspectRatio.fromDimensions(480, 60),
+            AdPriceSlot.BTC2_000,
+            List.of(AdMimeType.TEXT_PLAIN)
+        );
+        // load the whole inventory at once
+        adspace.setNumBidsToLoad(rounds);
+        display.registerAdspace(adspace);
+
+        // every cycle completes and, skipping the bids already shown, serves the best paying one left
+        List<String> shown = new ArrayList<>();
+        for (int i = 0; i < rounds; i++) {
+            AdBidEvent ad = display
+                .loadNextAd(
+                    adspace,
+                    480,
+                    60,
+                    bid -> NGEPlatform.get().wrapPromise((res, rej) -> res.accept(!shown.contains(bid.getId()))),
+                    (bid, offer) -> NGEPlatform.get().wrapPromise((res, rej) -> res.accept(true)),
+                    (neg, offer, success, message) -> {}
+                )
+                .await();
+            assertNotNull(ad);
+            shown.add(ad.getId());
+        }
+        List<String> expected = new ArrayList<>(published);
+        Collections.reverse(expected);
+        assertEquals(expected, shown);
+
+        display.close();
+        delegate.close();
+    }
+}
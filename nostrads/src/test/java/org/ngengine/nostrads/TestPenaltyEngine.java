@@ -0,0 +1,190 @@
+/**
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2025, Riccardo Balbo
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.ngengine.nostrads;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import org.ngengine.nostr4j.keypair.NostrPrivateKey;
+import org.ngengine.nostr4j.keypair.NostrPublicKey;
+import org.ngengine.nostrads.client.services.CompactPenaltyEngine;
+import org.ngengine.nostrads.client.services.FilePenaltyEngine;
+import org.ngengine.platform.NGEPlatform;
+import org.ngengine.platform.VStore;
+
+public class TestPenaltyEngine {
+
+    private static VStore newStore() {
+        return NGEPlatform.get().getDataStore("unit-tests-Ad" + Math.random(), "penalty");
+    }
+
+    private static long countFiles(VStore store, String part) throws Exception {
+        return store.listAll().await().stream().filter(p -> p.contains(part)).count();
+    }
+
+    private static List<NostrPublicKey> newParties(int n) {
+        List<NostrPublicKey> parties = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            parties.add(NostrPrivateKey.generate().getPublicKey());
+        }
+        return parties;
+    }
+
+    private static CompactPenaltyEngine newEngine(VStore store) {
+        CompactPenaltyEngine engine = new CompactPenaltyEngine(store);
+        engine.setMaxSegments(1000);
+        return engine;
+    }
+
+    @Test
+    public void testReplaySnapshotAndSegments() throws Exception {
+        VStore store = newStore();
+        List<NostrPublicKey> parties = newParties(3);
+        CompactPenaltyEngine engine = newEngine(store);
+        engine.store(Map.of(parties.get(0), 10, parties.get(1), 20)).await();
+        engine.compact().await();
+        assertEquals(1, countFiles(store, "table-"));
+        assertEquals(0, countFiles(store, "log-"));
+
+        // appended after the snapshot, later records override the snapshot
+        engine.store(Map.of(parties.get(1), 21)).await();
+        engine.store(Map.of(parties.get(2), 30)).await();
+        assertEquals(2, countFiles(store, "log-"));
+        engine.close();
+
+        CompactPenaltyEngine reopened = newEngine(store);
+        assertEquals(10, (int) reopened.load(parties.get(0)).await());
+        assertEquals(21, (int) reopened.load(parties.get(1)).await());
+        assertEquals(30, (int) reopened.load(parties.get(2)).await());
+        assertEquals(0, (int) reopened.load(NostrPrivateKey.generate().getPublicKey()).await());
+        reopened.close();
+    }
+
+    @Test
+    public void testSkipInvalidSnapshot() throws Exception {
+        VStore store = newStore();
+        List<NostrPublicKey> parties = newParties(2);
+        CompactPenaltyEngine engine = newEngine(store);
+        engine.store(Map.of(parties.get(0), 10, parties.get(1), 20)).await();
+        engine.compact().await();
+        engine.close();
+
+        // newer snapshots, one truncated while it was written and one that is not a snapshot at all
+        String snapshot = store.listAll().await().stream().filter(p -> p.contains("table-")).findFirst().get();
+        byte[] valid = store.readFully(snapshot).await();
+        byte[] truncated = new byte[valid.length - 10];
+        System.arraycopy(valid, 0, truncated, 0, truncated.length);
+        store.writeFully("nostrads/penalties/table-100.dat", truncated).await();
+        store.writeFully("nostrads/penalties/table-101.dat", new byte[] { 1, 2, 3 }).await();
+
+        CompactPenaltyEngine reopened = newEngine(store);
+        assertEquals(10, (int) reopened.load(parties.get(0)).await());
+        assertEquals(20, (int) reopened.load(parties.get(1)).await());
+        assertEquals(1, countFiles(store, "table-"));
+        reopened.close();
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        VStore store = newStore();
+        List<NostrPublicKey> parties = newParties(4);
+        CompactPenaltyEngine engine = new CompactPenaltyEngine(store);
+        engine.setMaxSegments(2);
+        engine.store(Map.of(parties.get(0), 1)).await();
+        engine.store(Map.of(parties.get(1), 2)).await();
+        assertEquals(2, countFiles(store, "log-"));
+        assertEquals(0, countFiles(store, "table-"));
+
+        // one segment too many, everything goes in a snapshot
+        engine.store(Map.of(parties.get(2), 3, parties.get(0), 0)).await();
+        assertEquals(0, countFiles(store, "log-"));
+        assertEquals(1, countFiles(store, "table-"));
+
+        engine.store(Map.of(parties.get(3), 4)).await();
+        engine.close();
+
+        CompactPenaltyEngine reopened = newEngine(store);
+        assertEquals(0, (int) reopened.load(parties.get(0)).await());
+        assertEquals(2, (int) reopened.load(parties.get(1)).await());
+        assertEquals(3, (int) reopened.load(parties.get(2)).await());
+        assertEquals(4, (int) reopened.load(parties.get(3)).await());
+        reopened.close();
+    }
+
+    @Test
+    public void testManyParties() throws Exception {
+        VStore store = newStore();
+        List<NostrPublicKey> parties = newParties(3000);
+        Map<NostrPublicKey, Integer> batch = new HashMap<>();
+        for (int i = 0; i < parties.size(); i++) {
+            batch.put(parties.get(i), i + 1);
+        }
+        CompactPenaltyEngine engine = newEngine(store);
+        engine.store(batch).await();
+        engine.compact().await();
+        engine.close();
+
+        CompactPenaltyEngine reopened = newEngine(store);
+        for (int i = 0; i < parties.size(); i++) {
+            assertEquals(i + 1, (int) reopened.load(parties.get(i)).await());
+        }
+        reopened.close();
+    }
+
+    @Test
+    public void testLegacyMigration() throws Exception {
+        VStore store = newStore();
+        List<NostrPublicKey> parties = newParties(3);
+        FilePenaltyEngine legacy = new FilePenaltyEngine(store);
+        legacy.store(Map.of(parties.get(0), 10, parties.get(1), 20, parties.get(2), 30)).await();
+        assertEquals(3, countFiles(store, "nostrads/powlist/"));
+
+        CompactPenaltyEngine engine = newEngine(store);
+        assertEquals(10, (int) engine.load(parties.get(0)).await());
+        assertEquals(20, (int) engine.load(parties.get(1)).await());
+        assertEquals(30, (int) engine.load(parties.get(2)).await());
+        // the migrated penalties are in a snapshot before the legacy files are deleted
+        assertEquals(0, countFiles(store, "nostrads/powlist/"));
+        assertEquals(1, countFiles(store, "table-"));
+        engine.close();
+
+        CompactPenaltyEngine reopened = newEngine(store);
+        assertEquals(10, (int) reopened.load(parties.get(0)).await());
+        assertEquals(20, (int) reopened.load(parties.get(1)).await());
+        assertEquals(30, (int) reopened.load(parties.get(2)).await());
+        reopened.close();
+    }
+}
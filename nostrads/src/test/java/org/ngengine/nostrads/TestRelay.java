@@ -0,0 +1,551 @@
+/**
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2025, Riccardo Balbo
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.ngengine.nostrads;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.ngengine.platform.NGEPlatform;
+
+/**
+ * A minimal in-process nostr relay listening on localhost.
+ *
+ * It speaks plain websocket (RFC 6455) so {@link org.ngengine.nostr4j.NostrRelay} can connect to it
+ * with the regular transport, and implements the subset of NIP-01/09/40 the ads protocol relies on:
+ * REQ/CLOSE/EVENT with ids, authors, kinds, single-letter tag, since, until and limit filters,
+ * EOSE, replaceable and addressable replacement, kind 5 deletions and expiration.
+ *
+ * Signatures are not verified: this relay is meant for offline tests and benchmarks only.
+ */
+public class TestRelay implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(TestRelay.class.getName());
+    private static final String WS_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+    private final ServerSocket server;
+    private final ExecutorService threads;
+    private final List<Connection> connections = new CopyOnWriteArrayList<>();
+    private final Map<String, StoredEvent> events = new LinkedHashMap<>();
+    private volatile boolean closed = false;
+
+    private static class StoredEvent {
+
+        final Map<String, Object> event;
+        final String json;
+        final String id;
+        final String pubkey;
+        final int kind;
+        final long createdAt;
+        final long expiration;
+
+        StoredEvent(Map<String, Object> event, String json) {
+            this.event = event;
+            this.json = json;
+            this.id = (String) event.get("id");
+            this.pubkey = (String) event.get("pubkey");
+            this.kind = ((Number) event.get("kind")).intValue();
+            this.createdAt = ((Number) event.get("created_at")).longValue();
+            String exp = firstTagValue("expiration");
+            this.expiration = exp != null ? Long.parseLong(exp) : 0;
+        }
+
+        @SuppressWarnings("unchecked")
+        List<List<String>> tags() {
+            Object tags = event.get("tags");
+            return tags == null ? List.of() : (List<List<String>>) tags;
+        }
+
+        String firstTagValue(String key) {
+            for (List<String> tag : tags()) {
+                if (tag.size() > 1 && key.equals(tag.get(0))) return tag.get(1);
+            }
+            return null;
+        }
+
+        boolean isAddressable() {
+            return kind >= 30000 && kind < 40000;
+        }
+
+        boolean isReplaceable() {
+            return kind == 0 || kind == 3 || (kind >= 10000 && kind < 20000);
+        }
+
+        boolean isEphemeral() {
+            return kind >= 20000 && kind < 30000;
+        }
+
+        String address() {
+            String d = firstTagValue("d");
+            return kind + ":" + pubkey + ":" + (d == null ? "" : d);
+        }
+
+        boolean isExpired(long now) {
+            return expiration > 0 && expiration <= now;
+        }
+    }
+
+    private class Connection implements Runnable {
+
+        private final Socket socket;
+        private final Map<String, List<Map<String, Object>>> subscriptions = new ConcurrentHashMap<>();
+        private OutputStream out;
+
+        Connection(Socket socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        public void run() {
+            try {
+                socket.setTcpNoDelay(true);
+                InputStream in = socket.getInputStream();
+                out = new BufferedOutputStream(socket.getOutputStream());
+                handshake(in);
+                ByteArrayOutputStream message = new ByteArrayOutputStream();
+                while (!closed && !socket.isClosed()) {
+                    int b0 = readByte(in);
+                    int b1 = readByte(in);
+                    boolean fin = (b0 & 0x80) != 0;
+                    int opcode = b0 & 0x0F;
+                    boolean masked = (b1 & 0x80) != 0;
+                    long len = b1 & 0x7F;
+                    if (len == 126) {
+                        len = (readByte(in) << 8) | readByte(in);
+                    } else if (len == 127) {
+                        len = 0;
+                        for (int i = 0; i < 8; i++) len = (len << 8) | readByte(in);
+                    }
+                    byte[] mask = new byte[4];
+                    if (masked) readFully(in, mask);
+                    byte[] payload = new byte[(int) len];
+                    readFully(in, payload);
+                    if (masked) {
+                        for (int i = 0; i < payload.length; i++) payload[i] ^= mask[i & 3];
+                    }
+
+                    if (opcode == 0x8) {
+                        sendFrame(0x8, payload);
+                        break;
+                    } else if (opcode == 0x9) {
+                        sendFrame(0xA, payload);
+                    } else if (opcode == 0x1 || opcode == 0x0) {
+                        message.write(payload);
+                        if (fin) {
+                            String text = new String(message.toByteArray(), StandardCharsets.UTF_8);
+                            message.reset();
+                            onMessage(this, text);
+                        }
+                    }
+                }
+            } catch (EOFException e) {
+                // client went away
+            } catch (Exception e) {
+                if (!closed) logger.log(Level.FINE, "Relay connection error", e);
+            } finally {
+                connections.remove(this);
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+
+        private void handshake(InputStream in) throws Exception {
+            String key = null;
+            StringBuilder line = new StringBuilder();
+            while (true) {
+                int c = in.read();
+                if (c == -1) throw new EOFException();
+                if (c == '\n') {
+                    String l = line.toString().trim();
+                    line.setLength(0);
+                    if (l.isEmpty()) break;
+                    int sep = l.indexOf(':');
+                    if (sep > 0 && l.substring(0, sep).trim().equalsIgnoreCase("Sec-WebSocket-Key")) {
+                        key = l.substring(sep + 1).trim();
+                    }
+                } else {
+                    line.append((char) c);
+                }
+            }
+            if (key == null) throw new IOException("Not a websocket upgrade request");
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            String accept = Base64
+                .getEncoder()
+                .encodeToString(sha1.digest((key + WS_GUID).getBytes(StandardCharsets.US_ASCII)));
+            String response =
+                "HTTP/1.1 101 Switching Protocols\r\n" +
+                "Upgrade: websocket\r\n" +
+                "Connection: Upgrade\r\n" +
+                "Sec-WebSocket-Accept: " +
+                accept +
+                "\r\n\r\n";
+            synchronized (this) {
+                out.write(response.getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+            }
+        }
+
+        void send(String text) {
+            try {
+                sendFrame(0x1, text.getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                logger.log(Level.FINE, "Failed to send message to relay client", e);
+            }
+        }
+
+        synchronized void sendFrame(int opcode, byte[] payload) throws IOException {
+            out.write(0x80 | opcode);
+            if (payload.length < 126) {
+                out.write(payload.length);
+            } else if (payload.length < 65536) {
+                out.write(126);
+                out.write((payload.length >> 8) & 0xFF);
+                out.write(payload.length & 0xFF);
+            } else {
+                out.write(127);
+                long len = payload.length;
+                for (int i = 7; i >= 0; i--) out.write((int) ((len >> (8 * i)) & 0xFF));
+            }
+            out.write(payload);
+            out.flush();
+        }
+    }
+
+    /**
+     * Start a relay on a random free port of the loopback interface.
+     */
+    public TestRelay() throws IOException {
+        this.server = new ServerSocket(0, 128, InetAddress.getLoopbackAddress());
+        this.threads =
+            Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "nostrads-test-relay");
+                t.setDaemon(true);
+                return t;
+            });
+        threads.execute(() -> {
+            while (!closed) {
+                try {
+                    Connection conn = new Connection(server.accept());
+                    connections.add(conn);
+                    threads.execute(conn);
+                } catch (IOException e) {
+                    if (!closed) logger.log(Level.WARNING, "Relay accept failed", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * The websocket url clients should connect to.
+     */
+    public String getUrl() {
+        return "ws://127.0.0.1:" + server.getLocalPort();
+    }
+
+    /**
+     * Number of events currently stored.
+     */
+    public int size() {
+        synchronized (events) {
+            return events.size();
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            server.close();
+        } catch (IOException e) {
+            // ignore
+        }
+        for (Connection c : connections) {
+            try {
+                c.socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+        threads.shutdownNow();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void onMessage(Connection conn, String text) {
+        List<Object> msg;
+        try {
+            msg = NGEPlatform.get().fromJSON(text, List.class);
+        } catch (Exception e) {
+            conn.send(NGEPlatform.get().toJSON(List.of("NOTICE", "invalid: malformed message")));
+            return;
+        }
+        if (msg == null || msg.isEmpty()) return;
+        String type = String.valueOf(msg.get(0));
+        switch (type) {
+            case "EVENT":
+                {
+                    Map<String, Object> event = (Map<String, Object>) msg.get(1);
+                    onEvent(conn, event, extractEventJson(text));
+                    break;
+                }
+            case "REQ":
+                {
+                    String subId = String.valueOf(msg.get(1));
+                    List<Map<String, Object>> filters = new ArrayList<>();
+                    for (int i = 2; i < msg.size(); i++) {
+                        filters.add((Map<String, Object>) msg.get(i));
+                    }
+                    onReq(conn, subId, filters);
+                    break;
+                }
+            case "CLOSE":
+                {
+                    conn.subscriptions.remove(String.valueOf(msg.get(1)));
+                    break;
+                }
+            default:
+                conn.send(NGEPlatform.get().toJSON(List.of("NOTICE", "unsupported: " + type)));
+        }
+    }
+
+    /**
+     * Extract the raw json of the event from an EVENT message, so it can be relayed byte by byte
+     * without going through a json round trip (that could alter number formatting).
+     */
+    private static String extractEventJson(String text) {
+        int start = text.indexOf('{');
+        int end = text.lastIndexOf('}');
+        return text.substring(start, end + 1);
+    }
+
+    private void onEvent(Connection conn, Map<String, Object> raw, String json) {
+        StoredEvent ev;
+        try {
+            ev = new StoredEvent(raw, json);
+        } catch (Exception e) {
+            conn.send(NGEPlatform.get().toJSON(List.of("OK", String.valueOf(raw.get("id")), false, "invalid: " + e)));
+            return;
+        }
+        long now = System.currentTimeMillis() / 1000;
+        if (ev.isExpired(now)) {
+            conn.send(NGEPlatform.get().toJSON(List.of("OK", ev.id, false, "invalid: event is expired")));
+            return;
+        }
+
+        boolean accepted = true;
+        String reason = "";
+        if (!ev.isEphemeral()) {
+            synchronized (events) {
+                if (events.containsKey(ev.id)) {
+                    reason = "duplicate: already have this event";
+                } else {
+                    if (ev.kind == 5) {
+                        applyDeletion(ev);
+                    }
+                    if (ev.isAddressable() || ev.isReplaceable()) {
+                        accepted = replace(ev);
+                        if (!accepted) reason = "duplicate: have a newer version";
+                    }
+                    if (accepted) {
+                        events.put(ev.id, ev);
+                    }
+                }
+            }
+        }
+        conn.send(NGEPlatform.get().toJSON(List.of("OK", ev.id, true, reason)));
+        if (!accepted || !reason.isEmpty()) return;
+
+        for (Connection c : connections) {
+            for (Map.Entry<String, List<Map<String, Object>>> sub : c.subscriptions.entrySet()) {
+                for (Map<String, Object> filter : sub.getValue()) {
+                    if (matches(filter, ev)) {
+                        c.send("[\"EVENT\"," + NGEPlatform.get().toJSON(sub.getKey()) + "," + ev.json + "]");
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    // must hold the events lock
+    private boolean replace(StoredEvent ev) {
+        String key = ev.isAddressable() ? ev.address() : ev.kind + ":" + ev.pubkey;
+        Iterator<StoredEvent> it = events.values().iterator();
+        while (it.hasNext()) {
+            StoredEvent old = it.next();
+            if (old.kind != ev.kind || !old.pubkey.equals(ev.pubkey)) continue;
+            String oldKey = old.isAddressable() ? old.address() : old.kind + ":" + old.pubkey;
+            if (!oldKey.equals(key)) continue;
+            if (old.createdAt > ev.createdAt || (old.createdAt == ev.createdAt && old.id.compareTo(ev.id) < 0)) {
+                return false;
+            }
+            it.remove();
+        }
+        return true;
+    }
+
+    // must hold the events lock
+    private void applyDeletion(StoredEvent deletion) {
+        Set<String> ids = new HashSet<>();
+        Set<String> addresses = new HashSet<>();
+        for (List<String> tag : deletion.tags()) {
+            if (tag.size() < 2) continue;
+            if ("e".equals(tag.get(0))) ids.add(tag.get(1));
+            if ("a".equals(tag.get(0))) addresses.add(tag.get(1));
+        }
+        events
+            .values()
+            .removeIf(old -> {
+                if (!old.pubkey.equals(deletion.pubkey) || old.kind == 5) return false;
+                if (ids.contains(old.id)) return true;
+                return old.isAddressable() && old.createdAt <= deletion.createdAt && addresses.contains(old.address());
+            });
+    }
+
+    private void onReq(Connection conn, String subId, List<Map<String, Object>> filters) {
+        long now = System.currentTimeMillis() / 1000;
+        Map<String, StoredEvent> results = new LinkedHashMap<>();
+        synchronized (events) {
+            for (Map<String, Object> filter : filters) {
+                Object limitObj = filter.get("limit");
+                int limit = limitObj != null ? ((Number) limitObj).intValue() : Integer.MAX_VALUE;
+                if (limit <= 0) continue;
+                List<StoredEvent> matching = new ArrayList<>();
+                for (StoredEvent ev : events.values()) {
+                    if (!ev.isExpired(now) && matches(filter, ev)) matching.add(ev);
+                }
+                // newest first, as per NIP-01 when a limit is requested
+                matching.sort((a, b) -> Long.compare(b.createdAt, a.createdAt));
+                for (int i = 0; i < matching.size() && i < limit; i++) {
+                    StoredEvent ev = matching.get(i);
+                    results.put(ev.id, ev);
+                }
+            }
+        }
+        conn.subscriptions.put(subId, filters);
+        for (StoredEvent ev : results.values()) {
+            conn.send("[\"EVENT\"," + NGEPlatform.get().toJSON(subId) + "," + ev.json + "]");
+        }
+        conn.send(NGEPlatform.get().toJSON(List.of("EOSE", subId)));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static boolean matches(Map<String, Object> filter, StoredEvent ev) {
+        for (Map.Entry<String, Object> entry : filter.entrySet()) {
+            String key = entry.getKey();
+            Object value = entry.getValue();
+            if (value == null) continue;
+            switch (key) {
+                case "ids":
+                    if (!((Collection<String>) value).contains(ev.id)) return false;
+                    break;
+                case "authors":
+                    if (!((Collection<String>) value).contains(ev.pubkey)) return false;
+                    break;
+                case "kinds":
+                    {
+                        boolean found = false;
+                        for (Object k : (Collection<Object>) value) {
+                            if (((Number) k).intValue() == ev.kind) {
+                                found = true;
+                                break;
+                            }
+                        }
+                        if (!found) return false;
+                        break;
+                    }
+                case "since":
+                    if (ev.createdAt < ((Number) value).longValue()) return false;
+                    break;
+                case "until":
+                    if (ev.createdAt > ((Number) value).longValue()) return false;
+                    break;
+                case "limit":
+                    break;
+                default:
+                    if (key.length() == 2 && key.charAt(0) == '#') {
+                        String tagName = key.substring(1);
+                        Collection<String> wanted = (Collection<String>) value;
+                        boolean found = false;
+                        for (List<String> tag : ev.tags()) {
+                            if (tag.size() > 1 && tagName.equals(tag.get(0)) && wanted.contains(tag.get(1))) {
+                                found = true;
+                                break;
+                            }
+                        }
+                        if (!found) return false;
+                    }
+            }
+        }
+        return true;
+    }
+
+    private static int readByte(InputStream in) throws IOException {
+        int b = in.read();
+        if (b == -1) throw new EOFException();
+        return b;
+    }
+
+    private static void readFully(InputStream in, byte[] buf) throws IOException {
+        int off = 0;
+        while (off < buf.length) {
+            int r = in.read(buf, off, buf.length - off);
+            if (r == -1) throw new EOFException();
+            off += r;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/**
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2025, Riccardo Balbo
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.ngengine.nostrads;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+import org.ngengine.nostrads.client.services.TimingWheel;
+
+public class TestTimingWheel {
+
+    private static final long START = 1_000_000;
+
+    private static List<String> sorted(List<String> items) {
+        List<String> out = new ArrayList<>(items);
+        Collections.sort(out);
+        return out;
+    }
+
+    @Test
+    public void testScheduleAndAdvance() {
+        TimingWheel<String> wheel = new TimingWheel<>(100, 8, START);
+        wheel.schedule("a", START + 100);
+        wheel.schedule("b", START + 250);
+        wheel.schedule("c", START + 250);
+        assertEquals(3, wheel.size());
+
+        // nothing is due yet
+        assertTrue(wheel.advance(START + 50).isEmpty());
+        assertEquals(List.of("a"), wheel.advance(START + 100));
+        // deadlines are rounded up to the next tick
+        assertTrue(wheel.advance(START + 250).isEmpty());
+        assertEquals(List.of("b", "c"), sorted(wheel.advance(START + 300)));
+        assertEquals(0, wheel.size());
+        // time going backwards is ignored
+        assertTrue(wheel.advance(START).isEmpty());
+    }
+
+    @Test
+    public void testCancel() {
+        TimingWheel<String> wheel = new TimingWheel<>(100, 8, START);
+        TimingWheel.Timeout<String> a = wheel.schedule("a", START + 200);
+        wheel.schedule("b", START + 200);
+        a.cancel();
+        a.cancel();
+        assertEquals(1, wheel.size());
+        assertEquals(List.of("b"), wheel.advance(START + 200));
+
+        // cancelling an expired timeout does nothing
+        TimingWheel.Timeout<String> c = wheel.schedule("c", START + 300);
+        assertEquals(List.of("c"), wheel.advance(START + 300));
+        c.cancel();
+        assertEquals(0, wheel.size());
+        assertEquals("c", c.getItem());
+    }
+
+    @Test
+    public void testDeadlinesBeyondOneTurn() {
+        TimingWheel<String> wheel = new TimingWheel<>(100, 8, START);
+        // same slot as "near", but one and two turns later
+        wheel.schedule("near", START + 300);
+        wheel.schedule("next-turn", START + 300 + 800);
+        wheel.schedule("two-turns", START + 300 + 1600);
+
+        assertEquals(List.of("near"), wheel.advance(START + 300));
+        assertTrue(wheel.advance(START + 1000).isEmpty());
+        assertEquals(List.of("next-turn"), wheel.advance(START + 1100));
+        assertEquals(1, wheel.size());
+
+        // jumping more than a full turn checks every slot once
+        wheel.schedule("skipped", START + 1200);
+        assertEquals(List.of("skipped", "two-turns"), sorted(wheel.advance(START + 5000)));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testPastDeadlines() {
+        TimingWheel<String> wheel = new TimingWheel<>(100, 8, START);
+        wheel.schedule("past", START - 1000);
+        wheel.schedule("now", START);
+        // overdue items expire on the next tick, not on the current one
+        assertTrue(wheel.advance(START + 50).isEmpty());
+        assertEquals(List.of("now", "past"), sorted(wheel.advance(START + 100)));
+    }
+
+    @Test
+    public void testDeadlineOnTickBoundary() {
+        TimingWheel<String> wheel = new TimingWheel<>(100, 8, START);
+        long deadline = START + 300;
+        wheel.schedule("boundary", deadline);
+        assertTrue(wheel.advance(deadline - 1).isEmpty());
+        assertFalse(TimingWheel.isDue(deadline, deadline - 1));
+        // expired exactly at the deadline, and due for whoever checks it at that time
+        assertEquals(List.of("boundary"), wheel.advance(deadline));
+        assertTrue(TimingWheel.isDue(deadline, deadline));
+    }
+
+    @Test
+    public void testRescheduleAfterFailedExpiry() {
+        // a negotiation whose bail fails is scheduled again with the current time, to be retried on the next tick
+        TimingWheel<String> wheel = new TimingWheel<>(100, 8, START);
+        wheel.schedule("negotiation", START + 100);
+        long now = START + 100;
+        assertEquals(List.of("negotiation"), wheel.advance(now));
+        wheel.schedule("negotiation", now);
+        assertEquals(1, wheel.size());
+        assertTrue(wheel.advance(now + 50).isEmpty());
+        assertEquals(List.of("negotiation"), wheel.advance(now + 100));
+        assertEquals(0, wheel.size());
+    }
+}
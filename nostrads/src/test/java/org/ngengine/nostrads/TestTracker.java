@@ -0,0 +1,239 @@
+/**
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2025, Riccardo Balbo
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.ngengine.nostrads;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import org.ngengine.nostrads.client.services.delegate.Tracker;
+import org.ngengine.platform.NGEPlatform;
+import org.ngengine.platform.VStore;
+
+public class TestTracker {
+
+    private static final long INTERVAL = 3600;
+
+    private static VStore newStore() {
+        return NGEPlatform.get().getDataStore("unit-tests-Ad" + Math.random(), "tracker");
+    }
+
+    private static long countFiles(VStore store, String part) throws Exception {
+        return store.listAll().await().stream().filter(p -> p.contains(part)).count();
+    }
+
+    @Test
+    public void testReplayLog() throws Exception {
+        VStore store = newStore();
+        Tracker tracker = new Tracker(store);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(tracker.tryIncrement("bid1", "payouts", INTERVAL, 10, 1));
+            tracker.flush();
+        }
+        assertTrue(tracker.tryIncrement("bid2", "budget", INTERVAL, 1000, 500));
+        assertTrue(tracker.tryIncrement("bid2", "budget", INTERVAL, 1000, -200));
+        tracker.flush();
+        assertTrue(countFiles(store, "log-") > 0);
+        assertEquals(0, countFiles(store, "snapshot-"));
+
+        // reopened without closing, as after a crash
+        Tracker reopened = new Tracker(store);
+        assertEquals(3, reopened.getValue("bid1", "payouts"));
+        assertEquals(300, reopened.getValue("bid2", "budget"));
+        assertFalse(reopened.tryIncrement("bid1", "payouts", INTERVAL, 3, 1));
+        assertTrue(reopened.tryIncrement("bid1", "payouts", INTERVAL, 4, 1));
+        reopened.close();
+        tracker.close();
+
+        Tracker last = new Tracker(store);
+        assertEquals(4, last.getValue("bid1", "payouts"));
+        last.close();
+    }
+
+    @Test
+    public void testSnapshot() throws Exception {
+        VStore store = newStore();
+        Tracker tracker = new Tracker(store);
+        tracker.tryIncrement("bid1", "payouts", INTERVAL, 10, 2);
+        tracker.tryIncrement("bid2", "payouts", INTERVAL, 10, 1);
+        tracker.flush();
+        tracker.snapshot();
+        assertEquals(1, countFiles(store, "snapshot-"));
+        assertEquals(0, countFiles(store, "log-"));
+
+        // changed after the snapshot, replayed on top of it
+        tracker.tryIncrement("bid1", "payouts", INTERVAL, 10, 5);
+        tracker.flush();
+        assertEquals(1, countFiles(store, "log-"));
+
+        Tracker reopened = new Tracker(store);
+        assertEquals(7, reopened.getValue("bid1", "payouts"));
+        assertEquals(1, reopened.getValue("bid2", "payouts"));
+        assertEquals(0, reopened.getValue("bid3", "payouts"));
+
+        // a new snapshot replaces the old one and the segments it includes
+        reopened.snapshot();
+        assertEquals(1, countFiles(store, "snapshot-"));
+        assertEquals(0, countFiles(store, "log-"));
+        reopened.close();
+        tracker.close();
+
+        Tracker last = new Tracker(store);
+        assertEquals(7, last.getValue("bid1", "payouts"));
+        assertEquals(1, last.getValue("bid2", "payouts"));
+        last.close();
+    }
+
+    @Test
+    public void testLegacyMigration() throws Exception {
+        VStore store = newStore();
+        long now = Instant.now().getEpochSecond();
+        String json =
+            "{\"bid1\":{\"payouts\":{\"value\":4,\"lastReset\":" +
+            now +
+            ",\"resetIntervalSeconds\":" +
+            INTERVAL +
+            ",\"maxValue\":10}}}";
+        store.writeFully("nostrads/tracker", json.getBytes(StandardCharsets.UTF_8)).await();
+
+        Tracker tracker = new Tracker(store);
+        assertEquals(4, tracker.getValue("bid1", "payouts"));
+        assertFalse(store.exists("nostrads/tracker").await());
+        assertEquals(1, countFiles(store, "snapshot-"));
+        assertTrue(tracker.tryIncrement("bid1", "payouts", INTERVAL, 10, 1));
+        tracker.close();
+
+        Tracker reopened = new Tracker(store);
+        assertEquals(5, reopened.getValue("bid1", "payouts"));
+        reopened.close();
+    }
+
+    @Test
+    public void testConcurrentIncrementsNeverOvershoot() throws Exception {
+        Tracker tracker = new Tracker(newStore());
+        int threads = 16;
+        int attempts = 1000;
+        long max = 500;
+        AtomicInteger accepted = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            Thread t = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int j = 0; j < attempts; j++) {
+                    if (tracker.tryIncrement("bid1", "payouts", INTERVAL, max, 1)) accepted.incrementAndGet();
+                }
+            });
+            t.start();
+            workers.add(t);
+        }
+        start.countDown();
+        for (Thread t : workers) {
+            t.join();
+        }
+        assertEquals(max, accepted.get());
+        assertEquals(max, tracker.getValue("bid1", "payouts"));
+        tracker.close();
+    }
+
+    @Test
+    public void testRollback() throws Exception {
+        Tracker tracker = new Tracker(newStore());
+        assertTrue(tracker.tryIncrement("bid1", "budget", INTERVAL, 3, 1));
+        assertTrue(tracker.tryIncrement("bid1", "budget", INTERVAL, 3, 2));
+        assertFalse(tracker.tryIncrement("bid1", "budget", INTERVAL, 3, 1));
+        assertEquals(3, tracker.getValue("bid1", "budget"));
+
+        // giving back a reservation makes room for a new one
+        assertTrue(tracker.tryIncrement("bid1", "budget", INTERVAL, 3, -1));
+        assertEquals(2, tracker.getValue("bid1", "budget"));
+        assertTrue(tracker.tryIncrement("bid1", "budget", INTERVAL, 3, 1));
+        assertFalse(tracker.tryIncrement("bid1", "budget", INTERVAL, 3, 1));
+
+        // a rollback is never refused and never goes below zero
+        assertTrue(tracker.tryIncrement("bid1", "budget", INTERVAL, 3, -10));
+        assertEquals(0, tracker.getValue("bid1", "budget"));
+        assertTrue(tracker.tryIncrement("bid2", "budget", INTERVAL, 3, -1));
+        assertEquals(0, tracker.getValue("bid2", "budget"));
+        tracker.close();
+    }
+
+    private static int countSnapshotRecords(VStore store) throws Exception {
+        for (String path : store.listAll().await()) {
+            if (path.contains("snapshot-")) return ByteBuffer.wrap(store.readFully(path).await()).getInt(4);
+        }
+        return -1;
+    }
+
+    @Test
+    public void testDropAndRecreate() throws Exception {
+        VStore store = newStore();
+        Tracker tracker = new Tracker(store);
+        assertTrue(tracker.tryIncrement("bid1", "payouts", 2, 10, 5));
+        tracker.snapshot();
+        assertEquals(1, countSnapshotRecords(store));
+
+        // the window is stale after 3 intervals and the cleanup drops the counter
+        long deadline = System.currentTimeMillis() + 20000;
+        int records = 1;
+        while (records != 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(500);
+            tracker.snapshot();
+            records = countSnapshotRecords(store);
+        }
+        assertEquals(0, records);
+        assertEquals(0, tracker.getValue("bid1", "payouts"));
+
+        // an increment after the drop goes to a new counter
+        assertTrue(tracker.tryIncrement("bid1", "payouts", 2, 10, 2));
+        assertEquals(2, tracker.getValue("bid1", "payouts"));
+        tracker.snapshot();
+        assertEquals(1, countSnapshotRecords(store));
+        tracker.close();
+
+        Tracker reopened = new Tracker(store);
+        assertEquals(2, reopened.getValue("bid1", "payouts"));
+        reopened.close();
+    }
+}